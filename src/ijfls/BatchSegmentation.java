@@ -0,0 +1,513 @@
+package ijfls;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.*;
+import ij.process.AutoThresholder;
+
+import ijfls.connect.ConnectedComponents;
+import ijfls.levelset.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+
+/**
+ * Segment every TIFF in a directory without ImageJ or a display.
+ *
+ * This doesn't use FastLevelSet_Plugin, which requires dialogs and windows,
+ * so it can be run with java.awt.headless=true. Images are processed
+ * concurrently by a pool of worker threads, and the segmentations are
+ * saved to the output directory with the same file names along with a
+ * timing summary (timing.txt).
+ *
+ * Parameters are read from a properties file (-p file) and/or key=value
+ * arguments, the arguments take precedence. Keys:
+ * - sfmethod: CHAN_VESE, HYBRID or EDGE
+ * - initMethod: An AutoThresholder method
+ * - initDir: A directory of binary initialisations with the same file names
+ *   as the images, overrides initMethod
+ * - initFromPrevious, volume, multiRegion: As in FastLevelSet_Plugin
+ * - maxIterations, speedIterations, smoothIterations, gaussWidth,
+ *   gaussSigma, convergenceTolerance: FastLevelSet.Parameters
+ * - neighbourhoodRadius, cutoffIntensity: HybridSpeedField.Parameters
+ * - volumeIntegralImages: HybridSpeedField.Parameters
+ *   useVolumeIntegralImages, faster volumes for about 20 bytes per voxel
+ * - edgeScale, edgeExpand: EdgeSpeedField.Parameters edgeScale and expand
+ * - workers: Number of images processed at once
+ * - logLevel: NONE (default), ERROR, INFO or DEBUG
+ */
+public class BatchSegmentation {
+	/**
+	 * The name of the timing summary file
+	 */
+	public static final String TIMING_FILE = "timing.txt";
+
+	/**
+	 * The segmentation parameters
+	 */
+	protected FastLevelSet_Plugin.Parameters params;
+
+	/**
+	 * Directory of initialisations, null to use params.initMethod
+	 */
+	protected File initDir = null;
+
+	/**
+	 * Number of images processed at once
+	 */
+	protected int workers = 1;
+
+	/**
+	 * Where the level sets write log messages, set by the logLevel key
+	 */
+	protected LevelSetLog log = LevelSetLog.NONE;
+
+	/**
+	 * The result of segmenting a single file
+	 */
+	protected static class Result {
+		/**
+		 * The input file
+		 */
+		public File file;
+
+		/**
+		 * Number of slices
+		 */
+		public int slices;
+
+		/**
+		 * Time taken in milliseconds (including reading and writing)
+		 */
+		public double ms;
+
+		/**
+		 * null if successful, otherwise a description of the error
+		 */
+		public String error;
+	}
+
+	/**
+	 * Create a batch segmentation with the default parameters, see
+	 * FastLevelSet_Plugin.Parameters
+	 */
+	public BatchSegmentation() {
+		params = new FastLevelSet_Plugin.Parameters();
+		params.sfmethod = SpeedFieldFactory.SfMethod.CHAN_VESE.toString();
+		params.initMethod = "Default";
+		params.plotProgress = false;
+	}
+
+	/**
+	 * Set the parameters
+	 * @param props The parameters, see the class description for the keys
+	 * @throws IllegalArgumentException if a key or value is invalid
+	 */
+	public void setParameters(Properties props) {
+		FastLevelSet.Parameters lsp = params.lsparams;
+		HybridSpeedField.Parameters hsfp = params.hsfparams;
+
+		for (String key : props.stringPropertyNames()) {
+			String v = props.getProperty(key).trim();
+			if (key.equals("sfmethod")) {
+				params.sfmethod =
+					SpeedFieldFactory.SfMethod.valueOf(v).toString();
+			}
+			else if (key.equals("initMethod")) {
+				if (!Arrays.asList(AutoThresholder.getMethods()).contains(v)) {
+					throw new IllegalArgumentException(
+						"Unknown initMethod: " + v);
+				}
+				params.initMethod = v;
+			}
+			else if (key.equals("initDir")) {
+				initDir = new File(v);
+			}
+			else if (key.equals("initFromPrevious")) {
+				params.initFromPrevious = Boolean.parseBoolean(v);
+			}
+			else if (key.equals("multiRegion")) {
+				params.multiRegion = Boolean.parseBoolean(v);
+			}
+			else if (key.equals("volume")) {
+				params.volume = Boolean.parseBoolean(v);
+			}
+			else if (key.equals("maxIterations")) {
+				lsp.maxIterations = Integer.parseInt(v);
+			}
+			else if (key.equals("speedIterations")) {
+				lsp.speedIterations = Integer.parseInt(v);
+			}
+			else if (key.equals("smoothIterations")) {
+				lsp.smoothIterations = Integer.parseInt(v);
+			}
+			else if (key.equals("gaussWidth")) {
+				lsp.gaussWidth = Integer.parseInt(v);
+			}
+			else if (key.equals("gaussSigma")) {
+				lsp.gaussSigma = Double.parseDouble(v);
+			}
+			else if (key.equals("convergenceTolerance")) {
+				lsp.convergenceTolerance = Double.parseDouble(v);
+			}
+			else if (key.equals("neighbourhoodRadius")) {
+				hsfp.neighbourhoodRadius = Integer.parseInt(v);
+			}
+			else if (key.equals("cutoffIntensity")) {
+				hsfp.cutoffIntensity = Integer.parseInt(v);
+			}
+			else if (key.equals("volumeIntegralImages")) {
+				hsfp.useVolumeIntegralImages = Boolean.parseBoolean(v);
+			}
+			else if (key.equals("edgeScale")) {
+				params.esfparams.edgeScale = Double.parseDouble(v);
+			}
+			else if (key.equals("edgeExpand")) {
+				params.esfparams.expand = Boolean.parseBoolean(v);
+			}
+			else if (key.equals("workers")) {
+				workers = Math.max(Integer.parseInt(v), 1);
+			}
+			else if (key.equals("logLevel")) {
+				log = createLog(v);
+			}
+			else {
+				throw new IllegalArgumentException(
+					"Unknown parameter: " + key);
+			}
+		}
+	}
+
+	/**
+	 * Create a log which writes to stdout, or stderr for errors
+	 * @param level NONE or the name of a LevelSetLog.Level
+	 * @return The log
+	 */
+	protected static LevelSetLog createLog(String level) {
+		if (level.equals("NONE")) {
+			return LevelSetLog.NONE;
+		}
+
+		return new LevelSetLog(LevelSetLog.Level.valueOf(level)) {
+			protected void write(Level l, String msg) {
+				if (l == Level.ERROR) {
+					System.err.println(msg);
+				}
+				else {
+					System.out.println(msg);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Segment every TIFF in a directory
+	 * @param inDir The input directory
+	 * @param outDir The output directory, created if necessary
+	 * @return The results in file name order
+	 * @throws IOException if the directories can't be read or written
+	 */
+	public List<Result> run(File inDir, final File outDir)
+		throws IOException, InterruptedException {
+		File[] files = inDir.listFiles();
+		if (files == null) {
+			throw new FileNotFoundException("Unable to read " + inDir);
+		}
+		Arrays.sort(files);
+
+		if (!outDir.isDirectory() && !outDir.mkdirs()) {
+			throw new IOException("Unable to create " + outDir);
+		}
+
+		ExecutorService executor = Executors.newFixedThreadPool(workers);
+		List<Future<Result>> futures = new ArrayList<Future<Result>>();
+		long start = System.nanoTime();
+
+		try {
+			for (final File f : files) {
+				String name = f.getName().toLowerCase();
+				if (!f.isFile() ||
+					!(name.endsWith(".tif") || name.endsWith(".tiff"))) {
+					continue;
+				}
+
+				futures.add(executor.submit(new Callable<Result>() {
+					public Result call() {
+						return segmentFile(f, outDir);
+					}
+				}));
+			}
+
+			List<Result> results = new ArrayList<Result>();
+			for (Future<Result> fut : futures) {
+				try {
+					results.add(fut.get());
+				}
+				catch (ExecutionException e) {
+					// segmentFile() only lets Errors escape
+					throw (Error)e.getCause();
+				}
+			}
+
+			writeSummary(results, (System.nanoTime() - start) / 1e6,
+						 new File(outDir, TIMING_FILE));
+			return results;
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * Segment and save a single file
+	 * @param f The input file
+	 * @param outDir The output directory
+	 * @return The result, errors are recorded instead of being thrown
+	 */
+	protected Result segmentFile(File f, File outDir) {
+		Result r = new Result();
+		r.file = f;
+		long start = System.nanoTime();
+
+		try {
+			ImagePlus imp = IJ.openImage(f.getPath());
+			if (imp == null) {
+				throw new IOException("Unable to open image");
+			}
+			r.slices = imp.getStackSize();
+
+			ImageStack init = getInitialisation(imp, f.getName());
+			ImageStack seg = segment(imp.getStack(), init);
+
+			ImagePlus impSeg = new ImagePlus(imp.getShortTitle() +
+											 " Segmentation", seg);
+			impSeg.setCalibration(imp.getCalibration());
+			String out = new File(outDir, f.getName()).getPath();
+			if (!IJ.saveAsTiff(impSeg, out)) {
+				throw new IOException("Unable to write " + out);
+			}
+		}
+		catch (Exception e) {
+			r.error = e.toString();
+		}
+
+		r.ms = (System.nanoTime() - start) / 1e6;
+		System.out.println(f.getName() + ": " +
+						   (r.error == null ? "done" : r.error) + " (" +
+						   IJ.d2s(r.ms) + " ms)");
+		return r;
+	}
+
+	/**
+	 * Get the initialisation for an image, either by reading it from
+	 * initDir or thresholding each slice
+	 * @param imp The image
+	 * @param name The file name of the image
+	 * @return A binary slice for each slice in the image. If
+	 *         initFromPrevious is set and there is no initDir only the
+	 *         first slice is used.
+	 */
+	protected ImageStack getInitialisation(ImagePlus imp, String name)
+		throws IOException {
+		ImageStack stack = imp.getStack();
+		ImageStack init = new ImageStack(stack.getWidth(), stack.getHeight());
+
+		if (initDir != null) {
+			ImagePlus impInit = IJ.openImage(new File(initDir, name).getPath());
+			if (impInit == null ||
+				impInit.getWidth() != stack.getWidth() ||
+				impInit.getHeight() != stack.getHeight() ||
+				impInit.getStackSize() != stack.getSize()) {
+				throw new IOException(
+					"Initialisation missing or a different size");
+			}
+
+			ImageStack s = impInit.getStack();
+			for (int i = 1; i <= s.getSize(); ++i) {
+				init.addSlice(null, new BinaryProcessor(
+								  (ByteProcessor)s.getProcessor(i)
+								  .convertToByte(false)));
+			}
+			return init;
+		}
+
+		int n = params.initFromPrevious && !params.volume ? 1 : stack.getSize();
+		for (int i = 1; i <= n; ++i) {
+			init.addSlice(null, Initialiser.getInitialisation(
+							  null, stack.getProcessor(i), params.initMethod));
+		}
+		return init;
+	}
+
+	/**
+	 * Segment a stack
+	 * @param stack The image
+	 * @param init The initialisation, see getInitialisation()
+	 * @return The binary segmentation
+	 */
+	protected ImageStack segment(ImageStack stack, ImageStack init) {
+		if (params.volume) {
+			SpeedField3D speed = SpeedFieldFactory.create3D(
+				params.sfmethod, stack, init, params.hsfparams);
+			FastLevelSet3D fls = new FastLevelSet3D(params.lsparams, stack,
+													init, speed);
+			fls.setLog(log);
+			if (!fls.segment()) {
+				throw new RuntimeException("Segmentation failed");
+			}
+			return fls.getSegmentation();
+		}
+
+		ImageStack seg = new ImageStack(stack.getWidth(), stack.getHeight());
+		BinaryProcessor prevSeg = null;
+
+		// stack.getProcessor(i) uses 1-based indexing
+		for (int i = 1; i <= stack.getSize(); ++i) {
+			ImageProcessor im = stack.getProcessor(i);
+			BinaryProcessor sliceInit;
+			if (params.initFromPrevious && prevSeg != null) {
+				sliceInit = prevSeg;
+			}
+			else {
+				sliceInit = new BinaryProcessor(
+					(ByteProcessor)init.getProcessor(i));
+			}
+
+			if (params.multiRegion) {
+				ConnectedComponents cc = new ConnectedComponents(sliceInit);
+				cc.labelRuns4();
+				MultiFastLevelSet mfls = new MultiFastLevelSet(
+					params.lsparams, im, cc.getLabelImage());
+				mfls.setLog(log);
+				if (!mfls.segment()) {
+					throw new RuntimeException("Segmentation failed");
+				}
+				prevSeg = mfls.getSegmentation();
+				seg.addSlice(null, prevSeg);
+				continue;
+			}
+
+			SpeedField speed = SpeedFieldFactory.create(
+				params.sfmethod, im, sliceInit, params.hsfparams,
+				params.esfparams);
+			FastLevelSet fls = new FastLevelSet(params.lsparams, im,
+												sliceInit, speed);
+			fls.setLog(log);
+			if (!fls.segment()) {
+				throw new RuntimeException("Segmentation failed");
+			}
+			prevSeg = fls.getSegmentation();
+			seg.addSlice(null, prevSeg);
+		}
+		return seg;
+	}
+
+	/**
+	 * Write the timing summary
+	 * @param results The results for each file
+	 * @param wallMs The total elapsed time in milliseconds
+	 * @param out The summary file
+	 */
+	protected void writeSummary(List<Result> results, double wallMs, File out)
+		throws IOException {
+		PrintWriter pw = new PrintWriter(out);
+		try {
+			double totalMs = 0;
+			int failed = 0;
+			pw.println("file\tslices\tms\tstatus");
+			for (Result r : results) {
+				pw.println(r.file.getName() + "\t" + r.slices + "\t" +
+						   IJ.d2s(r.ms) + "\t" +
+						   (r.error == null ? "ok" : r.error));
+				totalMs += r.ms;
+				if (r.error != null) {
+					++failed;
+				}
+			}
+
+			String summary = "Images: " + results.size() + " failed: " +
+				failed + " workers: " + workers + " total time: " +
+				IJ.d2s(totalMs) + " ms wall time: " + IJ.d2s(wallMs) + " ms";
+			pw.println("# " + summary);
+			System.out.println(summary);
+		}
+		finally {
+			pw.close();
+		}
+	}
+
+	/**
+	 * Args: [-p params.properties] [key=value ...] inputDir outputDir
+	 */
+	public static void main(String[] args) {
+		System.setProperty("java.awt.headless", "true");
+
+		Properties props = new Properties();
+		List<String> dirs = new ArrayList<String>();
+
+		try {
+			for (int i = 0; i < args.length; ++i) {
+				if (args[i].equals("-p") && i + 1 < args.length) {
+					InputStream in = new FileInputStream(args[++i]);
+					try {
+						props.load(in);
+					}
+					finally {
+						in.close();
+					}
+				}
+				else if (args[i].indexOf('=') > 0) {
+					int eq = args[i].indexOf('=');
+					props.setProperty(args[i].substring(0, eq),
+									  args[i].substring(eq + 1));
+				}
+				else {
+					dirs.add(args[i]);
+				}
+			}
+
+			if (dirs.size() != 2) {
+				System.err.println("Expected args: [-p params.properties] " +
+								   "[key=value ...] inputDir outputDir");
+				System.exit(2);
+			}
+
+			BatchSegmentation batch = new BatchSegmentation();
+			batch.setParameters(props);
+			List<Result> results = batch.run(new File(dirs.get(0)),
+											 new File(dirs.get(1)));
+			for (Result r : results) {
+				if (r.error != null) {
+					System.exit(1);
+				}
+			}
+		}
+		catch (IllegalArgumentException e) {
+			System.err.println(e.getMessage());
+			System.exit(2);
+		}
+		catch (IOException e) {
+			System.err.println(e.getMessage());
+			System.exit(1);
+		}
+		catch (InterruptedException e) {
+			System.err.println("Interrupted");
+			System.exit(1);
+		}
+	}
+}
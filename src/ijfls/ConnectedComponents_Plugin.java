@@ -1,16 +1,28 @@
 package ijfls;
 
 import ij.*;
+import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
-import ijfls.connect.ConnectedComponents;
 import ijfls.connect.ConnectSlices;
+import ijfls.connect.ConnectedComponents;
+import ijfls.connect.ConnectedComponents3D;
+import ijfls.connect.SliceTasks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 
 
 /**
  * ConnectedComponents_Plugin
  *
- * Finds 4-connected components in a binary image, creates a coloured image.
+ * Finds 4 or 8-connected components in a binary image, creates a coloured
+ * image. Stacks are also labelled as a volume using 6, 18 or 26-connectivity.
+ * Stacks which don't fit in memory can instead be labelled as a volume
+ * one slice at a time, with the labels written to a directory.
  */
 public class ConnectedComponents_Plugin implements PlugInFilter {
 
@@ -19,6 +31,36 @@ public class ConnectedComponents_Plugin implements PlugInFilter {
 	 */
 	protected ImagePlus imp;
 
+	/**
+	 * 2D connectivity, 4 or 8
+	 */
+	protected int connectivity2D = 4;
+
+	/**
+	 * 3D connectivity, 6, 18 or 26
+	 */
+	protected int connectivity3D = 6;
+
+	/**
+	 * Number of threads
+	 */
+	protected int threads = 1;
+
+	/**
+	 * Whether 3D labels are coloured using an 8-bit indexed LUT instead of
+	 * RGB, which uses less memory but recycles colours sooner
+	 */
+	protected boolean indexed3D = false;
+
+	/**
+	 * If not blank a stack is labelled as a volume using 6-connectivity, and
+	 * the labels are written to this directory as a numbered TIFF per slice
+	 * instead of being displayed. Only two slices are held in memory, but
+	 * the provisional labels (4 bytes per voxel) are kept in a temporary
+	 * file in the same directory.
+	 */
+	protected String streamDir = "";
+
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
 		return DOES_8G;
@@ -26,26 +68,32 @@ public class ConnectedComponents_Plugin implements PlugInFilter {
 
 	public void run(ImageProcessor ip) {
 		ImageStack stack = imp.getStack();
-		ImageStack labelStack = new ImageStack(
-			stack.getWidth(), stack.getHeight());
 		ImageStack colourLabelStack = new ImageStack(
 			stack.getWidth(), stack.getHeight());
 		int stackSize = stack.getSize();
 
+		if (!getUserParameters(stackSize > 1)) {
+			return;
+		}
+
+		if (stackSize > 1 && !streamDir.isEmpty()) {
+			streamVolume(stack);
+			return;
+		}
+
 		try {
-			// stack.getProcessor(i) uses 1-based indexing
-			for (int i = 1; i <= stackSize; ++i) {
-				IJ.log("Processing slice " + i);
-				IJ.showStatus("Processing slice " + i + "/" + stackSize);
-
-				ImageProcessor im = stack.getProcessor(i);
-				ConnectedComponents cc = new ConnectedComponents(
-					new BinaryProcessor((ByteProcessor)im));
-				int ncomponents = cc.labelComponents4();
-				IJ.log("Found " + ncomponents + " components");
-
-				labelStack.addSlice(cc.getLabelImage());
-				colourLabelStack.addSlice(cc.getColouredLabels());
+			if (threads > 1 && stackSize > 1) {
+				labelSlicesInParallel(stack, colourLabelStack);
+			}
+			else {
+				// stack.getProcessor(i) uses 1-based indexing
+				for (int i = 1; i <= stackSize; ++i) {
+					IJ.log("Processing slice " + i);
+					IJ.showStatus("Processing slice " + i + "/" + stackSize);
+
+					ImageProcessor im = stack.getProcessor(i);
+					colourLabelStack.addSlice(labelSlice(im));
+				}
 			}
 		}
 		catch (Error e) {
@@ -59,28 +107,150 @@ public class ConnectedComponents_Plugin implements PlugInFilter {
 		result.show();
 
 		if (stackSize > 1) {
-			ImageStack colourConnect3d = connectSlices(labelStack);
-			String title2 = imp.getShortTitle() + " Coloured 3D Regions";
-			ImagePlus result2 = new ImagePlus(title2, colourConnect3d);
-			result2.show();
+			ImageStack colourConnect3d = labelVolume(stack);
+			if (colourConnect3d != null) {
+				String title2 = imp.getShortTitle() + " Coloured 3D Regions";
+				ImagePlus result2 = new ImagePlus(title2, colourConnect3d);
+				result2.show();
+			}
 		}
 	}
 
 	/**
-	 * Connect components across slices in a stack
-	 * @param labelled The iamge stack in which each image has been
-	 *        independently labelled
-	 * @return A new label stack in which regions have been coloured taking
-	 *         into account connections between slices
+	 * Label the components of a slice
+	 * @param im The binary slice
+	 * @return The coloured components
 	 */
-	ImageStack connectSlices(ImageStack labelled) {
-		IJ.log("Merging labels across slices");
-		ConnectSlices cs = new ConnectSlices(labelled);
-		int ncomponents = cs.connectSlices();
+	ColorProcessor labelSlice(ImageProcessor im) {
+		ConnectedComponents cc = new ConnectedComponents(
+			new BinaryProcessor((ByteProcessor)im));
+		int ncomponents;
+		if (connectivity2D == 8) {
+			ncomponents = cc.labelComponents8();
+		}
+		else {
+			ncomponents = cc.labelComponents4();
+		}
 		IJ.log("Found " + ncomponents + " components");
+		return cc.getColouredLabels();
+	}
 
-		IJ.log(cs.mapToString(ConnectSlices.MapDirection.FORWARD));
-		return cs.getColouredLabels();
+	/**
+	 * Label the components of each slice using a pool of threads
+	 * @param stack The binary image stack
+	 * @param colourLabelStack The coloured components of each slice will be
+	 *        added to this stack in order
+	 */
+	void labelSlicesInParallel(ImageStack stack,
+							   ImageStack colourLabelStack) {
+		int stackSize = stack.getSize();
+		IJ.log("Processing " + stackSize + " slices using " + threads +
+			   " threads");
+		List<Callable<ColorProcessor>> tasks =
+			new ArrayList<Callable<ColorProcessor>>();
+		for (int i = 1; i <= stackSize; ++i) {
+			final ImageProcessor im = stack.getProcessor(i);
+			tasks.add(new Callable<ColorProcessor>() {
+				public ColorProcessor call() {
+					return labelSlice(im);
+				}
+			});
+		}
+		try {
+			for (ColorProcessor cp :
+					 SliceTasks.run(tasks, threads, "Processing slice")) {
+				colourLabelStack.addSlice(cp);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("Interrupted");
+		}
 	}
-}
 
+	/**
+	 * Ask the user for the connectivity
+	 * @param isStack Whether the image is a stack
+	 * @return false if the dialog was cancelled
+	 */
+	boolean getUserParameters(boolean isStack) {
+		GenericDialog gd = new GenericDialog("Connected components");
+		String[] c2 = { "4", "8" };
+		String[] c3 = { "6", "18", "26" };
+		gd.addChoice("2D connectivity", c2, String.valueOf(connectivity2D));
+		if (isStack) {
+			gd.addChoice("3D connectivity", c3, String.valueOf(connectivity3D));
+			gd.addNumericField("Threads", threads, 0);
+			gd.addCheckbox("Indexed 3D colours (8-bit)", indexed3D);
+			gd.addStringField("Stream_3D_labels_to (blank to display)",
+							  streamDir, 30);
+		}
+
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return false;
+		}
+
+		connectivity2D = Integer.parseInt(gd.getNextChoice());
+		if (isStack) {
+			connectivity3D = Integer.parseInt(gd.getNextChoice());
+			threads = Math.max((int)gd.getNextNumber(), 1);
+			indexed3D = gd.getNextBoolean();
+			streamDir = gd.getNextString().trim();
+		}
+		return true;
+	}
+
+	/**
+	 * Label the components of a stack in 3D
+	 * @param stack The binary image stack
+	 * @return A new stack in which regions have been coloured taking into
+	 *         account connections between slices, null if interrupted
+	 */
+	ImageStack labelVolume(ImageStack stack) {
+		IJ.log("Labelling stack as a volume");
+		ConnectedComponents3D cc = new ConnectedComponents3D(stack);
+		int ncomponents;
+		try {
+			ncomponents = cc.labelComponents(connectivity3D, threads);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("Interrupted");
+			return null;
+		}
+		IJ.log("Found " + ncomponents + " components");
+		return cc.getColouredLabels(indexed3D, threads);
+	}
+
+	/**
+	 * Label the components of a stack in 3D using 6-connectivity, reading
+	 * one slice at a time and writing the labels of each slice to
+	 * streamDir, nothing is displayed
+	 * @param stack The binary image stack, for instance a virtual stack
+	 */
+	void streamVolume(ImageStack stack) {
+		if (connectivity3D != 6) {
+			IJ.log("Streamed volumes are labelled using 6-connectivity");
+		}
+		File dir = new File(streamDir);
+		if (!dir.isDirectory() && !dir.mkdirs()) {
+			IJ.error("Connected components",
+					 "Unable to create directory: " + dir);
+			return;
+		}
+
+		String prefix = imp.getShortTitle() + "-labels-";
+		IJ.log("Labelling stack as a volume, writing to " + dir);
+		ConnectSlices cs = ConnectSlices.forBinaryStack(
+			stack, new File(dir, prefix + "provisional.tmp"));
+		try {
+			int ncomponents = cs.connectSlices(
+				new ConnectSlices.TiffSequenceWriter(dir, prefix));
+			IJ.log("Found " + ncomponents + " components");
+		}
+		catch (IOException e) {
+			IJ.error("Connected components", e.getMessage());
+		}
+	}
+}
@@ -5,11 +5,19 @@ import ij.gui.GenericDialog;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
 
+import ijfls.connect.ConnectedComponents;
 import ijfls.levelset.*;
 import ijfls.gui.LevelSetListDisplay;
 
 import java.awt.Font;
 import java.util.LinkedList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
 
 
 /**
@@ -43,6 +51,21 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 	 */
 	LevelSetListDisplay lsDisplay = null;
 
+	/**
+	 * The threads used by the level set, null if it is single-threaded
+	 */
+	protected ForkJoinPool pool = null;
+
+	/**
+	 * Stops the level sets when escape is pressed
+	 */
+	protected EscapeCancellation cancel = null;
+
+	/**
+	 * Where the level sets write log messages
+	 */
+	protected LevelSetLog log = LevelSetLog.NONE;
+
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
 		return DOES_8G + DOES_16 + DOES_32;
@@ -74,11 +97,50 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 		 */
 		public boolean displayInit;
 
+		/**
+		 * Should a stack be segmented as a single 3D volume? Each slice is
+		 * initialised independently.
+		 */
+		public boolean volume;
+
 		/**
 		 * Should each iteration of the level set be plotted?
 		 */
 		public boolean plotProgress;
-		
+
+		/**
+		 * Should each connected component of the initialisation be evolved
+		 * as a separate region? Only for the Chan-Vese speed field.
+		 */
+		public boolean multiRegion;
+
+		/**
+		 * Should all channels of a multi-channel image be segmented
+		 * together? Only for the Chan-Vese speed field.
+		 */
+		public boolean allChannels;
+
+		/**
+		 * The weight of each channel if allChannels is set, null for equal
+		 * weights
+		 */
+		public double[] channelWeights;
+
+		/**
+		 * Number of threads, 1 to use the single-threaded implementation.
+		 * If slices are initialised independently several slices are
+		 * segmented at once, otherwise reading the next slice is overlapped
+		 * with the segmentation.
+		 */
+		public int threads;
+
+		/**
+		 * Should each level set use ParallelFastLevelSet if threads > 1?
+		 * Experimental, the switches are still made on a single thread so
+		 * it may not be faster, see ParallelFastLevelSet.
+		 */
+		public boolean parallelLevelSet;
+
 		/**
 		 * Fast level set parameters
 		 */
@@ -89,6 +151,11 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 		 */
 		public HybridSpeedField.Parameters hsfparams;
 
+		/**
+		 * Edge speed field parameters
+		 */
+		public EdgeSpeedField.Parameters esfparams;
+
 		/**
 		 * Set parameters to defaults
 		 */
@@ -97,7 +164,13 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 			initMethod = null;
 			initFromPrevious = true;
 			displayInit = false;
-			plotProgress = true;			
+			volume = false;
+			plotProgress = true;
+			multiRegion = false;
+			allChannels = true;
+			channelWeights = null;
+			threads = 1;
+			parallelLevelSet = false;
 
 			lsparams = new FastLevelSet.Parameters();
 			lsparams.speedIterations = 5;
@@ -105,10 +178,38 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 			lsparams.maxIterations = 10;
 			lsparams.gaussWidth = 7;
 			lsparams.gaussSigma = 3;
+			lsparams.convergenceTolerance = 0;
+			lsparams.incrementalSmoothing = false;
 
 			hsfparams = new HybridSpeedField.Parameters();
 			hsfparams.neighbourhoodRadius = 16;
 			hsfparams.cutoffIntensity = 0;
+			hsfparams.useIntegralImages = true;
+
+			esfparams = new EdgeSpeedField.Parameters();
+		}
+
+		/**
+		 * Copy parameters, the level set and speed field parameters are
+		 * shared with the original
+		 * @param other The parameters to copy
+		 */
+		public Parameters(Parameters other) {
+			sfmethod = other.sfmethod;
+			initMethod = other.initMethod;
+			initFromPrevious = other.initFromPrevious;
+			displayInit = other.displayInit;
+			volume = other.volume;
+			plotProgress = other.plotProgress;
+			multiRegion = other.multiRegion;
+			allChannels = other.allChannels;
+			channelWeights = other.channelWeights;
+			threads = other.threads;
+			parallelLevelSet = other.parallelLevelSet;
+
+			lsparams = other.lsparams;
+			hsfparams = other.hsfparams;
+			esfparams = other.esfparams;
 		}
 	}
 
@@ -121,8 +222,45 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 			return;
 		}
 
+		log = new IJLog(LevelSetLog.Level.INFO);
+		cancel = new EscapeCancellation();
+
+		if (params.allChannels && imp.getNChannels() > 1) {
+			if (params.volume) {
+				IJ.log("Multi-channel images are segmented slice by slice");
+			}
+			runChannels(params);
+			return;
+		}
+
+		if (params.volume && stack.getSize() > 1) {
+			if (params.multiRegion) {
+				IJ.log("Separate regions are not supported for volumes, " +
+					   "ignoring");
+			}
+			runVolume(stack, params);
+			return;
+		}
+
+		if (params.threads > 1 && !params.initFromPrevious &&
+			stack.getSize() > 1) {
+			runSlicesInParallel(stack, params);
+			return;
+		}
+
+		if (params.threads > 1 && params.parallelLevelSet &&
+			!params.multiRegion) {
+			pool = new ForkJoinPool(params.threads);
+		}
+
 		try {
 			int stackSize = stack.getSize();
+			if (params.threads > 1 && params.initFromPrevious &&
+				stackSize > 1 && !params.multiRegion) {
+				runPipelined(stack, params);
+				return;
+			}
+
 			BinaryProcessor prevSeg = null;
 
 			// stack.getProcessor(i) uses 1-based indexing
@@ -146,6 +284,10 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 				}
 
 				BinaryProcessor seg = levelset(params, im, init);
+				if (seg == null) {
+					reportStopped(i);
+					break;
+				}
 				prevSeg = seg;
 
 				updateSegDisplay(seg);
@@ -156,6 +298,386 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 			e.printStackTrace();
 			throw e;
 		}
+		finally {
+			if (pool != null) {
+				pool.shutdown();
+				pool = null;
+			}
+		}
+	}
+
+	/**
+	 * Get the channels at a position of a hyperstack. The processors share
+	 * the pixel arrays of the stack, nothing is copied.
+	 * @param stack The stack of imp
+	 * @param z The slice, 1-based
+	 * @param t The frame, 1-based
+	 * @return A processor for each channel
+	 */
+	protected ImageProcessor[] getChannels(ImageStack stack, int z, int t) {
+		ImageProcessor[] channels = new ImageProcessor[imp.getNChannels()];
+		for (int c = 0; c < channels.length; ++c) {
+			channels[c] = stack.getProcessor(imp.getStackIndex(c + 1, z, t));
+		}
+		return channels;
+	}
+
+	/**
+	 * Segment each slice and frame of a multi-channel image using all
+	 * channels together. The initialisation and the progress display use
+	 * the current channel.
+	 * @param params The plugin parameters
+	 */
+	protected void runChannels(Parameters params) {
+		ImageStack stack = imp.getStack();
+		int nz = imp.getNSlices();
+		int nt = imp.getNFrames();
+		int n = nz * nt;
+		int initChannel = imp.getC() - 1;
+		IJ.log("Segmenting " + imp.getNChannels() + " channels together, " +
+			   "initialising from channel " + (initChannel + 1));
+
+		if (params.threads > 1 && params.parallelLevelSet) {
+			pool = new ForkJoinPool(params.threads);
+		}
+
+		try {
+			BinaryProcessor prevSeg = null;
+			for (int i = 1; i <= n; ++i) {
+				IJ.log("Processing slice " + i);
+				IJ.showStatus("Processing slice " + i + "/" + n);
+
+				int z = (i - 1) % nz + 1;
+				int t = (i - 1) / nz + 1;
+				ImageProcessor[] channels = getChannels(stack, z, t);
+				ImageProcessor im = channels[initChannel];
+
+				BinaryProcessor init;
+				if (params.initFromPrevious && prevSeg != null) {
+					init = prevSeg;
+				}
+				else {
+					init = Initialiser.getInitialisation(
+						imp, im, params.initMethod);
+				}
+
+				if (params.displayInit) {
+					updateInitDisplay(init);
+				}
+
+				SpeedField speed = new VectorChanVeseSpeedField(
+					channels, params.channelWeights, init);
+				BinaryProcessor seg = levelset(params, im, init, speed, true);
+				if (seg == null) {
+					reportStopped(i);
+					break;
+				}
+				prevSeg = seg;
+
+				updateSegDisplay(seg);
+			}
+		}
+		finally {
+			if (pool != null) {
+				pool.shutdown();
+				pool = null;
+			}
+		}
+	}
+
+	/**
+	 * Segment a single slice which has already been initialised, may be run
+	 * on any thread so doesn't display anything or use the image window
+	 */
+	protected class SegmentSlice implements Callable<BinaryProcessor> {
+		private final Parameters params;
+		private final ImageProcessor im;
+		private final BinaryProcessor init;
+
+		/**
+		 * @param params The plugin parameters
+		 * @param im The slice to be segmented
+		 * @param init The binary initialisation
+		 */
+		public SegmentSlice(Parameters params, ImageProcessor im,
+							BinaryProcessor init) {
+			this.params = params;
+			this.im = im;
+			this.init = init;
+		}
+
+		public BinaryProcessor call() {
+			return levelset(params, im, init, false);
+		}
+	}
+
+	/**
+	 * Segment independently initialised slices using a pool of threads.
+	 * Slices are read, initialised and displayed in order on this thread,
+	 * and at most two slices per thread are queued or being processed at
+	 * any time so memory use doesn't depend on the size of the stack.
+	 * @param stack The image stack
+	 * @param params The plugin parameters, not modified
+	 */
+	protected void runSlicesInParallel(ImageStack stack, Parameters params) {
+		int stackSize = stack.getSize();
+		int maxQueued = 2 * params.threads;
+		IJ.log("Processing " + stackSize + " slices using " + params.threads
+			   + " threads");
+		if (params.plotProgress) {
+			IJ.log("Progress is not displayed when processing slices in " +
+				   "parallel");
+		}
+
+		// The slices already use all the threads, so each edge speed field
+		// is calculated on the thread segmenting its slice
+		Parameters sliceParams = new Parameters(params);
+		sliceParams.esfparams = new EdgeSpeedField.Parameters(params.esfparams);
+		sliceParams.esfparams.threads = 1;
+
+		ExecutorService executor = Executors.newFixedThreadPool(
+			params.threads);
+		LinkedList<Future<BinaryProcessor>> queued =
+			new LinkedList<Future<BinaryProcessor>>();
+		LinkedList<BinaryProcessor> inits = new LinkedList<BinaryProcessor>();
+
+		try {
+			int next = 1;
+			int end = stackSize;
+			for (int i = 1; i <= end; ++i) {
+				// Virtual stacks may not be thread-safe, and the
+				// initialisation may use the ROI of the image or show a
+				// dialog, so both are done here
+				while (next <= end && queued.size() < maxQueued) {
+					// stack.getProcessor(i) uses 1-based indexing
+					ImageProcessor im = stack.getProcessor(next);
+					BinaryProcessor init = Initialiser.getInitialisation(
+						imp, im, params.initMethod);
+					if (init == null) {
+						end = next - 1;
+						break;
+					}
+					queued.add(executor.submit(
+								   new SegmentSlice(sliceParams, im, init)));
+					inits.add(init);
+					++next;
+				}
+				if (queued.isEmpty()) {
+					break;
+				}
+
+				BinaryProcessor seg = queued.removeFirst().get();
+				BinaryProcessor init = inits.removeFirst();
+				if (seg == null) {
+					reportStopped(i);
+					return;
+				}
+
+				if (params.displayInit) {
+					updateInitDisplay(init);
+				}
+				updateSegDisplay(seg);
+				IJ.showStatus("Completed slice " + i + "/" + stackSize);
+				IJ.showProgress(i, stackSize);
+			}
+
+			if (end < stackSize) {
+				// The initialisation failed
+				reportStopped(end + 1);
+			}
+		}
+		catch (InterruptedException e) {
+			IJ.log("Interrupted");
+			Thread.currentThread().interrupt();
+		}
+		catch (ExecutionException e) {
+			IJ.log(e.getCause().toString());
+			e.getCause().printStackTrace();
+			if (e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+		}
+		finally {
+			executor.shutdownNow();
+		}
+	}
+
+	/**
+	 * A slice which has been read from the stack and its speed field
+	 */
+	protected static class PreparedSlice {
+		public ImageProcessor im;
+		public SpeedField speed;
+	}
+
+	/**
+	 * Read a slice and do the parts of the speed field calculation which
+	 * don't depend on the initialisation
+	 */
+	protected static class PrepareSlice implements Callable<PreparedSlice> {
+		private final Parameters params;
+		private final ImageStack stack;
+		private final int n;
+		private final AtomicLong busy;
+
+		/**
+		 * @param params The plugin parameters
+		 * @param stack The image stack
+		 * @param n The slice number (1-based)
+		 * @param busy Incremented by the time taken in nanoseconds
+		 */
+		public PrepareSlice(Parameters params, ImageStack stack, int n,
+							AtomicLong busy) {
+			this.params = params;
+			this.stack = stack;
+			this.n = n;
+			this.busy = busy;
+		}
+
+		public PreparedSlice call() {
+			long start = System.nanoTime();
+			PreparedSlice r = new PreparedSlice();
+			r.im = stack.getProcessor(n);
+			r.speed = SpeedFieldFactory.prepare(params.sfmethod, r.im,
+												params.hsfparams,
+												params.esfparams);
+			busy.addAndGet(System.nanoTime() - start);
+			return r;
+		}
+	}
+
+	/**
+	 * Segment slices initialised from the previous segmentation. Each
+	 * slice has to wait for the previous one, but while a slice is being
+	 * segmented and displayed the next slice is read and its speed field
+	 * prepared on a second thread. Display only happens on this thread.
+	 * @param stack The image stack
+	 * @param params The plugin parameters
+	 */
+	protected void runPipelined(ImageStack stack, Parameters params) {
+		int stackSize = stack.getSize();
+
+		// Time spent by the reading thread, and time spent by this thread
+		// waiting for it
+		AtomicLong busy = new AtomicLong();
+		long waiting = 0;
+		long start = System.nanoTime();
+
+		ExecutorService reader = Executors.newSingleThreadExecutor();
+
+		try {
+			Future<PreparedSlice> next = reader.submit(
+				new PrepareSlice(params, stack, 1, busy));
+			BinaryProcessor prevSeg = null;
+
+			for (int i = 1; i <= stackSize; ++i) {
+				IJ.log("Processing slice " + i);
+				IJ.showStatus("Processing slice " + i + "/" + stackSize);
+
+				long t = System.nanoTime();
+				PreparedSlice slice = next.get();
+				waiting += System.nanoTime() - t;
+				if (i < stackSize) {
+					next = reader.submit(
+						new PrepareSlice(params, stack, i + 1, busy));
+				}
+
+				BinaryProcessor init;
+				if (prevSeg != null) {
+					init = prevSeg;
+				}
+				else {
+					init = Initialiser.getInitialisation(
+						imp, slice.im, params.initMethod);
+					if (init == null) {
+						reportStopped(i);
+						return;
+					}
+				}
+				slice.speed.initialise(init);
+
+				if (params.displayInit) {
+					updateInitDisplay(init);
+				}
+
+				BinaryProcessor seg = levelset(params, slice.im, init,
+											   slice.speed, true);
+				if (seg == null) {
+					reportStopped(i);
+					return;
+				}
+				prevSeg = seg;
+
+				updateSegDisplay(seg);
+			}
+		}
+		catch (InterruptedException e) {
+			IJ.log("Interrupted");
+			Thread.currentThread().interrupt();
+			return;
+		}
+		catch (ExecutionException e) {
+			IJ.log(e.getCause().toString());
+			e.getCause().printStackTrace();
+			if (e.getCause() instanceof Error) {
+				throw (Error)e.getCause();
+			}
+			return;
+		}
+		finally {
+			reader.shutdownNow();
+		}
+
+		IJ.log("Pipeline: total time " +
+			   IJ.d2s((System.nanoTime() - start) / 1e6) +
+			   " ms, reading " + IJ.d2s(busy.get() / 1e6) +
+			   " ms, waiting for reading " + IJ.d2s(waiting / 1e6) +
+			   " ms, saved " + IJ.d2s((busy.get() - waiting) / 1e6) + " ms");
+	}
+
+	/**
+	 * Segment a stack as a single volume
+	 * @param stack The image stack
+	 * @param params The plugin parameters
+	 */
+	protected void runVolume(ImageStack stack, Parameters params) {
+		int stackSize = stack.getSize();
+		ImageStack init = imp.createEmptyStack();
+
+		// stack.getProcessor(i) uses 1-based indexing
+		for (int i = 1; i <= stackSize; ++i) {
+			BinaryProcessor sliceInit = Initialiser.getInitialisation(
+				imp, stack.getProcessor(i), params.initMethod);
+			if (sliceInit == null) {
+				return;
+			}
+			init.addSlice(sliceInit);
+		}
+
+		if (params.displayInit) {
+			impInit = new ImagePlus(imp.getShortTitle() + " Initialisation",
+									init);
+			impInit.setCalibration(imp.getCalibration());
+			impInit.show();
+		}
+
+		SpeedField3D speed = SpeedFieldFactory.create3D(
+			params.sfmethod, stack, init, params.hsfparams);
+		FastLevelSet3D fls = new FastLevelSet3D(params.lsparams, stack, init,
+												speed);
+		fls.setLog(log);
+		fls.setCancellationToken(cancel);
+		fls.addIterationListener(new ProgressReporter());
+
+		if (!fls.segment()) {
+			reportCancelled();
+			return;
+		}
+
+		impSeg = new ImagePlus(imp.getShortTitle() + " Segmentation",
+							   fls.getSegmentation());
+		impSeg.setCalibration(imp.getCalibration());
+		impSeg.show();
 	}
 
 	private void updateInitDisplay(BinaryProcessor init) {
@@ -222,11 +744,13 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 
 		String initCbStr[] = {
 			"Initialise from previous segmentation (stacks only)",
-			"Display initialisation (in new window)"};
+			"Display initialisation (in new window)",
+			"Segment stack as a 3D volume"};
 		boolean initCbDef[] = {
 			params.initFromPrevious,
-			params.displayInit};
-		gd.addCheckboxGroup(2, 1, initCbStr, initCbDef);
+			params.displayInit,
+			params.volume};
+		gd.addCheckboxGroup(3, 1, initCbStr, initCbDef);
 
 		gd.addMessage(FastLevelSet_PluginStrings.format(
 						  FastLevelSet_PluginStrings.levelSetParameters,
@@ -235,12 +759,17 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 		gd.addNumericField("Iterations", lsp.maxIterations, 0);
 		gd.addNumericField("Speed_sub-iterations", lsp.speedIterations, 0);
 		gd.addNumericField("Smooth_sub-iterations", lsp.smoothIterations, 0);
+		gd.addNumericField("Convergence_tolerance (fraction of boundary)",
+						   lsp.convergenceTolerance, 3);
 
 		// I've never had to change these two
 		//gd.addNumericField("Smoothing_kernel_width", lsp.gaussWidth, 0);
 		//gd.addNumericField("Smoothing_kernel_sigma", lsp.gaussSigma, 2);
 
 		gd.addCheckbox("Display_progress (may be slower)", params.plotProgress);
+		gd.addNumericField("Threads", params.threads, 0);
+		gd.addCheckbox("Parallel_level_set (experimental)",
+					   params.parallelLevelSet);
 
 		LinkedList<String> sfmethods = new LinkedList<String>();
 		for (SpeedFieldFactory.SfMethod e :
@@ -250,10 +779,27 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 
 		gd.addChoice("Field_type", sfmethods.toArray(new String[0]),
 					 sfmethods.get(0));
+		gd.addCheckbox("Separate_regions (Chan Vese only)", params.multiRegion);
 
 		gd.addMessage("Hybrid speed field parameters");
 		gd.addNumericField("Local_radius", hsfp.neighbourhoodRadius, 0);
 		//gd.addNumericField("Intensity_cut-off", hsfp.cutoffIntensity, 0);
+		gd.addCheckbox("Volume_integral_images (3D only, ~20 bytes per voxel)",
+					   hsfp.useVolumeIntegralImages);
+
+		gd.addMessage("Edge speed field parameters");
+		gd.addNumericField("Edge_scale (0 for automatic)",
+						   params.esfparams.edgeScale, 2);
+		gd.addCheckbox("Expand_away_from_edges", params.esfparams.expand);
+
+		int nChannels = imp.getNChannels();
+		if (nChannels > 1) {
+			gd.addMessage("Multi-channel parameters");
+			gd.addCheckbox("Combine_all_channels (Chan Vese only)",
+						   params.allChannels);
+			gd.addStringField("Channel_weights (blank for equal)",
+							  formatWeights(params.channelWeights), 20);
+		}
 
 		gd.showDialog();
 		if (gd.wasCanceled()) {
@@ -265,22 +811,186 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 		params.initMethod = initMethods[gd.getNextChoiceIndex()];
 		params.initFromPrevious = gd.getNextBoolean();
 		params.displayInit = gd.getNextBoolean();
+		params.volume = gd.getNextBoolean();
 
 		lsp.maxIterations = (int)gd.getNextNumber();
 		lsp.speedIterations = (int)gd.getNextNumber();
 		lsp.smoothIterations = (int)gd.getNextNumber();
+		lsp.convergenceTolerance = gd.getNextNumber();
 		//lsp.gaussWidth = (int)gd.getNextNumber();
 		//lsp.gaussSigma = gd.getNextNumber();
 
 		params.plotProgress = gd.getNextBoolean();
+		params.threads = Math.max((int)gd.getNextNumber(), 1);
+		params.parallelLevelSet = gd.getNextBoolean();
 
 		params.sfmethod = sfmethods.get(gd.getNextChoiceIndex());
+		params.multiRegion = gd.getNextBoolean();
+		if (params.multiRegion &&
+			SpeedFieldFactory.SfMethod.fromValue(params.sfmethod) !=
+			SpeedFieldFactory.SfMethod.CHAN_VESE) {
+			IJ.log("Separate regions are only supported by the Chan Vese " +
+				   "speed field, ignoring");
+			params.multiRegion = false;
+		}
 
 		hsfp.neighbourhoodRadius = (int)gd.getNextNumber();
+		hsfp.useVolumeIntegralImages = gd.getNextBoolean();
+
+		params.esfparams.edgeScale = gd.getNextNumber();
+		params.esfparams.expand = gd.getNextBoolean();
+		params.esfparams.threads = params.threads;
+
+		if (nChannels > 1) {
+			params.allChannels = gd.getNextBoolean();
+			String weights = gd.getNextString();
+			try {
+				params.channelWeights = parseWeights(weights, nChannels);
+			}
+			catch (IllegalArgumentException e) {
+				IJ.error("FastLevelSet error", e.getMessage());
+				return false;
+			}
+
+			if (params.allChannels &&
+				SpeedFieldFactory.SfMethod.fromValue(params.sfmethod) !=
+				SpeedFieldFactory.SfMethod.CHAN_VESE) {
+				IJ.log("Channels can only be combined by the Chan Vese " +
+					   "speed field, segmenting each channel separately");
+				params.allChannels = false;
+			}
+			if (params.allChannels && params.multiRegion) {
+				IJ.log("Separate regions are not supported when combining " +
+					   "channels, ignoring");
+				params.multiRegion = false;
+			}
+		}
+		else {
+			params.allChannels = false;
+		}
 
 		return true;
 	}
 
+	/**
+	 * Parse a list of channel weights
+	 * @param s Comma or space separated weights, blank for equal weights
+	 * @param n The number of channels
+	 * @return The weights, or null for equal weights
+	 * @throws IllegalArgumentException if the weights are invalid
+	 */
+	protected static double[] parseWeights(String s, int n) {
+		s = s.trim();
+		if (s.isEmpty()) {
+			return null;
+		}
+		String[] tokens = s.split("[,\\s]+");
+		if (tokens.length != n) {
+			throw new IllegalArgumentException(
+				"Expected " + n + " channel weights, got " + tokens.length);
+		}
+		double[] weights = new double[n];
+		for (int c = 0; c < n; ++c) {
+			try {
+				weights[c] = Double.parseDouble(tokens[c]);
+			}
+			catch (NumberFormatException e) {
+				throw new IllegalArgumentException(
+					"Invalid channel weight: " + tokens[c]);
+			}
+			if (weights[c] < 0) {
+				throw new IllegalArgumentException(
+					"Channel weights must not be negative");
+			}
+		}
+		return weights;
+	}
+
+	/**
+	 * Format a list of channel weights for the dialog
+	 * @param weights The weights, may be null
+	 * @return The comma separated weights, blank if null
+	 */
+	protected static String formatWeights(double[] weights) {
+		if (weights == null) {
+			return "";
+		}
+		StringBuilder sb = new StringBuilder();
+		for (int c = 0; c < weights.length; ++c) {
+			sb.append(c == 0 ? "" : ",");
+			sb.append(weights[c]);
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Writes level set messages to the ImageJ log window, errors are shown
+	 * in a dialog
+	 */
+	public static class IJLog extends LevelSetLog {
+		/**
+		 * @param level The most verbose level which is written
+		 */
+		public IJLog(Level level) {
+			super(level);
+		}
+
+		protected void write(Level l, String msg) {
+			if (l == Level.ERROR) {
+				IJ.error("FastLevelSet error", msg);
+			}
+			else {
+				IJ.log(msg);
+			}
+		}
+	}
+
+	/**
+	 * Cancels the segmentation when escape is pressed. This stays cancelled
+	 * so every slice which is being processed stops. It is checked from
+	 * worker threads so it doesn't report anything, see reportCancelled().
+	 */
+	public static class EscapeCancellation implements CancellationToken {
+		private volatile boolean cancelled = false;
+
+		public boolean isCancelled() {
+			if (!cancelled && IJ.escapePressed()) {
+				IJ.resetEscape();
+				cancelled = true;
+			}
+			return cancelled;
+		}
+
+		/**
+		 * Has escape been pressed? Unlike isCancelled() this doesn't check
+		 * the keyboard.
+		 * @return true if a segmentation has been cancelled
+		 */
+		public boolean wasCancelled() {
+			return cancelled;
+		}
+	}
+
+	/**
+	 * Report that the segmentation stopped before the end of the stack
+	 * @param slice The first slice which wasn't segmented
+	 */
+	protected void reportStopped(int slice) {
+		IJ.log("Stopped at slice " + slice);
+		reportCancelled();
+	}
+
+	/**
+	 * Tell the user if the segmentation was cancelled. This is only called
+	 * on the plugin thread, so the user is told once however many slices
+	 * were being segmented.
+	 */
+	protected void reportCancelled() {
+		if (cancel != null && cancel.wasCancelled()) {
+			IJ.error("FastLevelSet error", "Escape pressed, terminating.");
+		}
+	}
+
 	protected class ProgressReporter implements LevelSetIterationListener {
 		public void fullIteration(int full, int fullT) {
 			//IJ.log("Completed iteration: " + full + "/" + fullT);
@@ -306,21 +1016,71 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 	 * @param init The binary initialisation
 	 * @param hsfp The hybrid speed field parameters (may be null)
 	 * @params addparams Additional algorithm/plugin parameters
-	 * @return The binary segmentation
+	 * @return The binary segmentation, null if cancelled
 	 */
 	protected BinaryProcessor levelset(Parameters params, ImageProcessor im,
 									   BinaryProcessor init) {
+		return levelset(params, im, init, true);
+	}
+
+	/**
+	 * Run the fast level set
+	 * @param params The fast level set parameters
+	 * @param im The image to be segmented
+	 * @param init The binary initialisation
+	 * @param display If true show progress, must be false if this isn't
+	 *        called from the plugin thread
+	 * @return The binary segmentation, null if cancelled
+	 */
+	protected BinaryProcessor levelset(Parameters params, ImageProcessor im,
+									   BinaryProcessor init, boolean display) {
+		return levelset(params, im, init, null, display);
+	}
+
+	/**
+	 * Run the fast level set
+	 * @param params The fast level set parameters
+	 * @param im The image to be segmented
+	 * @param init The binary initialisation
+	 * @param speed The initialised speed field, or null to create it
+	 * @param display If true show progress, must be false if this isn't
+	 *        called from the plugin thread
+	 * @return The binary segmentation, null if cancelled
+	 */
+	protected BinaryProcessor levelset(Parameters params, ImageProcessor im,
+									   BinaryProcessor init, SpeedField speed,
+									   boolean display) {
 		assert params != null;
 		assert im != null;
 		assert init != null;
 
-		SpeedField speed = SpeedFieldFactory.create(params.sfmethod, im, init,
-													params.hsfparams);
+		if (params.multiRegion) {
+			return multiLevelset(params, im, init, display);
+		}
 
-		FastLevelSet fls = new FastLevelSet(params.lsparams, im, init, speed);
-		fls.addIterationListener(new ProgressReporter());
+		if (speed == null) {
+			speed = SpeedFieldFactory.create(params.sfmethod, im, init,
+											 params.hsfparams,
+											 params.esfparams);
+		}
 
-		if (params.plotProgress) {
+		FastLevelSet fls;
+		if (pool != null) {
+			fls = new ParallelFastLevelSet(params.lsparams, im, init, speed,
+										   pool, true);
+		}
+		else {
+			fls = new FastLevelSet(params.lsparams, im, init, speed);
+		}
+		fls.setLog(log);
+		if (cancel != null) {
+			fls.setCancellationToken(cancel);
+		}
+		if (display) {
+			fls.addIterationListener(new ProgressReporter());
+		}
+
+		if (display && params.plotProgress) {
 			if (lsDisplay == null) {
 				lsDisplay = new LevelSetListDisplay(im, true);
 			}
@@ -331,13 +1091,45 @@ public class FastLevelSet_Plugin implements PlugInFilter {
 			fls.addListListener(lsDisplay);
 		}
 
-		boolean b = fls.segment();
-
-		if (!b) {
-			IJ.error("Segmentation failed");
+		if (!fls.segment()) {
+			// Cancelled, this may be a worker thread so the caller reports it
 			return null;
 		}
 		return fls.getSegmentation();
 	}
-}
 
+	/**
+	 * Run the multi-region level set, each 4-connected component of the
+	 * initialisation is a separate region
+	 * @param params The fast level set parameters
+	 * @param im The image to be segmented
+	 * @param init The binary initialisation
+	 * @param display If true show progress, must be false if this isn't
+	 *        called from the plugin thread
+	 * @return The binary segmentation, touching regions are separated by a
+	 *         background pixel, null if cancelled
+	 */
+	protected BinaryProcessor multiLevelset(Parameters params,
+											ImageProcessor im,
+											BinaryProcessor init,
+											boolean display) {
+		ConnectedComponents cc = new ConnectedComponents(init);
+		cc.labelRuns4();
+
+		MultiFastLevelSet mfls = new MultiFastLevelSet(
+			params.lsparams, im, cc.getLabelImage());
+		mfls.setLog(log);
+		if (cancel != null) {
+			mfls.setCancellationToken(cancel);
+		}
+		if (display) {
+			mfls.addIterationListener(new ProgressReporter());
+		}
+
+		if (!mfls.segment()) {
+			// Cancelled, reported once by the caller as for levelset()
+			return null;
+		}
+		return mfls.getSegmentation();
+	}
+}
@@ -1,22 +1,27 @@
 package ijfls;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
 import ij.*;
-import ij.gui.Roi;
-import ij.measure.Measurements;
+import ij.gui.GenericDialog;
 import ij.measure.ResultsTable;
-import ij.plugin.filter.Analyzer;
 import ij.plugin.filter.PlugInFilter;
 import ij.process.*;
-import ijfls.measure.MeasureSegmentation;
+import ijfls.connect.SliceTasks;
+import ijfls.measure.RegionMeasurements;
 
 
 /**
  * MeasureSegmentation_Plugin
  *
  * Obtain measurements from a segmentation.
- * At the moment this just returns the fitted ellipse parameters for a stack.
+ * Each connected region in each slice of a binary segmentation is measured
+ * separately. 16-bit and 32-bit images are treated as label images and each
+ * label is measured as it is, so touching regions stay separate. See
+ * RegionMeasurements for the measurements. Slices can be measured in
+ * parallel, and all results are added to the results table at the end.
  *
- * TODO: If multiple regions are present analyse them separately
  * TODO: Obtain projected measurements for a kymograph
  */
 public class MeasureSegmentation_Plugin implements PlugInFilter {
@@ -27,79 +32,116 @@ public class MeasureSegmentation_Plugin implements PlugInFilter {
 	protected ImagePlus imp;
 
 	/**
-	 * The Analyzer object which calculates the measurements
+	 * The connectivity used to separate regions, 4 or 8
 	 */
-	Analyzer an;
+	protected int connectivity = 8;
+
+	/**
+	 * The number of threads used to measure slices
+	 */
+	protected int threads = 1;
 
 	public int setup(String arg, ImagePlus imp) {
 		this.imp = imp;
-		return DOES_8G;
+		return DOES_8G + DOES_16 + DOES_32;
 	}
 
 	public void run(ImageProcessor ip) {
 		ImageStack stack = imp.getStack();
 		int stackSize = stack.getSize();
 
-		initialiseAnalyser();
+		if (!getUserParameters()) {
+			return;
+		}
 
+		List<RegionMeasurements> measurements;
 		try {
-			// stack.getProcessor(i) uses 1-based indexing
-			for (int i = 1; i <= stackSize; ++i) {
-				IJ.log("Measuring slice " + i);
-				IJ.showStatus("Measuring slice " + i + "/" + stackSize);
-
-				getMeasurements(imp, i);
-			}
+			measurements = measureSlices(stack);
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			IJ.log("Interrupted");
+			return;
 		}
 		catch (Error e) {
 			IJ.log(e.getMessage());
 			e.printStackTrace();
 			throw e;
 		}
+
+		ResultsTable rt = new ResultsTable();
+		for (int i = 0; i < stackSize; ++i) {
+			measurements.get(i).addToTable(rt, i + 1, imp.getCalibration());
+		}
+		rt.show("Results");
 	}
 
 	/**
-	 * Create the Analyser object for calculating measurements
+	 * Ask the user for the parameters
+	 * @return false if the dialog was cancelled
 	 */
-	void initialiseAnalyser() {
-		// Partial explanation of available measurements:
-		// http://imagejdocu.tudor.lu/doku.php?id=gui:analyze:set_measurements
-		int[] measures = {
-			Measurements.AREA,
-			Measurements.ELLIPSE,
-			Measurements.FERET,
-			//Measurements.MEAN,
-			//Measurements.MIN_MAX,
-			Measurements.PERIMETER
-		};
-
-		int ms = 0;
-		for (int m : measures) {
-			ms += m;
+	boolean getUserParameters() {
+		GenericDialog gd = new GenericDialog("Measure segmentation");
+		String[] c = { "4", "8" };
+		gd.addChoice("Connectivity (binary images)", c,
+					 String.valueOf(connectivity));
+		gd.addNumericField("Threads", threads, 0);
+
+		gd.showDialog();
+		if (gd.wasCanceled()) {
+			return false;
 		}
 
-		an = new Analyzer(imp, ms, new ResultsTable());
+		connectivity = Integer.parseInt(gd.getNextChoice());
+		threads = Math.max((int)gd.getNextNumber(), 1);
+		return true;
 	}
 
 	/**
-	 * Convert the binary segmentation into an ROI, and get shape measurements
-	 * TODO: Fit an ellipse to a segmentation
-	 * TODO: Consider handling multiple regions separately
-	 * TOOD: Combine segmentation and original image to get intensity
-	 *       measurements
-	 * @param imp The ImagePlus object holding the segmentation
-	 * @param slice The slice index
+	 * Measure the regions in a slice
+	 * @param seg A binary segmentation, or a 16-bit or 32-bit label image
+	 * @return The measurements
 	 */
-	void getMeasurements(ImagePlus imp, int slice) {
-		imp.setSlice(slice);
-		ImageProcessor seg = imp.getProcessor();
-		MeasureSegmentation ms = new MeasureSegmentation();
+	RegionMeasurements measureSlice(ImageProcessor seg) {
+		if (seg instanceof ByteProcessor) {
+			return RegionMeasurements.measure(seg, connectivity);
+		}
+		return RegionMeasurements.measureLabels(seg);
+	}
+
+	/**
+	 * Measure the regions in every slice, using a pool of threads if
+	 * threads is greater than 1
+	 * @param stack The segmentation stack
+	 * @return The measurements of each slice in order
+	 */
+	List<RegionMeasurements> measureSlices(ImageStack stack)
+		throws InterruptedException {
+		int stackSize = stack.getSize();
+		List<RegionMeasurements> measurements =
+			new ArrayList<RegionMeasurements>();
 
-		Roi roi = ms.segmentationToRoi(seg);
-		imp.setRoi(roi);
+		if (threads <= 1 || stackSize <= 1) {
+			// stack.getProcessor(i) uses 1-based indexing
+			for (int i = 1; i <= stackSize; ++i) {
+				IJ.showStatus("Measuring slice " + i + "/" + stackSize);
+				measurements.add(measureSlice(stack.getProcessor(i)));
+			}
+			return measurements;
+		}
 
-		an.measure();
-		an.displayResults();
+		IJ.log("Measuring " + stackSize + " slices using " + threads +
+			   " threads");
+		List<Callable<RegionMeasurements>> tasks =
+			new ArrayList<Callable<RegionMeasurements>>();
+		for (int i = 1; i <= stackSize; ++i) {
+			final ImageProcessor seg = stack.getProcessor(i);
+			tasks.add(new Callable<RegionMeasurements>() {
+				public RegionMeasurements call() {
+					return measureSlice(seg);
+				}
+			});
+		}
+		return SliceTasks.run(tasks, threads, "Measuring slice");
 	}
 }
-
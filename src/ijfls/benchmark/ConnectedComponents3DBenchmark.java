@@ -0,0 +1,104 @@
+package ijfls.benchmark;
+
+import ij.IJ;
+import ij.ImageStack;
+
+import ijfls.connect.ConnectedComponents3D;
+
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Measure how ConnectedComponents3D scales with the number of threads on a
+ * synthetic volume, and check the result is identical to the
+ * single-threaded scan.
+ */
+public class ConnectedComponents3DBenchmark {
+	/**
+	 * Create a volume of randomly placed overlapping boxes, so components
+	 * span several slices
+	 * @param w Width
+	 * @param h Height
+	 * @param d Depth
+	 * @param seed Random number seed
+	 * @return The binary stack
+	 */
+	public static ImageStack createVolume(int w, int h, int d, long seed) {
+		Random rand = new Random(seed);
+		byte[][] slices = new byte[d][w * h];
+		int nboxes = w * h * d / 2000;
+
+		for (int n = 0; n < nboxes; ++n) {
+			int bx = rand.nextInt(w);
+			int by = rand.nextInt(h);
+			int bz = rand.nextInt(d);
+			int r = 1 + rand.nextInt(4);
+			for (int z = Math.max(bz - r, 0); z < Math.min(bz + r, d); ++z) {
+				for (int y = Math.max(by - r, 0); y < Math.min(by + r, h);
+					 ++y) {
+					for (int x = Math.max(bx - r, 0); x < Math.min(bx + r, w);
+						 ++x) {
+						slices[z][y * w + x] = (byte)255;
+					}
+				}
+			}
+		}
+
+		ImageStack stack = new ImageStack(w, h);
+		for (byte[] s : slices) {
+			stack.addSlice(null, s);
+		}
+		return stack;
+	}
+
+	/**
+	 * Check two label volumes are identical
+	 * @param a The first volume
+	 * @param b The second volume
+	 * @return true if they are the same
+	 */
+	private static boolean same(int[][] a, int[][] b) {
+		for (int z = 0; z < a.length; ++z) {
+			if (!Arrays.equals(a[z], b[z])) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Args: [size] [depth] [maxThreads] [connectivity] [runs]
+	 */
+	public static void main(String[] args) throws InterruptedException {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 512;
+		int depth = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+		int maxThreads = args.length > 2 ? Integer.parseInt(args[2]) : 8;
+		int connectivity = args.length > 3 ? Integer.parseInt(args[3]) : 6;
+		int runs = args.length > 4 ? Integer.parseInt(args[4]) : 3;
+
+		ImageStack stack = createVolume(size, size, depth, 1);
+		ConnectedComponents3D ref = new ConnectedComponents3D(stack);
+		int n = ref.labelComponents(connectivity);
+		System.out.println("Volume: " + size + "x" + size + "x" + depth +
+						   " connectivity: " + connectivity +
+						   " components: " + n + " cores: " +
+						   Runtime.getRuntime().availableProcessors());
+
+		for (int threads = 1; threads <= maxThreads; threads *= 2) {
+			double ms = 0;
+			boolean identical = true;
+			for (int r = 0; r < runs; ++r) {
+				ConnectedComponents3D cc = new ConnectedComponents3D(stack);
+				long start = System.nanoTime();
+				cc.labelComponents(connectivity, threads);
+				ms += (System.nanoTime() - start) / 1e6;
+				identical &= cc.getNumComponents() == n &&
+					same(ref.getLabels(), cc.getLabels());
+			}
+			System.out.println("Threads: " + threads + " time: " +
+							   IJ.d2s(ms / runs) + " ms" +
+							   (identical ? "" : " DIFFERENT"));
+		}
+	}
+}
@@ -0,0 +1,281 @@
+package ijfls.benchmark;
+
+import ij.IJ;
+import ij.process.*;
+
+import ijfls.connect.ConnectedComponents;
+import ijfls.connect.UnionFind;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Random;
+
+
+/**
+ * Measure the throughput and allocations of ConnectedComponents on a large
+ * synthetic mask, compared with the previous implementation which used one
+ * UnionFind<Integer> object per provisional label. Both pixel-based and
+ * run-based labelling are measured.
+ */
+public class ConnectedComponentsBenchmark {
+	/**
+	 * Create a mask containing a grid of combs. Each comb has a horizontal
+	 * bar at the bottom and a row of teeth, so every tooth gets a
+	 * provisional label which has to be merged when the bar is reached.
+	 * @param size Width and height of the mask
+	 * @param cell Width and height of the grid cell holding each comb
+	 * @param teeth Number of teeth in each comb
+	 * @param seed Random number seed, used to vary the tooth lengths
+	 * @return The mask
+	 */
+	public static BinaryProcessor createMask(int size, int cell, int teeth,
+											 long seed) {
+		Random rand = new Random(seed);
+		ByteProcessor bp = new ByteProcessor(size, size);
+		byte[] pixels = (byte[])bp.getPixels();
+		int pitch = (cell - 2) / teeth;
+
+		for (int cy = 0; cy + cell <= size; cy += cell) {
+			for (int cx = 0; cx + cell <= size; cx += cell) {
+				int bar = cy + cell - 3;
+				for (int x = cx + 1; x < cx + cell - 1; ++x) {
+					pixels[bar * size + x] = (byte)255;
+				}
+				for (int t = 0; t < teeth; ++t) {
+					int x = cx + 1 + t * pitch;
+					int top = cy + 1 + rand.nextInt(cell / 2);
+					for (int y = top; y < bar; ++y) {
+						pixels[y * size + x] = (byte)255;
+					}
+				}
+			}
+		}
+
+		return new BinaryProcessor(bp);
+	}
+
+	/**
+	 * Create a sparse mask containing randomly placed discs
+	 * @param size Width and height of the mask
+	 * @param ndiscs The number of discs
+	 * @param radius The radius of each disc
+	 * @param seed Random number seed
+	 * @return The mask
+	 */
+	public static BinaryProcessor createDiscMask(int size, int ndiscs,
+												 int radius, long seed) {
+		Random rand = new Random(seed);
+		ByteProcessor bp = new ByteProcessor(size, size);
+		byte[] pixels = (byte[])bp.getPixels();
+
+		for (int n = 0; n < ndiscs; ++n) {
+			int cx = rand.nextInt(size);
+			int cy = rand.nextInt(size);
+			for (int y = Math.max(cy - radius, 0);
+				 y <= Math.min(cy + radius, size - 1); ++y) {
+				int dy = y - cy;
+				int dx = (int)Math.sqrt(radius * radius - dy * dy);
+				for (int x = Math.max(cx - dx, 0);
+					 x <= Math.min(cx + dx, size - 1); ++x) {
+					pixels[y * size + x] = (byte)255;
+				}
+			}
+		}
+
+		return new BinaryProcessor(bp);
+	}
+
+	/**
+	 * The previous labelling implementation, kept for comparison
+	 * @param binim The mask
+	 * @return The label image
+	 * @throws ArithmeticException if there are more than Short.MAX_VALUE
+	 *         provisional labels
+	 */
+	public static ShortProcessor labelObjects(BinaryProcessor binim) {
+		int w = binim.getWidth();
+		int h = binim.getHeight();
+		ShortProcessor labelim = new ShortProcessor(w, h);
+		ArrayList<UnionFind<Integer>> regions =
+			new ArrayList<UnionFind<Integer>>();
+		regions.add(new UnionFind<Integer>(0));
+
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				if (binim.get(x, y) != 0) {
+					int lwest = x == 0 ? 0 : labelim.get(x - 1, y);
+					int lnorth = y == 0 ? 0 : labelim.get(x, y - 1);
+
+					if (lwest != 0) {
+						labelim.set(x, y, lwest);
+						if (lnorth > 0 && lnorth != lwest) {
+							UnionFind.union(regions.get(lwest),
+											regions.get(lnorth));
+						}
+					}
+					else if (lnorth != 0) {
+						labelim.set(x, y, lnorth);
+					}
+					else {
+						if (regions.size() > Short.MAX_VALUE) {
+							throw new ArithmeticException(
+								"Maximum number of labels (" +
+								Short.MAX_VALUE + ") exceeded");
+						}
+						labelim.set(x, y, regions.size());
+						regions.add(new UnionFind<Integer>(regions.size()));
+					}
+				}
+			}
+		}
+
+		int[] newLabels = new int[regions.size()];
+		Arrays.fill(newLabels, -1);
+		int n = -1;
+		for (UnionFind<Integer> r : regions) {
+			int root = r.getRootLabel();
+			if (newLabels[root] == -1) {
+				newLabels[root] = ++n;
+			}
+			newLabels[r.getOrigLabel()] = newLabels[root];
+		}
+
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				labelim.set(x, y, newLabels[labelim.get(x, y)]);
+			}
+		}
+		return labelim;
+	}
+
+	/**
+	 * Get the number of bytes allocated by this thread
+	 * @return The number of bytes, or -1 if not supported by the JVM
+	 */
+	private static long allocatedBytes() {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean)bean)
+				.getThreadAllocatedBytes(Thread.currentThread().getId());
+		}
+		return -1;
+	}
+
+	/**
+	 * Print the timing of one labelling method
+	 * @param name The name of the method
+	 * @param ms The total time in milliseconds
+	 * @param bytes The total number of bytes allocated
+	 * @param mpix The number of pixels in the mask in millions
+	 * @param runs The number of runs
+	 */
+	private static void report(String name, double ms, long bytes,
+							   double mpix, int runs) {
+		System.out.println(name + ": " + IJ.d2s(ms / runs) + " ms " +
+						   IJ.d2s(mpix * runs * 1000 / ms) +
+						   " Mpixel/s allocated: " +
+						   IJ.d2s(bytes / runs / 1e6) + " MB");
+	}
+
+	/**
+	 * Args: [size] [runs] [comb|discs]
+	 */
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 8192;
+		int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+		String type = args.length > 2 ? args[2] : "comb";
+
+		// The comb mask keeps the number of provisional labels below
+		// Short.MAX_VALUE so the previous implementation can be compared
+		BinaryProcessor mask;
+		if (type.equals("discs")) {
+			mask = createDiscMask(size, 20000, size / 512, 1);
+			System.out.println("Mask: " + size + "x" + size + " discs");
+		}
+		else {
+			int cell = 128;
+			int teeth = Math.max(
+				Short.MAX_VALUE / ((size / cell) * (size / cell)), 1);
+			mask = createMask(size, cell, teeth, 1);
+			System.out.println("Mask: " + size + "x" + size +
+							   " teeth per comb: " + teeth);
+		}
+
+		boolean legacy = true;
+		ConnectedComponents ref = new ConnectedComponents(mask);
+		int ncomponents = ref.labelComponents4();
+		try {
+			ShortProcessor old = labelObjects(mask);
+			if (!Arrays.equals((short[])old.getPixels(),
+							   (short[])ref.getLabelImage().getPixels())) {
+				System.out.println("Label images differ");
+			}
+		}
+		catch (ArithmeticException e) {
+			System.out.println("UnionFind<Integer>: " + e.getMessage());
+			legacy = false;
+		}
+		ConnectedComponents warmup = new ConnectedComponents(mask);
+		warmup.labelRuns4();
+		if (!Arrays.equals(ref.getLabels(), warmup.getLabels())) {
+			System.out.println("Run label images differ");
+		}
+		System.out.println("Components: " + ncomponents + " runs: " +
+						   warmup.getRuns().size());
+		ref = null;
+		warmup = null;
+
+		double oldMs = 0, newMs = 0, runMs = 0, paintMs = 0, statsMs = 0;
+		long oldBytes = 0, newBytes = 0, runBytes = 0, paintBytes = 0;
+		long statsBytes = 0;
+		for (int i = 0; i < runs; ++i) {
+			long bytes, start;
+			if (legacy) {
+				bytes = allocatedBytes();
+				start = System.nanoTime();
+				labelObjects(mask);
+				oldMs += (System.nanoTime() - start) / 1e6;
+				oldBytes += allocatedBytes() - bytes;
+			}
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			new ConnectedComponents(mask).labelComponents4();
+			newMs += (System.nanoTime() - start) / 1e6;
+			newBytes += allocatedBytes() - bytes;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			ConnectedComponents cc = new ConnectedComponents(mask);
+			cc.labelRuns4();
+			runMs += (System.nanoTime() - start) / 1e6;
+			runBytes += allocatedBytes() - bytes;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			cc.getLabels();
+			paintMs += (System.nanoTime() - start) / 1e6;
+			paintBytes += allocatedBytes() - bytes;
+
+			bytes = allocatedBytes();
+			start = System.nanoTime();
+			cc = new ConnectedComponents(mask);
+			cc.setStatistics(true, null);
+			cc.labelRuns4();
+			statsMs += (System.nanoTime() - start) / 1e6;
+			statsBytes += allocatedBytes() - bytes;
+		}
+
+		double mpix = (double)size * size / 1e6;
+		if (legacy) {
+			report("UnionFind<Integer>", oldMs, oldBytes, mpix, runs);
+		}
+		report("IntUnionFind", newMs, newBytes, mpix, runs);
+		report("Runs", runMs, runBytes, mpix, runs);
+		report("Runs + label image", runMs + paintMs, runBytes + paintBytes,
+			   mpix, runs);
+		report("Runs + statistics", statsMs, statsBytes, mpix, runs);
+	}
+}
@@ -0,0 +1,124 @@
+package ijfls.benchmark;
+
+import ij.IJ;
+import ij.ImagePlus;
+import ij.ImageStack;
+import ij.process.*;
+
+import ijfls.FastLevelSet_Plugin;
+import ijfls.levelset.*;
+
+
+/**
+ * Time the fast level set on every slice of an image without running
+ * ImageJ, and optionally compare the segmentation with a reference.
+ *
+ * The reference can be created by running this class with an earlier
+ * version of the level set, which makes it possible to check that
+ * optimisations do not change the result.
+ */
+public class FastLevelSetBenchmark {
+	/**
+	 * Number of untimed runs used to warm up the JIT
+	 */
+	private static final int WARMUP_RUNS = 2;
+
+	/**
+	 * Segment every slice of a stack
+	 * @param params The plugin parameters
+	 * @param imp The images to be segmented
+	 * @return The segmentations, one slice per input slice
+	 */
+	public static ImageStack segmentStack(FastLevelSet_Plugin.Parameters params,
+										  ImagePlus imp) {
+		ImageStack stack = imp.getStack();
+		ImageStack segs = new ImageStack(stack.getWidth(), stack.getHeight());
+
+		for (int i = 1; i <= stack.getSize(); ++i) {
+			ImageProcessor im = stack.getProcessor(i);
+			BinaryProcessor init = Initialiser.getInitialisation(
+				imp, im, params.initMethod);
+			SpeedField speed = SpeedFieldFactory.create(
+				params.sfmethod, im, init, params.hsfparams);
+			FastLevelSet fls = new FastLevelSet(
+				params.lsparams, im, init, speed);
+			fls.segment();
+			segs.addSlice(fls.getSegmentation());
+		}
+
+		return segs;
+	}
+
+	/**
+	 * Count the number of pixels which differ between two stacks
+	 * @param a The first stack
+	 * @param b The second stack
+	 * @return The number of differing pixels
+	 */
+	public static long countDifferences(ImageStack a, ImageStack b) {
+		if (a.getWidth() != b.getWidth() || a.getHeight() != b.getHeight() ||
+			a.getSize() != b.getSize()) {
+			return -1;
+		}
+
+		long ndiff = 0;
+		for (int z = 1; z <= a.getSize(); ++z) {
+			ImageProcessor pa = a.getProcessor(z);
+			ImageProcessor pb = b.getProcessor(z);
+			for (int y = 0; y < a.getHeight(); ++y) {
+				for (int x = 0; x < a.getWidth(); ++x) {
+					if ((pa.get(x, y) != 0) != (pb.get(x, y) != 0)) {
+						++ndiff;
+					}
+				}
+			}
+		}
+		return ndiff;
+	}
+
+	/**
+	 * Args: image.file speedfield runs [reference.tif|-] [output.tif]
+	 * speedfield is one of CHAN_VESE or HYBRID
+	 */
+	public static void main(String[] args) {
+		if (args.length < 3) {
+			System.err.println(
+				"Expected args: image.file CHAN_VESE|HYBRID runs " +
+				"[reference.tif|-] [output.tif]");
+			return;
+		}
+
+		ImagePlus imp = IJ.openImage(args[0]);
+		FastLevelSet_Plugin.Parameters params =
+			new FastLevelSet_Plugin.Parameters();
+		params.sfmethod =
+			SpeedFieldFactory.SfMethod.valueOf(args[1]).toString();
+		params.initMethod = "Default";
+		int runs = Integer.parseInt(args[2]);
+
+		ImageStack segs = null;
+		for (int i = 0; i < WARMUP_RUNS; ++i) {
+			segs = segmentStack(params, imp);
+		}
+
+		long start = System.nanoTime();
+		for (int i = 0; i < runs; ++i) {
+			segs = segmentStack(params, imp);
+		}
+		double ms = (System.nanoTime() - start) / 1e6 / runs;
+
+		System.out.println("Benchmark: " + args[1] + " slices:" +
+						   imp.getStackSize() + " mean time per run: " +
+						   IJ.d2s(ms) + " ms");
+
+		if (args.length > 3 && !args[3].equals("-")) {
+			ImagePlus ref = IJ.openImage(args[3]);
+			System.out.println("Pixels differing from reference: " +
+							   countDifferences(ref.getStack(), segs));
+		}
+
+		if (args.length > 4) {
+			IJ.saveAsTiff(new ImagePlus("segmentation", segs), args[4]);
+		}
+	}
+}
@@ -0,0 +1,171 @@
+package ijfls.benchmark;
+
+import ij.IJ;
+import ij.process.*;
+
+import ijfls.FastLevelSet_Plugin;
+import ijfls.levelset.*;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+
+
+/**
+ * Measure how ParallelFastLevelSet scales with the number of threads on a
+ * large synthetic image, and check the deterministic mode gives the same
+ * result as FastLevelSet.
+ */
+public class ParallelFastLevelSetBenchmark {
+	/**
+	 * Create a synthetic image of bright discs on a noisy background
+	 * @param size Width and height of the image
+	 * @param ndiscs Number of discs
+	 * @param seed Random number seed
+	 * @return The image
+	 */
+	public static ShortProcessor createImage(int size, int ndiscs, long seed) {
+		Random rand = new Random(seed);
+		ShortProcessor im = new ShortProcessor(size, size);
+		short[] pixels = (short[])im.getPixels();
+
+		for (int i = 0; i < pixels.length; ++i) {
+			pixels[i] = (short)(200 + 40 * rand.nextGaussian());
+		}
+
+		for (int d = 0; d < ndiscs; ++d) {
+			int r = 10 + rand.nextInt(size / 32 + 1);
+			int cx = rand.nextInt(size);
+			int cy = rand.nextInt(size);
+			for (int y = Math.max(cy - r, 0); y < Math.min(cy + r, size); ++y) {
+				for (int x = Math.max(cx - r, 0); x < Math.min(cx + r, size);
+					 ++x) {
+					if ((x - cx) * (x - cx) + (y - cy) * (y - cy) < r * r) {
+						pixels[y * size + x] =
+							(short)(800 + 40 * rand.nextGaussian());
+					}
+				}
+			}
+		}
+
+		return im;
+	}
+
+	/**
+	 * Create an initialisation which is a coarse grid of squares, so the
+	 * level set has to move a long way
+	 * @param size Width and height of the image
+	 * @return The initialisation
+	 */
+	public static BinaryProcessor createInit(int size) {
+		BinaryProcessor init = new BinaryProcessor(
+			new ByteProcessor(size, size));
+		for (int y = 0; y < size; ++y) {
+			for (int x = 0; x < size; ++x) {
+				if ((x / 64) % 2 == 0 && (y / 64) % 2 == 0) {
+					init.set(x, y, 255);
+				}
+			}
+		}
+		return init;
+	}
+
+	/**
+	 * Segment the image
+	 * @param params The plugin parameters
+	 * @param im The image
+	 * @param init The initialisation
+	 * @param pool The threads to use, null for FastLevelSet
+	 * @param deterministic Passed to ParallelFastLevelSet
+	 * @return The segmentation
+	 */
+	public static BinaryProcessor segment(FastLevelSet_Plugin.Parameters params,
+										  ImageProcessor im,
+										  BinaryProcessor init,
+										  ForkJoinPool pool,
+										  boolean deterministic) {
+		SpeedField speed = SpeedFieldFactory.create(
+			params.sfmethod, im, init, params.hsfparams);
+		FastLevelSet fls;
+		if (pool == null) {
+			fls = new FastLevelSet(params.lsparams, im, init, speed);
+		}
+		else {
+			fls = new ParallelFastLevelSet(params.lsparams, im, init, speed,
+										   pool, deterministic);
+		}
+		fls.segment();
+		return fls.getSegmentation();
+	}
+
+	/**
+	 * Count the number of pixels which differ between two segmentations
+	 */
+	private static int countDifferences(BinaryProcessor a, BinaryProcessor b) {
+		byte[] pa = (byte[])a.getPixels();
+		byte[] pb = (byte[])b.getPixels();
+		int ndiff = 0;
+		for (int i = 0; i < pa.length; ++i) {
+			if (pa[i] != pb[i]) {
+				++ndiff;
+			}
+		}
+		return ndiff;
+	}
+
+	/**
+	 * Args: [size] [maxThreads] [CHAN_VESE|HYBRID]
+	 */
+	public static void main(String[] args) {
+		int size = args.length > 0 ? Integer.parseInt(args[0]) : 4096;
+		int maxThreads = args.length > 1 ? Integer.parseInt(args[1]) :
+			Runtime.getRuntime().availableProcessors();
+		String method = args.length > 2 ? args[2] : "CHAN_VESE";
+
+		FastLevelSet_Plugin.Parameters params =
+			new FastLevelSet_Plugin.Parameters();
+		params.sfmethod = SpeedFieldFactory.SfMethod.valueOf(method).toString();
+
+		ShortProcessor im = createImage(size, size / 8, 1);
+		BinaryProcessor init = createInit(size);
+
+		// Warm up
+		segment(params, im, init, null, true);
+		ForkJoinPool warmup = new ForkJoinPool(maxThreads);
+		segment(params, im, init, warmup, true);
+		warmup.shutdown();
+
+		long start = System.nanoTime();
+		BinaryProcessor ref = segment(params, im, init, null, true);
+		double serialMs = (System.nanoTime() - start) / 1e6;
+
+		StringBuilder report = new StringBuilder();
+		report.append("Image: " + size + "x" + size + " " + method + "\n");
+		report.append("FastLevelSet: " + IJ.d2s(serialMs) + " ms\n");
+
+		// Powers of 2, and maxThreads
+		List<Integer> threadCounts = new ArrayList<Integer>();
+		for (int t = 1; t < maxThreads; t *= 2) {
+			threadCounts.add(t);
+		}
+		threadCounts.add(maxThreads);
+
+		for (int threads : threadCounts) {
+			ForkJoinPool pool = new ForkJoinPool(threads);
+			for (boolean det : new boolean[]{true, false}) {
+				start = System.nanoTime();
+				BinaryProcessor seg = segment(params, im, init, pool, det);
+				double ms = (System.nanoTime() - start) / 1e6;
+				report.append("threads: " + threads +
+							  (det ? " deterministic" : " relaxed") +
+							  " time: " + IJ.d2s(ms) + " ms speedup: " +
+							  IJ.d2s(serialMs / ms) + " differing pixels: " +
+							  countDifferences(ref, seg) + "\n");
+			}
+			pool.shutdown();
+		}
+
+		System.out.print(report);
+	}
+}
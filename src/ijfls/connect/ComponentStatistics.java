@@ -0,0 +1,429 @@
+package ijfls.connect;
+
+import java.awt.Rectangle;
+import ij.process.ImageProcessor;
+
+
+/**
+ * Per-component statistics accumulated while labelling.
+ *
+ * Each component has an area, bounding box, the sums needed for the
+ * centroid and second moments, and optionally the sum and sum of squares
+ * of the intensities of a companion image. The sums are held in primitive
+ * arrays indexed by label, and two components can be merged by adding
+ * their sums, so statistics can be collected for provisional labels and
+ * combined once the equivalences between them are known.
+ *
+ * Coordinates are those of the pixel centres, (x + 0.5, y + 0.5), as used
+ * by ImageJ's measurements.
+ */
+public class ComponentStatistics {
+	/**
+	 * The number of pixels in each component
+	 */
+	private long[] area;
+
+	/**
+	 * The bounding box of each component, inclusive
+	 */
+	private int[] minX, minY, maxX, maxY;
+
+	/**
+	 * The sums of the pixel coordinates, and of their products
+	 */
+	private double[] sumX, sumY, sumXX, sumXY, sumYY;
+
+	/**
+	 * The sums of the intensities and their squares, null if there is no
+	 * intensity image
+	 */
+	private double[] sumI, sumII;
+
+	/**
+	 * The intensity image, null if intensities aren't measured
+	 */
+	private final ImageProcessor intensity;
+
+	/**
+	 * The number of components
+	 */
+	private int size;
+
+	/**
+	 * Create an empty set of statistics
+	 * @param capacity The initial capacity, the arrays grow as needed
+	 * @param intensity The image from which intensities are measured, or
+	 *        null to only measure shape
+	 */
+	public ComponentStatistics(int capacity, ImageProcessor intensity) {
+		this.intensity = intensity;
+		allocate(Math.max(capacity, 1));
+		size = 0;
+	}
+
+	/**
+	 * Allocate or grow the arrays
+	 * @param n The new capacity
+	 */
+	private void allocate(int n) {
+		area = grow(area, n);
+		minX = grow(minX, n);
+		minY = grow(minY, n);
+		maxX = grow(maxX, n);
+		maxY = grow(maxY, n);
+		sumX = grow(sumX, n);
+		sumY = grow(sumY, n);
+		sumXX = grow(sumXX, n);
+		sumXY = grow(sumXY, n);
+		sumYY = grow(sumYY, n);
+		if (intensity != null) {
+			sumI = grow(sumI, n);
+			sumII = grow(sumII, n);
+		}
+	}
+
+	/**
+	 * Copy an array into a larger one
+	 * @param a The array, may be null
+	 * @param n The new length
+	 * @return The new array
+	 */
+	private long[] grow(long[] a, int n) {
+		long[] b = new long[n];
+		if (a != null) {
+			System.arraycopy(a, 0, b, 0, size);
+		}
+		return b;
+	}
+
+	/**
+	 * Copy an array into a larger one
+	 * @param a The array, may be null
+	 * @param n The new length
+	 * @return The new array
+	 */
+	private int[] grow(int[] a, int n) {
+		int[] b = new int[n];
+		if (a != null) {
+			System.arraycopy(a, 0, b, 0, size);
+		}
+		return b;
+	}
+
+	/**
+	 * Copy an array into a larger one
+	 * @param a The array, may be null
+	 * @param n The new length
+	 * @return The new array
+	 */
+	private double[] grow(double[] a, int n) {
+		double[] b = new double[n];
+		if (a != null) {
+			System.arraycopy(a, 0, b, 0, size);
+		}
+		return b;
+	}
+
+	/**
+	 * Add an empty component
+	 * @return The label of the new component, equal to the previous size()
+	 */
+	public int add() {
+		if (size == area.length) {
+			allocate(area.length * 2);
+		}
+		minX[size] = Integer.MAX_VALUE;
+		minY[size] = Integer.MAX_VALUE;
+		maxX[size] = Integer.MIN_VALUE;
+		maxY[size] = Integer.MIN_VALUE;
+		return size++;
+	}
+
+	/**
+	 * Get the number of components, including the background label 0
+	 * @return the number of components
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Whether intensities are measured
+	 * @return true if there is an intensity image
+	 */
+	public boolean hasIntensity() {
+		return intensity != null;
+	}
+
+	/**
+	 * Add a pixel to a component
+	 * @param label The component
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 */
+	void addPixel(int label, int x, int y) {
+		++area[label];
+		if (x < minX[label]) {
+			minX[label] = x;
+		}
+		if (x > maxX[label]) {
+			maxX[label] = x;
+		}
+		if (y < minY[label]) {
+			minY[label] = y;
+		}
+		if (y > maxY[label]) {
+			maxY[label] = y;
+		}
+		sumX[label] += x;
+		sumY[label] += y;
+		sumXX[label] += (double)x * x;
+		sumXY[label] += (double)x * y;
+		sumYY[label] += (double)y * y;
+
+		if (intensity != null) {
+			double v = intensity.getf(x, y);
+			sumI[label] += v;
+			sumII[label] += v * v;
+		}
+	}
+
+	/**
+	 * Add a horizontal run of pixels to a component. The coordinate sums
+	 * are calculated in closed form, only intensities need a loop.
+	 * @param label The component
+	 * @param y The row
+	 * @param start The first pixel
+	 * @param end One past the last pixel
+	 */
+	void addRun(int label, int y, int start, int end) {
+		int n = end - start;
+		area[label] += n;
+		if (start < minX[label]) {
+			minX[label] = start;
+		}
+		if (end - 1 > maxX[label]) {
+			maxX[label] = end - 1;
+		}
+		if (y < minY[label]) {
+			minY[label] = y;
+		}
+		if (y > maxY[label]) {
+			maxY[label] = y;
+		}
+
+		// sum x = n(start + end - 1) / 2, sum x^2 = S(end) - S(start) where
+		// S(k) = 0^2 + ... + (k-1)^2
+		double sx = 0.5 * n * ((double)start + end - 1);
+		sumX[label] += sx;
+		sumY[label] += (double)n * y;
+		sumXX[label] += sumOfSquares(end) - sumOfSquares(start);
+		sumXY[label] += sx * y;
+		sumYY[label] += (double)n * y * y;
+
+		if (intensity != null) {
+			double si = 0;
+			double sii = 0;
+			for (int x = start; x < end; ++x) {
+				double v = intensity.getf(x, y);
+				si += v;
+				sii += v * v;
+			}
+			sumI[label] += si;
+			sumII[label] += sii;
+		}
+	}
+
+	/**
+	 * Sum the squares 0..k-1
+	 * @param k The number of terms
+	 * @return the sum
+	 */
+	private static double sumOfSquares(int k) {
+		return (double)k * (k - 1) * (2.0 * k - 1) / 6;
+	}
+
+	/**
+	 * Add the statistics of a component to one of this object's components
+	 * @param src The source statistics
+	 * @param from The source component
+	 * @param into The component in this object which is updated
+	 */
+	private void mergeFrom(ComponentStatistics src, int from, int into) {
+		if (src.area[from] == 0) {
+			return;
+		}
+		area[into] += src.area[from];
+		minX[into] = Math.min(minX[into], src.minX[from]);
+		minY[into] = Math.min(minY[into], src.minY[from]);
+		maxX[into] = Math.max(maxX[into], src.maxX[from]);
+		maxY[into] = Math.max(maxY[into], src.maxY[from]);
+		sumX[into] += src.sumX[from];
+		sumY[into] += src.sumY[from];
+		sumXX[into] += src.sumXX[from];
+		sumXY[into] += src.sumXY[from];
+		sumYY[into] += src.sumYY[from];
+		if (intensity != null) {
+			sumI[into] += src.sumI[from];
+			sumII[into] += src.sumII[from];
+		}
+	}
+
+	/**
+	 * Combine the statistics of provisional labels into final labels
+	 * @param newLabels The final label of each provisional label
+	 * @param n The number of final labels, excluding background
+	 * @return New statistics for labels 0..n
+	 */
+	ComponentStatistics relabel(int[] newLabels, int n) {
+		ComponentStatistics merged = new ComponentStatistics(n + 1, intensity);
+		for (int l = 0; l <= n; ++l) {
+			merged.add();
+		}
+		for (int r = 0; r < size; ++r) {
+			merged.mergeFrom(this, r, newLabels[r]);
+		}
+		return merged;
+	}
+
+	/**
+	 * Calculate the statistics of labelled runs
+	 * @param runs The runs, labelled 1..n
+	 * @param n The largest label
+	 * @param intensity The image from which intensities are measured, or
+	 *        null to only measure shape
+	 * @return The statistics of labels 0..n, label 0 is empty
+	 */
+	public static ComponentStatistics fromRuns(RunList runs, int n,
+											   ImageProcessor intensity) {
+		ComponentStatistics stats = new ComponentStatistics(n + 1, intensity);
+		for (int l = 0; l <= n; ++l) {
+			stats.add();
+		}
+		for (int r = 0; r < runs.size(); ++r) {
+			stats.addRun(runs.getLabel(r), runs.getRow(r), runs.getStart(r),
+						 runs.getEnd(r));
+		}
+		return stats;
+	}
+
+	/**
+	 * Get the area of a component
+	 * @param label The component
+	 * @return the number of pixels
+	 */
+	public long getArea(int label) {
+		return area[label];
+	}
+
+	/**
+	 * Get the bounding box of a component
+	 * @param label The component
+	 * @return the smallest rectangle containing every pixel, or null if
+	 *         the component is empty
+	 */
+	public Rectangle getBounds(int label) {
+		if (area[label] == 0) {
+			return null;
+		}
+		return new Rectangle(minX[label], minY[label],
+							 maxX[label] - minX[label] + 1,
+							 maxY[label] - minY[label] + 1);
+	}
+
+	/**
+	 * Get the x coordinate of the centroid of a component
+	 * @param label The component
+	 * @return the mean x coordinate of the pixel centres
+	 */
+	public double getCentroidX(int label) {
+		return sumX[label] / area[label] + 0.5;
+	}
+
+	/**
+	 * Get the y coordinate of the centroid of a component
+	 * @param label The component
+	 * @return the mean y coordinate of the pixel centres
+	 */
+	public double getCentroidY(int label) {
+		return sumY[label] / area[label] + 0.5;
+	}
+
+	/**
+	 * Get the central second moment in x of a component
+	 * @param label The component
+	 * @return the variance of the x coordinates of the pixel centres
+	 */
+	public double getMxx(int label) {
+		double mx = sumX[label] / area[label];
+		return sumXX[label] / area[label] - mx * mx;
+	}
+
+	/**
+	 * Get the central second moment in y of a component
+	 * @param label The component
+	 * @return the variance of the y coordinates of the pixel centres
+	 */
+	public double getMyy(int label) {
+		double my = sumY[label] / area[label];
+		return sumYY[label] / area[label] - my * my;
+	}
+
+	/**
+	 * Get the central mixed second moment of a component
+	 * @param label The component
+	 * @return the covariance of the x and y coordinates of the pixel centres
+	 */
+	public double getMxy(int label) {
+		double mx = sumX[label] / area[label];
+		double my = sumY[label] / area[label];
+		return sumXY[label] / area[label] - mx * my;
+	}
+
+	/**
+	 * Get the sum of the intensities of a component
+	 * @param label The component
+	 * @return the sum of the intensities
+	 * @throws IllegalStateException if there is no intensity image
+	 */
+	public double getIntensitySum(int label) {
+		checkIntensity();
+		return sumI[label];
+	}
+
+	/**
+	 * Get the mean intensity of a component
+	 * @param label The component
+	 * @return the mean intensity
+	 * @throws IllegalStateException if there is no intensity image
+	 */
+	public double getMeanIntensity(int label) {
+		checkIntensity();
+		return sumI[label] / area[label];
+	}
+
+	/**
+	 * Get the standard deviation of the intensities of a component
+	 * @param label The component
+	 * @return the sample standard deviation, 0 for a single pixel
+	 * @throws IllegalStateException if there is no intensity image
+	 */
+	public double getStdDevIntensity(int label) {
+		checkIntensity();
+		long n = area[label];
+		if (n < 2) {
+			return 0;
+		}
+		double var = (sumII[label] - sumI[label] * sumI[label] / n) / (n - 1);
+		return Math.sqrt(Math.max(var, 0));
+	}
+
+	/**
+	 * Check intensities are being measured
+	 */
+	private void checkIntensity() {
+		if (intensity == null) {
+			throw new IllegalStateException("No intensity image");
+		}
+	}
+}
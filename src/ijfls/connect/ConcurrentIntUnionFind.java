@@ -0,0 +1,136 @@
+package ijfls.connect;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+
+/**
+ * A thread-safe union-find for the integers 0..n-1, see IntUnionFind.
+ *
+ * union() and findRoot() are lock-free: roots are linked with compare and
+ * set, always attaching the root with the larger index to the smaller one,
+ * and paths are shortened by path halving which is safe if another thread
+ * gets there first. Elements are reserved in blocks by add(), which is the
+ * only synchronised method. The parents are held in fixed size chunks so
+ * reserving more elements doesn't move existing ones.
+ */
+public class ConcurrentIntUnionFind {
+	/**
+	 * log2 of the number of elements in each chunk
+	 */
+	private static final int CHUNK_BITS = 16;
+
+	/**
+	 * Mask for the index within a chunk
+	 */
+	private static final int CHUNK_MASK = (1 << CHUNK_BITS) - 1;
+
+	/**
+	 * The parent of each element, roots are their own parent
+	 */
+	private volatile AtomicIntegerArray[] chunks = new AtomicIntegerArray[0];
+
+	/**
+	 * The number of elements
+	 */
+	private int size = 0;
+
+	/**
+	 * Reserve a block of new elements, each in its own component
+	 * @param n The number of elements
+	 * @return The first new element, the block is [first, first + n)
+	 */
+	public synchronized int add(int n) {
+		int first = size;
+		int last = size + n;
+		int nchunks = (last + CHUNK_MASK) >>> CHUNK_BITS;
+
+		AtomicIntegerArray[] c = chunks;
+		if (nchunks > c.length) {
+			c = Arrays.copyOf(c, nchunks);
+			for (int i = chunks.length; i < nchunks; ++i) {
+				c[i] = new AtomicIntegerArray(1 << CHUNK_BITS);
+			}
+		}
+		for (int i = first; i < last; ++i) {
+			c[i >>> CHUNK_BITS].set(i & CHUNK_MASK, i);
+		}
+
+		size = last;
+		chunks = c;
+		return first;
+	}
+
+	/**
+	 * Get the number of elements
+	 * @return the number of elements
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * Get the parent of an element
+	 * @param x An element
+	 * @return The parent of x
+	 */
+	private int parent(int x) {
+		return chunks[x >>> CHUNK_BITS].get(x & CHUNK_MASK);
+	}
+
+	/**
+	 * Atomically set the parent of an element
+	 * @param x An element
+	 * @param expect The expected current parent
+	 * @param update The new parent
+	 * @return true if successful
+	 */
+	private boolean casParent(int x, int expect, int update) {
+		return chunks[x >>> CHUNK_BITS].compareAndSet(
+			x & CHUNK_MASK, expect, update);
+	}
+
+	/**
+	 * Merge two components
+	 * @param x An element
+	 * @param y Another element
+	 * @return The root of the merged component at the time of merging
+	 */
+	public int union(int x, int y) {
+		while (true) {
+			x = findRoot(x);
+			y = findRoot(y);
+			if (x == y) {
+				return x;
+			}
+
+			// Link the larger root to the smaller root, if x is no longer a
+			// root another thread has changed it so try again
+			if (x < y) {
+				int tmp = x;
+				x = y;
+				y = tmp;
+			}
+			if (casParent(x, x, y)) {
+				return y;
+			}
+		}
+	}
+
+	/**
+	 * Search for the root of a tree, making every other node on the path
+	 * point to its grandparent
+	 * @param x An element
+	 * @return The root of the tree containing x
+	 */
+	public int findRoot(int x) {
+		int p = parent(x);
+		while (p != x) {
+			int gp = parent(p);
+			casParent(x, p, gp);
+			x = gp;
+			p = parent(x);
+		}
+		return x;
+	}
+}
@@ -1,13 +1,32 @@
 package ijfls.connect;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import ij.ImagePlus;
 import ij.ImageStack;
+import ij.io.FileSaver;
 import ij.process.*;
-import ij.IJ;
 
 
 /**
  * Trace components across consecutive slices
+ *
+ * Each label l in slice z is given a global index offsets[z] + l, so the
+ * correspondences between slices can be stored as primitive arrays and
+ * merged with an IntUnionFind.
+ *
+ * Slices are read one at a time, and only the current and previous slice
+ * are held while finding the correspondences. connectSlices(SliceWriter)
+ * streams the relabelled slices to a writer instead of keeping them, so
+ * with a virtual stack as input the memory used is proportional to a slice
+ * plus the number of labels rather than to the volume. forBinaryStack()
+ * labels each slice of a binary stack as it's read and keeps the
+ * provisional labels in a file for the relabelling pass.
  */
 public class ConnectSlices {
 	/**
@@ -70,35 +89,85 @@ public class ConnectSlices {
 	}
 
 	/**
-	 * A modified UnionFind class that contains an additional field to hold
-	 * the reordered pruned label
+	 * Indicator for the forward (i to i+1) and backward (i to i-1) maps
+	 */
+	public enum MapDirection { FORWARD, BACKWARD };
+
+	/**
+	 * Receives the relabelled slices from connectSlices(SliceWriter)
+	 */
+	public interface SliceWriter {
+		/**
+		 * Write a relabelled slice, slices are written in order
+		 * @param z The slice index (1-based)
+		 * @param labels The labels, 16-bit or 32-bit (float) depending on
+		 *        the number of components
+		 * @throws IOException if the slice couldn't be written
+		 */
+		void writeSlice(int z, ImageProcessor labels) throws IOException;
+	}
+
+	/**
+	 * Writes each slice to a numbered TIFF file in a directory, which can
+	 * be opened as a virtual stack using File>Import>Image Sequence
 	 */
-	private static class UnionFindSL extends UnionFind<SliceLabel> {
+	public static class TiffSequenceWriter implements SliceWriter {
+		/**
+		 * The output directory
+		 */
+		private final File dir;
+
 		/**
-		 * The modified label after pruning and reordering. -1 indicates unset.
+		 * The prefix of each file name
 		 */
-		public int newLabel = -1;
+		private final String prefix;
 
 		/**
-		 * Constructor, just calls super()
+		 * Create a new writer
+		 * @param dir The output directory, created if necessary
+		 * @param prefix The prefix of each file name
 		 */
-		public UnionFindSL(SliceLabel sl) {
-			super(sl);
+		public TiffSequenceWriter(File dir, String prefix) {
+			this.dir = dir;
+			this.prefix = prefix;
+		}
+
+		public void writeSlice(int z, ImageProcessor labels)
+			throws IOException {
+			if (!dir.isDirectory() && !dir.mkdirs()) {
+				throw new IOException("Unable to create directory: " + dir);
+			}
+			File f = new File(dir, String.format("%s%05d.tif", prefix, z));
+			ImagePlus imp = new ImagePlus(f.getName(), labels);
+			if (!new FileSaver(imp).saveAsTiff(f.getPath())) {
+				throw new IOException("Unable to write: " + f);
+			}
 		}
 	}
 
 	/**
-	 * The overall list of components (in 3D) found so far
+	 * The global index of label 0 in each slice (1-based, so offsets[0] is
+	 * unused). Label l of slice z has the global index offsets[z] + l,
+	 * global index 0 is the background.
 	 */
-	private NavigableMap<SliceLabel, UnionFindSL> regions;
+	private int[] offsets;
 
 	/**
-	 * Indicator for the forward (i to i+1) and backward (i to i-1) maps
+	 * Whether each global index is used by a label in the input
 	 */
-	public enum MapDirection { FORWARD, BACKWARD };
+	private boolean[] present;
+
+	/**
+	 * The correspondences between labels in slice z and slice z+1, indexed
+	 * by z (1-based, so [0] and [depth] are empty). Each pair of labels is
+	 * stored as ((long)label in z << 32) | label in z+1, sorted and without
+	 * duplicates.
+	 */
+	private long[][] edges;
 
 	/**
-	 * A mapping of labels in slice(i) to slice(i+1).
+	 * A mapping of labels in slice(i) to slice(i+1), created from edges
+	 * when first requested.
 	 * fwdLabelMap.get(SliceLabel(i,j)) returns the set of labels in slice(i+1)
 	 * corresponding to label j in slice(i).
 	 * Last element will be empty.
@@ -106,7 +175,8 @@ public class ConnectSlices {
 	private NavigableMap<SliceLabel, TreeSet<Integer>> fwdLabelMap;
 
 	/**
-	 * A mapping of labels in slice(i) to slice(i-1).
+	 * A mapping of labels in slice(i) to slice(i-1), created from edges
+	 * when first requested.
 	 * First element will be empty.
 	 */
 	private NavigableMap<SliceLabel, TreeSet<Integer>> bwdLabelMap;
@@ -122,30 +192,65 @@ public class ConnectSlices {
 	 */
 	private int ncomponents;
 
+	/**
+	 * The binary input if created by forBinaryStack(), otherwise null
+	 */
+	private ImageStack binStack;
+
+	/**
+	 * The file holding the provisional labels of a binary input
+	 */
+	private File provisionalFile;
+
+	/**
+	 * The open provisional label file
+	 */
+	private FileChannel provisional;
+
+	/**
+	 * The number of slices written to the provisional label file
+	 */
+	private int provisionalSlices;
+
+	/**
+	 * Create a class for labelling a binary stack slice by slice. Each slice
+	 * is labelled using ConnectedComponents.labelComponents4() the first
+	 * time it's read, and the provisional labels are written to a file which
+	 * is read back when relabelling. Together with connectSlices(SliceWriter)
+	 * this labels a stack using 6-connectivity without holding more than
+	 * two slices in memory.
+	 * @param binStack The binary image stack, for instance a VirtualStack
+	 * @param provisionalFile The file used to hold the provisional labels,
+	 *        it will be overwritten, and deleted once the slices have been
+	 *        connected
+	 * @return A new ConnectSlices
+	 */
+	public static ConnectSlices forBinaryStack(ImageStack binStack,
+											   File provisionalFile) {
+		ConnectSlices cs = new ConnectSlices(binStack);
+		cs.labelIms = null;
+		cs.binStack = binStack;
+		cs.provisionalFile = provisionalFile;
+		return cs;
+	}
+
 	/**
 	 * Create a new class for finding connected components in an image
 	 * @param labelIms An image stack consisting of images which were
-	 *        independently labelled using ConnectedComponents
+	 *        independently labelled using ConnectedComponents, either 16-bit
+	 *        or 32-bit (float)
 	 */
 	public ConnectSlices(ImageStack labelIms) {
 		this.labelIms = labelIms;
 		size[0] = labelIms.getWidth();
 		size[1] = labelIms.getHeight();
 		size[2] = labelIms.getSize();
-
-		fwdLabelMap = new TreeMap<SliceLabel, TreeSet<Integer>>();
-		bwdLabelMap = new TreeMap<SliceLabel, TreeSet<Integer>>();
-
-		// Add a dummy region with label 0 to account for background when
-		// colouring
-		regions = new TreeMap<SliceLabel, UnionFindSL>();
-		SliceLabel sl = new SliceLabel(0, 0);
-		regions.put(sl, new UnionFindSL(sl));
 		ncomponents = 0;
 	}
 
 	/**
-	 * Gets the mapping of region labels between slices
+	 * Gets the mapping of region labels between slices. The map is created
+	 * the first time it's requested after connectSlices() has been called.
 	 * @param dir Whether to get the forward (slice i to slice i+1) or
 	 *        backward (slice i to i-1) mapping
 	 * @return The correspondance between labels of consecutive slices.
@@ -156,14 +261,58 @@ public class ConnectSlices {
 	public NavigableMap<SliceLabel, TreeSet<Integer>> getSliceLabelMap(
 		MapDirection dir) {
 		if (dir == MapDirection.FORWARD) {
+			if (fwdLabelMap == null) {
+				fwdLabelMap = createSliceLabelMap(dir);
+			}
 			return fwdLabelMap;
 		}
+		if (bwdLabelMap == null) {
+			bwdLabelMap = createSliceLabelMap(dir);
+		}
 		return bwdLabelMap;
 	}
 
+	/**
+	 * Create the mapping of region labels between slices from the edges
+	 * @param dir Whether to create the forward or backward mapping
+	 * @return The mapping, empty if connectSlices() hasn't been called
+	 */
+	private NavigableMap<SliceLabel, TreeSet<Integer>> createSliceLabelMap(
+		MapDirection dir) {
+		NavigableMap<SliceLabel, TreeSet<Integer>> m =
+			new TreeMap<SliceLabel, TreeSet<Integer>>();
+		if (edges == null) {
+			return m;
+		}
+
+		for (int z = 1; z <= size[2]; ++z) {
+			for (int l = 1; l <= offsets[z + 1] - offsets[z]; ++l) {
+				if (present[offsets[z] + l]) {
+					m.put(new SliceLabel(z, l), new TreeSet<Integer>());
+				}
+			}
+		}
+
+		for (int z = 1; z < size[2]; ++z) {
+			for (long e : edges[z]) {
+				int p = (int)(e >>> 32);
+				int q = (int)e;
+				if (dir == MapDirection.FORWARD) {
+					m.get(new SliceLabel(z, p)).add(q);
+				}
+				else {
+					m.get(new SliceLabel(z + 1, q)).add(p);
+				}
+			}
+		}
+		return m;
+	}
+
 	/**
 	 * Get the relabelled image stack
-	 * @return the image stack relabelled across slices
+	 * @return the image stack relabelled across slices, 16-bit if there are
+	 *         at most ConnectedComponents.MAX_SHORT_LABEL components,
+	 *         otherwise 32-bit (float)
 	 */
 	public ImageStack getRelabelStack() {
 		return relabelStack;
@@ -184,82 +333,237 @@ public class ConnectSlices {
 	 */
 	public int connectSlices() {
 		relabelStack = new ImageStack(size[0], size[1]);
-
-		// [0..N] inclusive to ensure keys are added for the end images
-		// (remember stacks use 1-based indexing)
-		for (int i = 0; i <= size[2]; ++i) {
-			connectSlicePair(i, i + 1);
+		try {
+			connectSlices(new SliceWriter() {
+				public void writeSlice(int z, ImageProcessor labels) {
+					relabelStack.addSlice(labels);
+				}
+			});
 		}
+		catch (IOException e) {
+			// Only possible when using a provisional label file
+			throw new RuntimeException(e);
+		}
+		return ncomponents;
+	}
 
-		create3DRegionLabels();
-		pruneLabels();
+	/**
+	 * Connect slices, passing each relabelled slice to a writer instead of
+	 * keeping them. getRelabelStack() and getColouredLabels() can't be used
+	 * afterwards.
+	 * @param out Receives the relabelled slices in order
+	 * @return The number of components
+	 * @throws IOException if a slice couldn't be read or written
+	 */
+	public int connectSlices(SliceWriter out) throws IOException {
+		fwdLabelMap = null;
+		bwdLabelMap = null;
+
+		try {
+			findCorrespondences();
+			IntUnionFind regions = create3DRegionLabels();
+			pruneLabels(regions, out);
+		}
+		finally {
+			closeProvisional();
+		}
 		return ncomponents;
 	}
 
 	/**
-	 * Trace the components two slice(i) and slice(j)
-	 * If i or j are out of range then empty keys are added to the maps
-	 * @param i index of the first slice
-	 * @param j index of the second slice
+	 * Read each slice in turn, and find the labels which overlap the
+	 * previous slice
+	 * @throws IOException if a slice couldn't be read
 	 */
-	private void connectSlicePair(int i, int j) {
-		ImageProcessor labels1 = null;
-		ImageProcessor labels2 = null;
-		if (i >= 1 && i <= size[2]) {
-			labels1 = labelIms.getProcessor(i);
+	private void findCorrespondences() throws IOException {
+		int d = size[2];
+		offsets = new int[d + 2];
+		edges = new long[d + 1][];
+		edges[0] = new long[0];
+		edges[d] = new long[0];
+		boolean[][] presentBySlice = new boolean[d + 1][];
+
+		// Stacks use 1-based indexing
+		int[] prev = null;
+		for (int z = 1; z <= d; ++z) {
+			int[] labels = readLabels(z, null);
+			int maxLabel = 0;
+			for (int l : labels) {
+				maxLabel = Math.max(maxLabel, l);
+			}
+			presentBySlice[z] = new boolean[maxLabel + 1];
+			for (int l : labels) {
+				presentBySlice[z][l] = true;
+			}
+			offsets[z + 1] = offsets[z] + maxLabel;
+
+			if (prev != null) {
+				edges[z - 1] = connectSlicePair(prev, labels);
+			}
+			prev = labels;
 		}
-		if (j >= 1 && j <= size[2]) {
-			labels2 = labelIms.getProcessor(j);
+
+		present = new boolean[offsets[d + 1] + 1];
+		for (int z = 1; z <= d; ++z) {
+			for (int l = 1; l < presentBySlice[z].length; ++l) {
+				present[offsets[z] + l] = presentBySlice[z][l];
+			}
 		}
+	}
 
-		for (int y = 0; y < size[1]; ++y) {
-			for (int x = 0; x < size[0]; ++x) {
-				int p = (labels1 != null) ? labels1.get(x, y) : 0;
-				int q = (labels2 != null) ? labels2.get(x, y) : 0;
+	/**
+	 * Read the labels of a slice
+	 * @param z The slice index (1-based)
+	 * @param labels An array to hold the labels, or null to create one
+	 * @return The labels
+	 * @throws IOException if the provisional label file couldn't be used
+	 */
+	private int[] readLabels(int z, int[] labels) throws IOException {
+		if (labels == null) {
+			labels = new int[size[0] * size[1]];
+		}
+		if (binStack != null) {
+			return readProvisionalLabels(z, labels);
+		}
 
-				if (p != 0) {
-					SliceLabel kp = new SliceLabel(i, p);
-					if (!fwdLabelMap.containsKey(kp)) {
-						fwdLabelMap.put(kp, new TreeSet<Integer>());
-					}
-					if (q != 0) {
-						fwdLabelMap.get(kp).add(q);
-					}
+		Object pixels = labelIms.getPixels(z);
+		if (pixels instanceof short[]) {
+			short[] s = (short[])pixels;
+			for (int i = 0; i < labels.length; ++i) {
+				labels[i] = s[i] & 0xffff;
+			}
+		}
+		else if (pixels instanceof float[]) {
+			float[] f = (float[])pixels;
+			for (int i = 0; i < labels.length; ++i) {
+				labels[i] = (int)f[i];
+			}
+		}
+		else {
+			// getf() returns the value rather than the raw bits for
+			// FloatProcessors
+			ImageProcessor ip = labelIms.getProcessor(z);
+			for (int i = 0; i < labels.length; ++i) {
+				labels[i] = (int)ip.getf(i);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Get the provisional labels of a slice of a binary input. Slices must
+	 * be labelled in order, after which they are read from the file.
+	 * @param z The slice index (1-based)
+	 * @param labels An array to hold the labels
+	 * @return The labels
+	 * @throws IOException if the provisional label file couldn't be used
+	 */
+	private int[] readProvisionalLabels(int z, int[] labels)
+		throws IOException {
+		if (provisional == null) {
+			provisional = new RandomAccessFile(provisionalFile, "rw")
+				.getChannel();
+			provisional.truncate(0);
+			provisionalSlices = 0;
+		}
+
+		ByteBuffer buf = ByteBuffer.allocate(labels.length * 4);
+		long position = (long)(z - 1) * buf.capacity();
+		IntBuffer ibuf = buf.asIntBuffer();
+
+		if (z > provisionalSlices) {
+			assert z == provisionalSlices + 1;
+			ConnectedComponents cc = new ConnectedComponents(
+				new BinaryProcessor((ByteProcessor)binStack.getProcessor(z)));
+			cc.labelComponents4();
+			System.arraycopy(cc.getLabels(), 0, labels, 0, labels.length);
+
+			ibuf.put(labels);
+			while (buf.hasRemaining()) {
+				provisional.write(buf, position + buf.position());
+			}
+			provisionalSlices = z;
+		}
+		else {
+			while (buf.hasRemaining()) {
+				if (provisional.read(buf, position + buf.position()) < 0) {
+					throw new IOException("Unexpected end of file: " +
+										  provisionalFile);
 				}
+			}
+			ibuf.get(labels);
+		}
+		return labels;
+	}
 
-				if (q != 0) {
-					SliceLabel kq = new SliceLabel(j, q);
-					if (!bwdLabelMap.containsKey(kq)) {
-						bwdLabelMap.put(kq, new TreeSet<Integer>());
-					}
-					if (p != 0) {
-						bwdLabelMap.get(kq).add(p);
+	/**
+	 * Close and delete the provisional label file if one is used
+	 * @throws IOException if the file couldn't be closed
+	 */
+	private void closeProvisional() throws IOException {
+		if (provisional != null) {
+			provisional.close();
+			provisional = null;
+			provisionalFile.delete();
+		}
+	}
+
+	/**
+	 * Find the corresponding labels in two consecutive slices
+	 * @param labels1 The labels of the first slice
+	 * @param labels2 The labels of the second slice
+	 * @return The pairs of overlapping labels, see edges
+	 */
+	private static long[] connectSlicePair(int[] labels1, int[] labels2) {
+		long[] pairs = new long[64];
+		int n = 0;
+		long last = -1;
+
+		for (int i = 0; i < labels1.length; ++i) {
+			int p = labels1[i];
+			int q = labels2[i];
+			if (p != 0 && q != 0) {
+				long e = ((long)p << 32) | q;
+				// Neighbouring pixels usually give the same pair
+				if (e != last) {
+					if (n == pairs.length) {
+						pairs = Arrays.copyOf(pairs, n * 2);
 					}
+					pairs[n++] = e;
+					last = e;
 				}
 			}
 		}
+
+		Arrays.sort(pairs, 0, n);
+		int unique = 0;
+		for (int k = 0; k < n; ++k) {
+			if (unique == 0 || pairs[k] != pairs[unique - 1]) {
+				pairs[unique++] = pairs[k];
+			}
+		}
+		return Arrays.copyOf(pairs, unique);
 	}
 
 	/**
 	 * Convert the map of labels between slices into a list of merged regions
+	 * @return The merged regions, indexed by global index
 	 */
-	private void create3DRegionLabels() {
-		// Sanity check
-		assert fwdLabelMap.keySet().equals(bwdLabelMap.keySet());
-
-		// First create empty labels for all slices and labels
-		for (SliceLabel sl: fwdLabelMap.keySet()) {
-			regions.put(sl, new UnionFindSL(sl));
+	private IntUnionFind create3DRegionLabels() {
+		int n = present.length;
+		IntUnionFind regions = new IntUnionFind(n);
+		for (int i = 0; i < n; ++i) {
+			regions.add();
 		}
 
-		// Now merge
-		for (Map.Entry<SliceLabel, TreeSet<Integer>> fromKV :
-				 fwdLabelMap.entrySet()) {
-			for (Integer i : fromKV.getValue()) {
-				SliceLabel toK = new SliceLabel(fromKV.getKey().slice + 1, i);
-				mergeRegions(fromKV.getKey(), toK);
+		for (int z = 1; z < size[2]; ++z) {
+			for (long e : edges[z]) {
+				int p = (int)(e >>> 32);
+				int q = (int)e;
+				regions.union(offsets[z] + p, offsets[z + 1] + q);
 			}
 		}
+		return regions;
 	}
 
 	/**
@@ -269,12 +573,9 @@ public class ConnectSlices {
 	 */
 	public String mapToString(MapDirection dir) {
 		StringBuilder s = new StringBuilder();
-		NavigableMap<SliceLabel, TreeSet<Integer>> m;
-		if (dir == MapDirection.FORWARD) {
-			m = fwdLabelMap;
-		}
-		else {
-			m = bwdLabelMap.descendingMap();
+		NavigableMap<SliceLabel, TreeSet<Integer>> m = getSliceLabelMap(dir);
+		if (dir == MapDirection.BACKWARD) {
+			m = m.descendingMap();
 		}
 
 		for (Map.Entry<SliceLabel, TreeSet<Integer>> kv : m.entrySet()) {
@@ -286,52 +587,69 @@ public class ConnectSlices {
 		return s.toString();
 	}
 
-	/**
-	 * Merge two regions (does not update the label image)
-	 * @param a the slice-label of the first region
-	 * @param b the slice-label of the second region
-	 */
-	private SliceLabel mergeRegions(SliceLabel a, SliceLabel b) {
-		UnionFindSL merged = (UnionFindSL)UnionFindSL.union(
-			regions.get(a), regions.get(b));
-		return merged.getRootLabel();
-	}
-
 	/**
 	 * Prune non-root labels, and create new labels that are consecutive.
 	 * Relabel the image using the pruned labels.
+	 * @param regions The merged regions, indexed by global index
+	 * @param out Receives the relabelled slices
+	 * @throws IOException if a slice couldn't be read or written
 	 */
-	private void pruneLabels() {
-		ncomponents = -1;
+	private void pruneLabels(IntUnionFind regions, SliceWriter out)
+		throws IOException {
+		// Labels are assigned in order of slice and then label
+		ncomponents = 0;
+		int[] newLabels = new int[present.length];
+		Arrays.fill(newLabels, -1);
+		newLabels[0] = 0;
 
-		for (UnionFindSL r : regions.values()) {
-			UnionFindSL root = (UnionFindSL)r.findRoot();
+		for (int r = 1; r < present.length; ++r) {
+			if (!present[r]) {
+				continue;
+			}
+			int root = regions.findRoot(r);
 
 			// If the root hasn't been relabelled yet then assign one to it
-			if (root.newLabel == -1) {
-				root.newLabel = ++ncomponents;
+			if (newLabels[root] == -1) {
+				newLabels[root] = ++ncomponents;
 			}
 			// Although this component may have been merged it's label still
-			// needs to be set because labeim still has the unmerged labels
-			r.newLabel = root.newLabel;
+			// needs to be set because the slices still have unmerged labels
+			newLabels[r] = newLabels[root];
+		}
+
+		if (ncomponents > ConnectedComponents.MAX_FLOAT_LABEL) {
+			throw new ArithmeticException(
+				"Maximum number of labels (" +
+				ConnectedComponents.MAX_FLOAT_LABEL + ") exceeded: " +
+				ncomponents);
 		}
+		boolean useFloat = ncomponents > ConnectedComponents.MAX_SHORT_LABEL;
 
+		int[] labels = null;
 		for (int z = 1; z <= size[2]; ++z) {
-			ImageProcessor sliceIn = labelIms.getProcessor(z);
-			ShortProcessor sliceOut = new ShortProcessor(size[0], size[1]);
-
-			for (int y = 0; y < size[1]; ++y) {
-				for (int x = 0; x < size[0]; ++x) {
-					int label = sliceIn.get(x, y);
-					if (label != 0) {
-						SliceLabel sl = new SliceLabel(z, label);
-						assert regions.containsKey(sl);
-						sliceOut.set(x, y, regions.get(sl).newLabel);
+			labels = readLabels(z, labels);
+			int offset = offsets[z];
+
+			if (useFloat) {
+				float[] sliceOut = new float[labels.length];
+				for (int i = 0; i < labels.length; ++i) {
+					if (labels[i] != 0) {
+						sliceOut[i] = newLabels[offset + labels[i]];
 					}
 				}
+				out.writeSlice(z, new FloatProcessor(size[0], size[1],
+													 sliceOut, null));
+			}
+			else {
+				short[] sliceOut = new short[labels.length];
+				for (int i = 0; i < labels.length; ++i) {
+					if (labels[i] != 0) {
+						sliceOut[i] = (short)newLabels[offset + labels[i]];
+					}
+				}
+				out.writeSlice(z, new ShortProcessor(size[0], size[1],
+													 sliceOut, null));
 			}
-
-			relabelStack.addSlice(sliceOut);
 		}
 	}
 
@@ -340,14 +658,19 @@ public class ConnectSlices {
 	 * @return An RGB image where each label is coloured
 	 */
 	public ImageStack getColouredLabels() {
-		ImageStack coloured = new ImageStack(size[0], size[1]);
-		for (int z = 1; z <= size[2]; ++z) {
-			coloured.addSlice(
-				ConnectedComponents.colourLabels(
-					(ShortProcessor)relabelStack.getProcessor(z), ncomponents));
-		}
-		return coloured;
+		return getColouredLabels(false, 1);
 	}
 
-}
+	/**
+	 * Get a coloured version of the label image for display purposes
+	 * @param indexed If true create an 8-bit stack with an indexed LUT
+	 *        instead of RGB, see LabelColours.colourIndexed()
+	 * @param threads The number of threads used to colour slices
+	 * @return The coloured stack
+	 */
+	public ImageStack getColouredLabels(boolean indexed, int threads) {
+		return LabelColours.colourStack(relabelStack, ncomponents, indexed,
+										threads);
+	}
 
+}
@@ -1,44 +1,59 @@
 package ijfls.connect;
 
-import java.awt.Color;
-import java.util.ArrayList;
+import java.util.Arrays;
 import ij.process.*;
 
 
 /**
  * Find the connected components in a binary image
+ *
+ * Labels are held in an int buffer so the number of components is only
+ * limited by memory. They can be retrieved as a ShortProcessor if there are
+ * at most MAX_SHORT_LABEL components, as a FloatProcessor (which can hold
+ * integers up to MAX_FLOAT_LABEL exactly), or as the raw int array.
+ *
+ * labelRuns4() is an alternative to labelComponents4() which works on
+ * horizontal runs of foreground pixels instead of individual pixels. This is
+ * much faster on sparse masks, and the label buffer is only created if it's
+ * requested.
+ *
+ * If setStatistics() is called before labelling, the area, bounding box,
+ * moments and optionally intensities of each component are accumulated in
+ * the same pass, see getStatistics().
  */
 public class ConnectedComponents {
+	/**
+	 * The largest label which can be stored in a ShortProcessor
+	 */
+	public static final int MAX_SHORT_LABEL = 0xffff;
+
+	/**
+	 * The largest label which can be stored exactly in a FloatProcessor
+	 */
+	public static final int MAX_FLOAT_LABEL = 1 << 24;
+
 	/**
 	 * The binary image
 	 */
 	private BinaryProcessor binim;
 
 	/**
-	 * A modified UnionFind class that contains an additional field to hold
-	 * the reordered pruned label
+	 * The components found so far, indexed by provisional label
 	 */
-	private static class UnionFindL extends UnionFind<Integer> {
-		/**
-		 * The modified label after pruning and reordering. -1 indicates unset.
-		 */
-		public int newLabel = -1;
+	private IntUnionFind regions;
 
-		/**
-		 * Constructor, just calls super()
-		 */
-		public UnionFindL(Integer label) {
-			super(label);
-		}
-	}
+	/**
+	 * The labels, row by row, created when first requested if runs are used
+	 */
+	private int[] labels;
 
 	/**
-	 * The list of components found so far
+	 * The labelled foreground runs, null unless labelRuns4() was used
 	 */
-	private ArrayList<UnionFindL> regions;
+	private RunList runs;
 
 	/**
-	 * The label image
+	 * The label image, created when first requested
 	 */
 	private ShortProcessor labelim;
 
@@ -47,13 +62,33 @@ public class ConnectedComponents {
 	 */
 	private int ncomponents;
 
+	/**
+	 * Whether component statistics are collected while labelling
+	 */
+	private boolean collectStatistics;
+
+	/**
+	 * The image from which intensity statistics are measured, may be null
+	 */
+	private ImageProcessor intensity;
+
+	/**
+	 * The statistics of each component, indexed by provisional label while
+	 * labelling and by final label afterwards. null if not collected.
+	 */
+	private ComponentStatistics stats;
+
 	/**
 	 * Create a new class for finding connected components in an image
 	 */
 	public ConnectedComponents(BinaryProcessor binim) {
 		this.binim = binim;
-		regions = new ArrayList<UnionFindL>();
-		labelim = new ShortProcessor(binim.getWidth(), binim.getHeight());
+		regions = new IntUnionFind(1024);
+		labels = null;
+		runs = null;
+		collectStatistics = false;
+		intensity = null;
+		stats = null;
 
 		// Add a dummy region with label 0 (makes indexing easier)
 		newRegion();
@@ -63,11 +98,129 @@ public class ConnectedComponents {
 	/**
 	 * Get the labelled image
 	 * @return the labelled image
+	 * @throws ArithmeticException if there are more than MAX_SHORT_LABEL
+	 *         components, use getFloatLabelImage() or getLabels() instead
 	 */
 	public ShortProcessor getLabelImage() {
+		if (labelim == null) {
+			checkMaxLabel(MAX_SHORT_LABEL);
+			labelim = new ShortProcessor(binim.getWidth(), binim.getHeight());
+			short[] pixels = (short[])labelim.getPixels();
+			int[] labels = getLabels();
+			for (int i = 0; i < labels.length; ++i) {
+				pixels[i] = (short)labels[i];
+			}
+		}
 		return labelim;
 	}
 
+	/**
+	 * Get the labelled image as a 32-bit image
+	 * @return A new label image
+	 * @throws ArithmeticException if there are more than MAX_FLOAT_LABEL
+	 *         components, use getLabels() instead
+	 */
+	public FloatProcessor getFloatLabelImage() {
+		checkMaxLabel(MAX_FLOAT_LABEL);
+		int[] labels = getLabels();
+		float[] pixels = new float[labels.length];
+		for (int i = 0; i < labels.length; ++i) {
+			pixels[i] = labels[i];
+		}
+		return new FloatProcessor(binim.getWidth(), binim.getHeight(),
+								  pixels, null);
+	}
+
+	/**
+	 * Get the labelled image, as a ShortProcessor if the labels fit or
+	 * otherwise as a FloatProcessor
+	 * @return the labelled image
+	 */
+	public ImageProcessor getLabelProcessor() {
+		if (ncomponents <= MAX_SHORT_LABEL) {
+			return getLabelImage();
+		}
+		return getFloatLabelImage();
+	}
+
+	/**
+	 * Get the labels
+	 * @return The label of each pixel, row by row. This is the internal
+	 *         buffer and should not be modified.
+	 */
+	public int[] getLabels() {
+		if (labels == null) {
+			labels = new int[binim.getWidth() * binim.getHeight()];
+			if (runs != null) {
+				runs.paint(labels);
+			}
+		}
+		return labels;
+	}
+
+	/**
+	 * Get the labelled runs of foreground pixels
+	 * @return The runs, or null if labelRuns4() hasn't been called
+	 */
+	public RunList getRuns() {
+		return runs;
+	}
+
+	/**
+	 * Check the labels can be represented in an image type
+	 * @param max The largest label supported by the image type
+	 */
+	private void checkMaxLabel(int max) {
+		if (ncomponents > max) {
+			throw new ArithmeticException("Maximum number of labels (" + max +
+										  ") exceeded: " + ncomponents);
+		}
+	}
+
+	/**
+	 * Collect per-component statistics in subsequent calls to the labelling
+	 * methods
+	 * @param collect Whether statistics should be collected
+	 * @param intensity If not null measure the intensities of each
+	 *        component in this image, which must be the same size as the
+	 *        binary image
+	 */
+	public void setStatistics(boolean collect, ImageProcessor intensity) {
+		if (intensity != null &&
+			(intensity.getWidth() != binim.getWidth() ||
+			 intensity.getHeight() != binim.getHeight())) {
+			throw new IllegalArgumentException(
+				"Intensity image must be the same size as the binary image");
+		}
+		collectStatistics = collect;
+		this.intensity = collect ? intensity : null;
+	}
+
+	/**
+	 * Get the statistics of each component, label 0 is the background and
+	 * is empty
+	 * @return The statistics, or null if they weren't collected
+	 */
+	public ComponentStatistics getStatistics() {
+		return stats;
+	}
+
+	/**
+	 * Start collecting statistics if requested, with an empty entry for
+	 * every existing region
+	 */
+	private void initialiseStatistics() {
+		if (!collectStatistics) {
+			stats = null;
+			return;
+		}
+		stats = new ComponentStatistics(
+			Math.max(regions.size(), 1024), intensity);
+		for (int r = 0; r < regions.size(); ++r) {
+			stats.add();
+		}
+	}
+
 	/**
 	 * Get the number of components
 	 * @return the number of components
@@ -83,28 +236,85 @@ public class ConnectedComponents {
 	public int labelComponents4() {
 		int w = binim.getWidth();
 		int h = binim.getHeight();
+		byte[] bin = (byte[])binim.getPixels();
+		labels = new int[w * h];
+		labelim = null;
+		runs = null;
+		initialiseStatistics();
 
 		for (int y = 0; y < h; ++y) {
 			for (int x = 0; x < w; ++x) {
-				boolean p = binim.get(x, y) != 0;
-
-				if (p) {
-					// Need to check west and north labels,
-					// merge regions if necessary
-					int lwest = getLabelWest(x, y);
-					int lnorth = getLabelNorth(x, y);
+				int i = y * w + x;
+				if (bin[i] != 0) {
+					// Need to check west and north labels (0 if beyond the
+					// edge of the image), merge regions if necessary
+					int lwest = x == 0 ? 0 : labels[i - 1];
+					int lnorth = y == 0 ? 0 : labels[i - w];
 
 					if (lwest != 0) {
-						labelim.set(x, y, lwest);
+						labels[i] = lwest;
 						if (lnorth > 0 && lnorth != lwest) {
 							mergeRegions(lwest, lnorth);
 						}
 					}
 					else if (lnorth != 0) {
-						labelim.set(x, y, lnorth);
+						labels[i] = lnorth;
 					}
 					else {
-						labelim.set(x, y, newRegion());
+						labels[i] = newRegion();
+					}
+
+					if (stats != null) {
+						stats.addPixel(labels[i], x, y);
+					}
+				}
+			}
+		}
+
+		pruneLabels();
+		return ncomponents;
+	}
+
+	/**
+	 * Label the components of the binary image using 8-connectivity
+	 * @return The number of components
+	 */
+	public int labelComponents8() {
+		int w = binim.getWidth();
+		int h = binim.getHeight();
+		byte[] bin = (byte[])binim.getPixels();
+		labels = new int[w * h];
+		labelim = null;
+		runs = null;
+		initialiseStatistics();
+
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				int i = y * w + x;
+				if (bin[i] != 0) {
+					// Need to check west, north-west, north and north-east
+					// labels, merge regions if necessary
+					int label = 0;
+					if (x > 0) {
+						label = joinNeighbour(label, labels[i - 1]);
+					}
+					if (y > 0) {
+						if (x > 0) {
+							label = joinNeighbour(label, labels[i - w - 1]);
+						}
+						label = joinNeighbour(label, labels[i - w]);
+						if (x < w - 1) {
+							label = joinNeighbour(label, labels[i - w + 1]);
+						}
+					}
+
+					if (label == 0) {
+						label = newRegion();
+					}
+					labels[i] = label;
+
+					if (stats != null) {
+						stats.addPixel(label, x, y);
 					}
 				}
 			}
@@ -115,23 +325,105 @@ public class ConnectedComponents {
 	}
 
 	/**
-	 * Get the label of the pixel to the west of this pixel
-	 * @param x X-coordinate of this pixel
-	 * @param y Y-coordinate of this pixel
-	 * @return The label, or 0 if beyond the edge of the image
+	 * Merge the region of a labelled neighbour into the current region
+	 * @param label The label of the current pixel so far, 0 if unset
+	 * @param neighbour The label of the neighbour, 0 for background
+	 * @return The label of the current pixel
 	 */
-	private int getLabelWest(int x, int y) {
-		return x == 0 ? 0 : labelim.get(x - 1, y);
+	private int joinNeighbour(int label, int neighbour) {
+		if (neighbour == 0) {
+			return label;
+		}
+		if (label == 0) {
+			return neighbour;
+		}
+		if (label != neighbour) {
+			mergeRegions(label, neighbour);
+		}
+		return label;
 	}
 
 	/**
-	 * Get the label of the pixel to the north of this pixel
-	 * @param x X-coordinate of this pixel
-	 * @param y Y-coordinate of this pixel
-	 * @return The label, or 0 if beyond the edge of the image
+	 * Label the components of the binary image using 4-connectivity, by
+	 * finding horizontal runs of foreground pixels and merging runs which
+	 * overlap in adjacent rows. The label image isn't painted until
+	 * getLabels() or one of the label image methods is called.
+	 * @return The number of components
 	 */
-	private int getLabelNorth(int x, int y) {
-		return y == 0 ? 0 : labelim.get(x, y - 1);
+	public int labelRuns4() {
+		return labelRuns(0);
+	}
+
+	/**
+	 * Label the components of the binary image using 8-connectivity, by
+	 * finding horizontal runs of foreground pixels and merging runs which
+	 * overlap or touch diagonally in adjacent rows. See labelRuns4().
+	 * @return The number of components
+	 */
+	public int labelRuns8() {
+		return labelRuns(1);
+	}
+
+	/**
+	 * Label the components of the binary image using runs
+	 * @param gap 0 for 4-connectivity (runs in adjacent rows must overlap),
+	 *        1 for 8-connectivity (runs may also touch diagonally)
+	 * @return The number of components
+	 */
+	private int labelRuns(int gap) {
+		int w = binim.getWidth();
+		int h = binim.getHeight();
+		byte[] bin = (byte[])binim.getPixels();
+		labels = null;
+		labelim = null;
+		runs = new RunList(w, h, 1024);
+		initialiseStatistics();
+
+		// Runs [prevFirst, first) are in the previous row
+		int prevFirst = 0;
+		for (int y = 0; y < h; ++y) {
+			int first = runs.size();
+			int offset = y * w;
+			int x = 0;
+			while (x < w) {
+				while (x < w && bin[offset + x] == 0) {
+					++x;
+				}
+				if (x == w) {
+					break;
+				}
+				int start = x;
+				while (x < w && bin[offset + x] != 0) {
+					++x;
+				}
+				runs.add(y, start, x);
+			}
+
+			// Each run gets a provisional label, merge with overlapping runs
+			// in the previous row. Both rows are sorted, so skip previous
+			// runs which end before the current run starts.
+			int p = prevFirst;
+			for (int r = first; r < runs.size(); ++r) {
+				int label = newRegion();
+				runs.setLabel(r, label);
+				int start = runs.getStart(r);
+				int end = runs.getEnd(r);
+				if (stats != null) {
+					stats.addRun(label, y, start, end);
+				}
+				while (p < first && runs.getEnd(p) + gap <= start) {
+					++p;
+				}
+				for (int q = p; q < first && runs.getStart(q) < end + gap;
+					 ++q) {
+					mergeRegions(label, runs.getLabel(q));
+				}
+			}
+			prevFirst = first;
+		}
+
+		pruneRunLabels();
+		return ncomponents;
 	}
 
 	/**
@@ -139,14 +431,10 @@ public class ConnectedComponents {
 	 * @return the label for this region
 	 */
 	private int newRegion() {
-		int label = regions.size();
-		if (label > Short.MAX_VALUE) {
-			throw new ArithmeticException("Maximum number of labels (" +
-										  Short.MAX_VALUE +") exceeded");
+		if (stats != null) {
+			stats.add();
 		}
-
-		regions.add(new UnionFindL(label));
-		return label;
+		return regions.add();
 	}
 
 	/**
@@ -155,9 +443,7 @@ public class ConnectedComponents {
 	 * @param b the index of the second region
 	 */
 	private int mergeRegions(int a, int b) {
-		UnionFindL merged =
-			(UnionFindL)UnionFindL.union(regions.get(a), regions.get(b));
-		return merged.getRootLabel();
+		return regions.union(a, b);
 	}
 
 	/**
@@ -165,31 +451,61 @@ public class ConnectedComponents {
 	 * Relabel the image using the pruned labels.
 	 */
 	private void pruneLabels() {
+		int[] newLabels = createPrunedLabels();
+		for (int i = 0; i < labels.length; ++i) {
+			labels[i] = newLabels[labels[i]];
+		}
+
+		//for (int y = 0; y < labelim.getHeight(); ++y) {
+		//	int[] data = new int[labelim.getWidth()];
+		//	labelim.getRow(0, y, data, labelim.getWidth());
+		//	IJ.log(java.util.Arrays.toString(data));
+		//}
+	}
+
+	/**
+	 * Prune non-root labels, and create new labels that are consecutive.
+	 * Relabel the runs using the pruned labels.
+	 */
+	private void pruneRunLabels() {
+		int[] newLabels = createPrunedLabels();
+		for (int r = 0; r < runs.size(); ++r) {
+			runs.setLabel(r, newLabels[runs.getLabel(r)]);
+		}
+	}
+
+	/**
+	 * Create a mapping from provisional labels to consecutive labels, where
+	 * all provisional labels in a component are mapped to the same label
+	 * @return The new label for each provisional label
+	 */
+	private int[] createPrunedLabels() {
 		ncomponents = -1;
 
-		for (UnionFindL r : regions) {
-			UnionFindL root = (UnionFindL)r.findRoot();
+		// The modified label after pruning and reordering. -1 indicates unset.
+		int n = regions.size();
+		int[] newLabels = new int[n];
+		Arrays.fill(newLabels, -1);
+
+		for (int r = 0; r < n; ++r) {
+			int root = regions.findRoot(r);
 
 			// If the root hasn't been relabelled yet then assign one to it
-			if (root.newLabel == -1) {
-				root.newLabel = ++ncomponents;
+			if (newLabels[root] == -1) {
+				newLabels[root] = ++ncomponents;
 			}
 			// Although this component may have been merged it's label still
 			// needs to be set because labeim still has the unmerged labels
-			r.newLabel = root.newLabel;
+			newLabels[r] = newLabels[root];
 		}
 
-		for (int y = 0; y < labelim.getHeight(); ++y) {
-			for (int x = 0; x < labelim.getWidth(); ++x) {
-				labelim.set(x, y, regions.get(labelim.get(x, y)).newLabel);
-			}
+		// Provisional labels may continue to receive pixels after they've
+		// been merged, so statistics are combined once all equivalences are
+		// known rather than on each union
+		if (stats != null) {
+			stats = stats.relabel(newLabels, ncomponents);
 		}
-
-		//for (int y = 0; y < labelim.getHeight(); ++y) {
-		//	int[] data = new int[labelim.getWidth()];
-		//	labelim.getRow(0, y, data, labelim.getWidth());
-		//	IJ.log(java.util.Arrays.toString(data));
-		//}
+		return newLabels;
 	}
 
 	/**
@@ -197,7 +513,18 @@ public class ConnectedComponents {
 	 * @return An RGB image where each label is coloured
 	 */
 	public ColorProcessor getColouredLabels() {
-		return colourLabels(labelim, ncomponents);
+		return colourLabels(getLabels(), binim.getWidth(), binim.getHeight(),
+							ncomponents);
+	}
+
+	/**
+	 * Get a coloured version of the label image as an 8-bit image with an
+	 * indexed LUT, see LabelColours.colourIndexed()
+	 * @return An 8-bit image where the pixel values are colour indices
+	 */
+	public ByteProcessor getIndexedColouredLabels() {
+		return LabelColours.colourIndexed(getLabels(), binim.getWidth(),
+										  binim.getHeight(), ncomponents);
 	}
 
 	/**
@@ -208,51 +535,33 @@ public class ConnectedComponents {
 	 * @return The colourmap, entry [0] will be black (for background)
 	 */
 	public static int[] createColourmap(int n) {
-		// Use the HSB colourspace to find different hues
-		// n^(1/5) as a rough heuristic for choosing the number of
-		// lightnesses vs hues
-		int nlightness = (int)Math.floor(Math.pow(n, 0.2));
-		int nhues = (int)Math.ceil((double)n / nlightness);
-
-		int[] cmap = new int[nlightness * nhues + 1];
-		cmap[0] = 0;
-
-		for (int light = nlightness; light > 0; --light) {
-			for (int hue = 0; hue < nhues; ++hue) {
-				cmap[(nlightness - light) * nhues + hue + 1] = Color.HSBtoRGB(
-					(float)hue / nhues, 1, (float)light / nlightness);
-			}
-		}
-
-		return cmap;
+		return LabelColours.createColourmap(n);
 	}
 
 	/**
 	 * Colour in a label image for display purposes
-	 * @param labelim The label image
+	 * @param labelim The label image, either a ShortProcessor or a
+	 *        FloatProcessor holding integer labels
 	 * @param ncolours The number of colours to use, excluding background
 	 *        (will be recycled if there are more labels than colours)
 	 * @return An RGB image where each label is coloured
 	 */
-	public static ColorProcessor colourLabels(ShortProcessor labelim,
+	public static ColorProcessor colourLabels(ImageProcessor labelim,
 											  int ncolours) {
-		int w = labelim.getWidth();
-		int h = labelim.getHeight();
-		ColorProcessor colourLabels = new ColorProcessor(w, h);
-		int[] cmap = createColourmap(ncolours);
-
-		for (int y = 0; y < h; ++y) {
-			for (int x = 0; x < w; ++x) {
-				int c = labelim.get(x, y);
-				// c=0: background
-				if (c > 0) {
-					c = (c % ncolours) + 1;
-				}
-				colourLabels.set(x, y, cmap[c]);
-			}
-		}
+		return LabelColours.colourRGB(labelim, ncolours);
+	}
 
-		return colourLabels;
+	/**
+	 * Colour in a label image for display purposes
+	 * @param labels The label of each pixel, row by row
+	 * @param w The width of the image
+	 * @param h The height of the image
+	 * @param ncolours The number of colours to use, excluding background
+	 *        (will be recycled if there are more labels than colours)
+	 * @return An RGB image where each label is coloured
+	 */
+	public static ColorProcessor colourLabels(int[] labels, int w, int h,
+											  int ncolours) {
+		return LabelColours.colourRGB(labels, w, h, ncolours);
 	}
 }
-
@@ -0,0 +1,437 @@
+package ijfls.connect;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import ij.ImageStack;
+import ij.process.*;
+
+
+/**
+ * Find the connected components in a binary image stack in a single pass,
+ * treating the stack as a volume.
+ *
+ * 6-connectivity joins voxels which share a face, 18-connectivity also joins
+ * voxels which share an edge, and 26-connectivity also joins voxels which
+ * share a corner. Labelling each slice with ConnectedComponents.
+ * labelComponents4() and then joining them with ConnectSlices gives the
+ * same result as 6-connectivity, but requires a label image per slice and
+ * correspondence tables between slices.
+ *
+ * labelComponents(connectivity, threads) labels slices in parallel instead,
+ * and connects each pair of slices as soon as both have been labelled. The
+ * result is identical to the single-threaded scan.
+ */
+public class ConnectedComponents3D {
+	/**
+	 * The binary slices
+	 */
+	private ImageStack binStack;
+
+	/**
+	 * The size of the image stack [width, height, depth]
+	 */
+	private int[] size = new int[3];
+
+	/**
+	 * The components found so far, indexed by provisional label
+	 */
+	private IntUnionFind regions;
+
+	/**
+	 * The labels of each slice, row by row
+	 */
+	private int[][] labels;
+
+	/**
+	 * The number of components after pruning
+	 */
+	private int ncomponents;
+
+	/**
+	 * Create a new class for finding connected components in a volume
+	 * @param binStack A stack of 8-bit binary images
+	 */
+	public ConnectedComponents3D(ImageStack binStack) {
+		this.binStack = binStack;
+		size[0] = binStack.getWidth();
+		size[1] = binStack.getHeight();
+		size[2] = binStack.getSize();
+		ncomponents = 0;
+	}
+
+	/**
+	 * Get the labels
+	 * @return The label of each voxel, indexed by [slice][y * width + x]
+	 *         with 0-based slices. This is the internal buffer and should
+	 *         not be modified.
+	 */
+	public int[][] getLabels() {
+		return labels;
+	}
+
+	/**
+	 * Get the number of components
+	 * @return the number of components
+	 */
+	public int getNumComponents() {
+		return ncomponents;
+	}
+
+	/**
+	 * Get the offsets of the neighbours which have already been visited
+	 * when scanning in raster order
+	 * @param connectivity 6, 18 or 26
+	 * @return The neighbours as {dx, dy, dz} triples
+	 */
+	private static int[][] getPreviousNeighbours(int connectivity) {
+		if (connectivity != 6 && connectivity != 18 && connectivity != 26) {
+			throw new IllegalArgumentException(
+				"Invalid connectivity: " + connectivity);
+		}
+
+		int[][] offsets = new int[13][];
+		int n = 0;
+		for (int dz = -1; dz <= 0; ++dz) {
+			for (int dy = -1; dy <= 1; ++dy) {
+				for (int dx = -1; dx <= 1; ++dx) {
+					// Only include neighbours before this voxel
+					if (dz == 0 && (dy > 0 || (dy == 0 && dx >= 0))) {
+						continue;
+					}
+					int nonzero = Math.abs(dx) + Math.abs(dy) + Math.abs(dz);
+					if ((connectivity == 6 && nonzero > 1) ||
+						(connectivity == 18 && nonzero > 2)) {
+						continue;
+					}
+					offsets[n++] = new int[] { dx, dy, dz };
+				}
+			}
+		}
+		return Arrays.copyOf(offsets, n);
+	}
+
+	/**
+	 * Label the components of the volume
+	 * @param connectivity 6, 18 or 26
+	 * @return The number of components
+	 */
+	public int labelComponents(int connectivity) {
+		int[][] offsets = getPreviousNeighbours(connectivity);
+		int w = size[0];
+		int h = size[1];
+		int d = size[2];
+
+		regions = new IntUnionFind(1024);
+		// Add a dummy region with label 0 (makes indexing easier)
+		regions.add();
+		labels = new int[d][];
+
+		for (int z = 0; z < d; ++z) {
+			byte[] bin = (byte[])binStack.getPixels(z + 1);
+			int[] slice = new int[w * h];
+			labels[z] = slice;
+
+			for (int y = 0; y < h; ++y) {
+				for (int x = 0; x < w; ++x) {
+					int i = y * w + x;
+					if (bin[i] == 0) {
+						continue;
+					}
+
+					int label = 0;
+					for (int[] o : offsets) {
+						int nx = x + o[0];
+						int ny = y + o[1];
+						int nz = z + o[2];
+						if (nx < 0 || nx >= w || ny < 0 || ny >= h || nz < 0) {
+							continue;
+						}
+						int nl = labels[nz][ny * w + nx];
+						if (nl == 0) {
+							continue;
+						}
+						if (label == 0) {
+							label = nl;
+						}
+						else if (label != nl) {
+							regions.union(label, nl);
+						}
+					}
+
+					if (label == 0) {
+						label = regions.add();
+					}
+					slice[i] = label;
+				}
+			}
+		}
+
+		pruneLabels();
+		regions = null;
+		return ncomponents;
+	}
+
+	/**
+	 * Label the components of the volume using a pool of threads. Slices are
+	 * labelled independently, and components in consecutive slices are
+	 * merged in a ConcurrentIntUnionFind as soon as both slices are done.
+	 * @param connectivity 6, 18 or 26
+	 * @param threads The number of threads, if 1 labelComponents(int) is
+	 *        used
+	 * @return The number of components
+	 * @throws InterruptedException if interrupted
+	 */
+	public int labelComponents(int connectivity, int threads)
+		throws InterruptedException {
+		if (threads <= 1) {
+			return labelComponents(connectivity);
+		}
+
+		final boolean eight = connectivity != 6;
+		final int w = size[0];
+		final int h = size[1];
+		final int d = size[2];
+
+		// The neighbours in the previous slice
+		int[][] previous = getPreviousNeighbours(connectivity);
+		int ncross = 0;
+		for (int[] o : previous) {
+			if (o[2] == -1) {
+				previous[ncross++] = o;
+			}
+		}
+		final int[][] cross = Arrays.copyOf(previous, ncross);
+
+		final ConcurrentIntUnionFind uf = new ConcurrentIntUnionFind();
+		// Element 0 is the background
+		uf.add(1);
+		labels = new int[d][];
+		// The union-find element of label 1 in each slice
+		final int[] bases = new int[d];
+		final int[] counts = new int[d];
+		boolean[] done = new boolean[d];
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			CompletionService<Integer> sliceDone =
+				new ExecutorCompletionService<Integer>(pool);
+			for (int z = 0; z < d; ++z) {
+				final int slice = z;
+				final byte[] bin = (byte[])binStack.getPixels(z + 1);
+				sliceDone.submit(new Callable<Integer>() {
+					public Integer call() {
+						ConnectedComponents cc = new ConnectedComponents(
+							new BinaryProcessor(new ByteProcessor(w, h, bin)));
+						counts[slice] = eight ? cc.labelComponents8() :
+							cc.labelComponents4();
+						labels[slice] = cc.getLabels();
+						return slice;
+					}
+				});
+			}
+
+			// Assign union-find elements to slices in the order they finish,
+			// and connect a pair of slices once both are labelled
+			List<Future<?>> pending = new ArrayList<Future<?>>();
+			for (int k = 0; k < d; ++k) {
+				int z = sliceDone.take().get();
+				bases[z] = uf.add(counts[z]);
+				done[z] = true;
+
+				for (int lower = z - 1; lower <= z; ++lower) {
+					if (lower >= 0 && lower + 1 < d &&
+						done[lower] && done[lower + 1]) {
+						final int z1 = lower;
+						pending.add(pool.submit(new Runnable() {
+							public void run() {
+								connectSlicePair(labels[z1], bases[z1],
+												 labels[z1 + 1], bases[z1 + 1],
+												 cross, uf);
+							}
+						}));
+					}
+				}
+			}
+			for (Future<?> f : pending) {
+				f.get();
+			}
+
+			// Labels are assigned in order of slice and then label, which is
+			// the same as the raster order of the single-threaded scan
+			final int[] newLabels = new int[uf.size()];
+			Arrays.fill(newLabels, -1);
+			newLabels[0] = 0;
+			ncomponents = 0;
+			for (int z = 0; z < d; ++z) {
+				for (int l = 0; l < counts[z]; ++l) {
+					int e = bases[z] + l;
+					int root = uf.findRoot(e);
+					if (newLabels[root] == -1) {
+						newLabels[root] = ++ncomponents;
+					}
+					newLabels[e] = newLabels[root];
+				}
+			}
+
+			pending.clear();
+			for (int z = 0; z < d; ++z) {
+				final int[] slice = labels[z];
+				final int base = bases[z] - 1;
+				pending.add(pool.submit(new Runnable() {
+					public void run() {
+						for (int i = 0; i < slice.length; ++i) {
+							if (slice[i] != 0) {
+								slice[i] = newLabels[base + slice[i]];
+							}
+						}
+					}
+				}));
+			}
+			for (Future<?> f : pending) {
+				f.get();
+			}
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+		finally {
+			pool.shutdown();
+		}
+		return ncomponents;
+	}
+
+	/**
+	 * Merge the components of two consecutive slices which touch
+	 * @param lower The labels of the first slice
+	 * @param base1 The union-find element of label 1 in the first slice
+	 * @param upper The labels of the second slice
+	 * @param base2 The union-find element of label 1 in the second slice
+	 * @param cross The neighbours in the first slice of a voxel in the
+	 *        second slice, as {dx, dy, -1} triples
+	 * @param uf The union-find
+	 */
+	private void connectSlicePair(int[] lower, int base1,
+								  int[] upper, int base2,
+								  int[][] cross, ConcurrentIntUnionFind uf) {
+		int w = size[0];
+		int h = size[1];
+		int lastp = 0;
+		int lastq = 0;
+
+		for (int y = 0; y < h; ++y) {
+			for (int x = 0; x < w; ++x) {
+				int q = upper[y * w + x];
+				if (q == 0) {
+					continue;
+				}
+				for (int[] o : cross) {
+					int nx = x + o[0];
+					int ny = y + o[1];
+					if (nx < 0 || nx >= w || ny < 0 || ny >= h) {
+						continue;
+					}
+					int p = lower[ny * w + nx];
+					// Neighbouring voxels usually give the same pair
+					if (p != 0 && (p != lastp || q != lastq)) {
+						uf.union(base1 + p - 1, base2 + q - 1);
+						lastp = p;
+						lastq = q;
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Prune non-root labels, and create new labels that are consecutive.
+	 * Relabel the volume using the pruned labels.
+	 */
+	private void pruneLabels() {
+		ncomponents = -1;
+
+		// The modified label after pruning and reordering. -1 indicates unset.
+		int n = regions.size();
+		int[] newLabels = new int[n];
+		Arrays.fill(newLabels, -1);
+
+		for (int r = 0; r < n; ++r) {
+			int root = regions.findRoot(r);
+			if (newLabels[root] == -1) {
+				newLabels[root] = ++ncomponents;
+			}
+			newLabels[r] = newLabels[root];
+		}
+
+		for (int[] slice : labels) {
+			for (int i = 0; i < slice.length; ++i) {
+				slice[i] = newLabels[slice[i]];
+			}
+		}
+	}
+
+	/**
+	 * Get the label stack
+	 * @return A 16-bit stack if there are at most
+	 *         ConnectedComponents.MAX_SHORT_LABEL components, otherwise a
+	 *         32-bit (float) stack
+	 * @throws ArithmeticException if there are more than
+	 *         ConnectedComponents.MAX_FLOAT_LABEL components
+	 */
+	public ImageStack getLabelStack() {
+		if (ncomponents > ConnectedComponents.MAX_FLOAT_LABEL) {
+			throw new ArithmeticException(
+				"Maximum number of labels (" +
+				ConnectedComponents.MAX_FLOAT_LABEL + ") exceeded: " +
+				ncomponents);
+		}
+		boolean useFloat = ncomponents > ConnectedComponents.MAX_SHORT_LABEL;
+
+		ImageStack stack = new ImageStack(size[0], size[1]);
+		for (int[] slice : labels) {
+			if (useFloat) {
+				float[] pixels = new float[slice.length];
+				for (int i = 0; i < slice.length; ++i) {
+					pixels[i] = slice[i];
+				}
+				stack.addSlice(null, pixels);
+			}
+			else {
+				short[] pixels = new short[slice.length];
+				for (int i = 0; i < slice.length; ++i) {
+					pixels[i] = (short)slice[i];
+				}
+				stack.addSlice(null, pixels);
+			}
+		}
+		return stack;
+	}
+
+	/**
+	 * Get a coloured version of the label stack for display purposes
+	 * @return An RGB stack where each label is coloured
+	 */
+	public ImageStack getColouredLabels() {
+		return getColouredLabels(false, 1);
+	}
+
+	/**
+	 * Get a coloured version of the label stack for display purposes
+	 * @param indexed If true create an 8-bit stack with an indexed LUT
+	 *        instead of RGB, see LabelColours.colourIndexed()
+	 * @param threads The number of threads used to colour slices
+	 * @return The coloured stack
+	 */
+	public ImageStack getColouredLabels(boolean indexed, int threads) {
+		return LabelColours.colourStack(Arrays.asList(labels), size[0],
+										size[1], ncomponents, indexed,
+										threads);
+	}
+}
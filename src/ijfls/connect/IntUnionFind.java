@@ -0,0 +1,112 @@
+package ijfls.connect;
+
+/**
+ * Implementation of the union-find algorithm for the integers 0..n-1, see
+ * UnionFind.
+ * The trees are stored as primitive arrays instead of one object per
+ * element, and findRoot() is iterative so long chains can't overflow the
+ * stack.
+ */
+public class IntUnionFind {
+	/**
+	 * The parent of each element, roots are their own parent
+	 */
+	private int[] parent;
+
+	/**
+	 * The rank of each element (an upper bound on the height of its tree)
+	 */
+	private int[] rank;
+
+	/**
+	 * The number of elements
+	 */
+	private int size;
+
+	/**
+	 * Create an empty union-find
+	 * @param capacity The initial capacity, the arrays grow as needed
+	 */
+	public IntUnionFind(int capacity) {
+		parent = new int[Math.max(capacity, 1)];
+		rank = new int[parent.length];
+		size = 0;
+	}
+
+	/**
+	 * Add a new component containing a single element
+	 * @return The new element, equal to the previous size()
+	 */
+	public int add() {
+		if (size == parent.length) {
+			int n = parent.length * 2;
+			int[] newParent = new int[n];
+			int[] newRank = new int[n];
+			System.arraycopy(parent, 0, newParent, 0, size);
+			System.arraycopy(rank, 0, newRank, 0, size);
+			parent = newParent;
+			rank = newRank;
+		}
+
+		parent[size] = size;
+		rank[size] = 0;
+		return size++;
+	}
+
+	/**
+	 * Get the number of elements
+	 * @return the number of elements
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Merge two components
+	 * @param x An element
+	 * @param y Another element
+	 * @return The root of the merged component
+	 */
+	public int union(int x, int y) {
+		int xroot = findRoot(x);
+		int yroot = findRoot(y);
+		if (xroot == yroot) {
+			// x and y are already in the same component
+			return xroot;
+		}
+
+		// Merge smaller tree into the larger one
+		if (rank[xroot] < rank[yroot]) {
+			parent[xroot] = yroot;
+			return yroot;
+		}
+		if (rank[xroot] > rank[yroot]) {
+			parent[yroot] = xroot;
+			return xroot;
+		}
+
+		parent[yroot] = xroot;
+		rank[xroot]++;
+		return xroot;
+	}
+
+	/**
+	 * Search for the root of a tree, and attach every node on the path
+	 * directly to the root
+	 * @param x An element
+	 * @return The root of the tree containing x
+	 */
+	public int findRoot(int x) {
+		int root = x;
+		while (parent[root] != root) {
+			root = parent[root];
+		}
+
+		while (parent[x] != root) {
+			int next = parent[x];
+			parent[x] = root;
+			x = next;
+		}
+		return root;
+	}
+}
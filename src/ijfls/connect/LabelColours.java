@@ -0,0 +1,398 @@
+package ijfls.connect;
+
+import java.awt.Color;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import ij.ImageStack;
+import ij.process.*;
+
+
+/**
+ * Colour label images for display.
+ *
+ * Each label is mapped to a colour through a table with one entry per
+ * colour, which is cached for the most recent number of colours, so
+ * colouring a stack slice by slice only creates the colourmap once. The
+ * LUT and the label to index table of indexed images are cached in the
+ * same way. Label
+ * images can either be coloured as RGB, or as 8-bit images with an indexed
+ * LUT which use a quarter of the memory but are limited to
+ * MAX_INDEXED_COLOURS different colours.
+ */
+public class LabelColours {
+	/**
+	 * The maximum number of colours in an indexed image, excluding
+	 * background
+	 */
+	public static final int MAX_INDEXED_COLOURS = 255;
+
+	/**
+	 * The number of colours in the cached table
+	 */
+	private static int cachedNColours = -1;
+
+	/**
+	 * The cached table of the RGB colour of labels 0..cachedNColours
+	 */
+	private static int[] cachedColours;
+
+	/**
+	 * The number of colours of the cached indexed LUT and index table
+	 */
+	private static int cachedIndexedNColours = -1;
+
+	/**
+	 * The cached LUT of indexed images
+	 */
+	private static LUT cachedLut;
+
+	/**
+	 * The cached table of the colour index of labels
+	 */
+	private static int[] cachedIndices;
+
+	/**
+	 * Create a colourmap of contrasting colours with at least n+1 entries
+	 * (there may be more), where entry[0] is black
+	 * @param n The minimum number of different colours required (ignoring
+	 *        background)
+	 * @return The colourmap, entry [0] will be black (for background)
+	 */
+	public static int[] createColourmap(int n) {
+		// Use the HSB colourspace to find different hues
+		// n^(1/5) as a rough heuristic for choosing the number of
+		// lightnesses vs hues
+		int nlightness = (int)Math.floor(Math.pow(n, 0.2));
+		int nhues = (int)Math.ceil((double)n / nlightness);
+
+		int[] cmap = new int[nlightness * nhues + 1];
+		cmap[0] = 0;
+
+		for (int light = nlightness; light > 0; --light) {
+			for (int hue = 0; hue < nhues; ++hue) {
+				cmap[(nlightness - light) * nhues + hue + 1] = Color.HSBtoRGB(
+					(float)hue / nhues, 1, (float)light / nlightness);
+			}
+		}
+
+		return cmap;
+	}
+
+	/**
+	 * Get the RGB colour of labels 0..ncolours. Label 0 is black, and label
+	 * l > 0 has colour createColourmap(ncolours)[(l % ncolours) + 1].
+	 * The table is cached so it should not be modified.
+	 * @param ncolours The number of colours excluding background
+	 * @return The colour of each label
+	 */
+	public static synchronized int[] getColours(int ncolours) {
+		if (ncolours != cachedNColours) {
+			cachedColours = createColourTable(createColourmap(ncolours),
+											  ncolours);
+			cachedNColours = ncolours;
+		}
+		return cachedColours;
+	}
+
+	/**
+	 * Create a table mapping labels 0..n to the entries of a colourmap
+	 * @param cmap The colourmap
+	 * @param n The number of colours
+	 * @return The colour of each label
+	 */
+	private static int[] createColourTable(int[] cmap, int n) {
+		int[] table = new int[n + 1];
+		table[0] = cmap[0];
+		for (int l = 1; l <= n; ++l) {
+			table[l] = cmap[(l % n) + 1];
+		}
+		return table;
+	}
+
+	/**
+	 * Map labels through a table with n + 1 entries. Labels greater than n
+	 * are recycled, label l uses entry ((l - 1) % n) + 1 which is the same
+	 * colour that (l % n) + 1 would select from the colourmap.
+	 * @param labels The labels, short[] (unsigned), float[] or int[]
+	 * @param from The first label to map
+	 * @param to One past the last label to map
+	 * @param table The table
+	 * @param out The mapped values, starting at index 0
+	 */
+	private static void mapLabels(Object labels, int from, int to,
+								  int[] table, int[] out) {
+		int n = table.length - 1;
+		if (labels instanceof short[]) {
+			short[] s = (short[])labels;
+			for (int i = from; i < to; ++i) {
+				int l = s[i] & 0xffff;
+				out[i - from] = table[l <= n ? l : ((l - 1) % n) + 1];
+			}
+		}
+		else if (labels instanceof float[]) {
+			float[] f = (float[])labels;
+			for (int i = from; i < to; ++i) {
+				int l = (int)f[i];
+				out[i - from] = table[l <= n ? l : ((l - 1) % n) + 1];
+			}
+		}
+		else {
+			int[] a = (int[])labels;
+			for (int i = from; i < to; ++i) {
+				int l = a[i];
+				out[i - from] = table[l <= n ? l : ((l - 1) % n) + 1];
+			}
+		}
+	}
+
+	/**
+	 * Get the label array of a label image
+	 * @param labelim A ShortProcessor, or a FloatProcessor holding integer
+	 *        labels
+	 * @return The pixel array
+	 */
+	private static Object getLabelPixels(ImageProcessor labelim) {
+		Object pixels = labelim.getPixels();
+		if (pixels instanceof short[] || pixels instanceof float[]) {
+			return pixels;
+		}
+
+		// getf() returns the value rather than the raw bits for
+		// FloatProcessors
+		int[] labels = new int[labelim.getWidth() * labelim.getHeight()];
+		for (int i = 0; i < labels.length; ++i) {
+			labels[i] = (int)labelim.getf(i);
+		}
+		return labels;
+	}
+
+	/**
+	 * Colour in a label image as RGB
+	 * @param labels The labels row by row, short[] (unsigned), float[] or
+	 *        int[]
+	 * @param w The width of the image
+	 * @param h The height of the image
+	 * @param ncolours The number of colours to use, excluding background
+	 *        (will be recycled if there are more labels than colours)
+	 * @return An RGB image where each label is coloured
+	 */
+	public static ColorProcessor colourRGB(Object labels, int w, int h,
+										   int ncolours) {
+		ColorProcessor cp = new ColorProcessor(w, h);
+		mapLabels(labels, 0, w * h, getColours(ncolours),
+				  (int[])cp.getPixels());
+		return cp;
+	}
+
+	/**
+	 * Colour in a label image as RGB
+	 * @param labelim The label image, either a ShortProcessor or a
+	 *        FloatProcessor holding integer labels
+	 * @param ncolours The number of colours to use, excluding background
+	 * @return An RGB image where each label is coloured
+	 */
+	public static ColorProcessor colourRGB(ImageProcessor labelim,
+										   int ncolours) {
+		return colourRGB(getLabelPixels(labelim), labelim.getWidth(),
+						 labelim.getHeight(), ncolours);
+	}
+
+	/**
+	 * Create the LUT used by indexed images
+	 * @param ncolours The number of colours excluding background
+	 * @return The LUT, with min(ncolours, MAX_INDEXED_COLOURS) colours
+	 */
+	public static LUT createIndexedLut(int ncolours) {
+		int k = Math.max(Math.min(ncolours, MAX_INDEXED_COLOURS), 1);
+		int[] cmap = createColourTable(createColourmap(k), k);
+		byte[] r = new byte[256];
+		byte[] g = new byte[256];
+		byte[] b = new byte[256];
+		for (int i = 0; i < cmap.length; ++i) {
+			r[i] = (byte)(cmap[i] >> 16);
+			g[i] = (byte)(cmap[i] >> 8);
+			b[i] = (byte)cmap[i];
+		}
+		return new LUT(r, g, b);
+	}
+
+	/**
+	 * Get the LUT used by indexed images, this is cached so it is shared by
+	 * every image coloured with the same number of colours
+	 * @param ncolours The number of colours excluding background
+	 * @return The LUT, with min(ncolours, MAX_INDEXED_COLOURS) colours
+	 */
+	public static synchronized LUT getIndexedLut(int ncolours) {
+		cacheIndexed(ncolours);
+		return cachedLut;
+	}
+
+	/**
+	 * Get the table mapping labels to colour indices, this is cached so it
+	 * should not be modified
+	 * @param ncolours The number of colours excluding background
+	 * @return The colour index of each label
+	 */
+	private static synchronized int[] getIndexTable(int ncolours) {
+		cacheIndexed(ncolours);
+		return cachedIndices;
+	}
+
+	/**
+	 * Create the indexed LUT and index table unless they are cached for
+	 * ncolours, must be called with the class lock held
+	 * @param ncolours The number of colours excluding background
+	 */
+	private static void cacheIndexed(int ncolours) {
+		if (ncolours == cachedIndexedNColours) {
+			return;
+		}
+
+		// Label l has index ((l - 1) % k) + 1. The table covers a multiple of
+		// k labels so it can be recycled by mapLabels(), and is large enough
+		// for 16-bit labels to avoid the modulo in most cases
+		int k = Math.max(Math.min(ncolours, MAX_INDEXED_COLOURS), 1);
+		int n = Math.max(Math.min(ncolours, 0xffff), 1);
+		int[] table = new int[(n + k - 1) / k * k + 1];
+		for (int l = 1; l < table.length; ++l) {
+			table[l] = ((l - 1) % k) + 1;
+		}
+
+		cachedLut = createIndexedLut(ncolours);
+		cachedIndices = table;
+		cachedIndexedNColours = ncolours;
+	}
+
+	/**
+	 * Colour in a label image as an 8-bit image with an indexed LUT. If
+	 * there are at most MAX_INDEXED_COLOURS colours they are the same as
+	 * colourRGB(), otherwise colours are recycled more often.
+	 * @param labels The labels row by row, short[] (unsigned), float[] or
+	 *        int[]
+	 * @param w The width of the image
+	 * @param h The height of the image
+	 * @param ncolours The number of colours to use, excluding background
+	 * @return An 8-bit image where the pixel values are colour indices
+	 */
+	public static ByteProcessor colourIndexed(Object labels, int w, int h,
+											  int ncolours) {
+		int[] table = getIndexTable(ncolours);
+		byte[] pixels = new byte[w * h];
+		int[] row = new int[w];
+		for (int y = 0; y < h; ++y) {
+			mapLabels(labels, y * w, (y + 1) * w, table, row);
+			for (int x = 0, i = y * w; x < w; ++x, ++i) {
+				pixels[i] = (byte)row[x];
+			}
+		}
+
+		ByteProcessor bp = new ByteProcessor(w, h, pixels, null);
+		bp.setLut(getIndexedLut(ncolours));
+		return bp;
+	}
+
+	/**
+	 * Colour in a label image as an 8-bit image with an indexed LUT
+	 * @param labelim The label image, either a ShortProcessor or a
+	 *        FloatProcessor holding integer labels
+	 * @param ncolours The number of colours to use, excluding background
+	 * @return An 8-bit image where the pixel values are colour indices
+	 */
+	public static ByteProcessor colourIndexed(ImageProcessor labelim,
+											  int ncolours) {
+		return colourIndexed(getLabelPixels(labelim), labelim.getWidth(),
+							 labelim.getHeight(), ncolours);
+	}
+
+	/**
+	 * Colour in a stack of label images
+	 * @param slices The labels of each slice row by row, short[]
+	 *        (unsigned), float[] or int[]
+	 * @param w The width of the stack
+	 * @param h The height of the stack
+	 * @param ncolours The number of colours to use, excluding background
+	 * @param indexed If true create 8-bit indexed slices, otherwise RGB
+	 * @param threads The number of threads to use, slices are coloured in
+	 *        parallel if greater than 1
+	 * @return The coloured stack
+	 */
+	public static ImageStack colourStack(
+		List<?> slices, final int w, final int h, final int ncolours,
+		final boolean indexed, int threads) {
+		ImageStack coloured = new ImageStack(w, h);
+		if (indexed) {
+			coloured.setColorModel(getIndexedLut(ncolours));
+		}
+		if (threads <= 1 || slices.size() <= 1) {
+			for (Object labels : slices) {
+				coloured.addSlice(
+					colourSlice(labels, w, h, ncolours, indexed));
+			}
+			return coloured;
+		}
+
+		// Create the colour tables before starting the threads
+		if (indexed) {
+			getIndexTable(ncolours);
+		}
+		else {
+			getColours(ncolours);
+		}
+		List<Callable<ImageProcessor>> tasks =
+			new ArrayList<Callable<ImageProcessor>>();
+		for (final Object labels : slices) {
+			tasks.add(new Callable<ImageProcessor>() {
+				public ImageProcessor call() {
+					return colourSlice(labels, w, h, ncolours, indexed);
+				}
+			});
+		}
+		try {
+			for (ImageProcessor ip : SliceTasks.run(tasks, threads, null)) {
+				coloured.addSlice(ip);
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		return coloured;
+	}
+
+	/**
+	 * Colour in a stack of label images
+	 * @param labelStack A 16-bit or 32-bit (float) label stack
+	 * @param ncolours The number of colours to use, excluding background
+	 * @param indexed If true create 8-bit indexed slices, otherwise RGB
+	 * @param threads The number of threads to use
+	 * @return The coloured stack
+	 */
+	public static ImageStack colourStack(
+		ImageStack labelStack, int ncolours, boolean indexed, int threads) {
+		List<Object> slices = new ArrayList<Object>();
+		for (int z = 1; z <= labelStack.getSize(); ++z) {
+			slices.add(getLabelPixels(labelStack.getProcessor(z)));
+		}
+		return colourStack(slices, labelStack.getWidth(),
+						   labelStack.getHeight(), ncolours, indexed,
+						   threads);
+	}
+
+	/**
+	 * Colour in one slice
+	 * @param labels The labels
+	 * @param w The width
+	 * @param h The height
+	 * @param ncolours The number of colours to use, excluding background
+	 * @param indexed If true create an 8-bit indexed image, otherwise RGB
+	 * @return The coloured slice
+	 */
+	private static ImageProcessor colourSlice(Object labels, int w, int h,
+											  int ncolours, boolean indexed) {
+		if (indexed) {
+			return colourIndexed(labels, w, h, ncolours);
+		}
+		return colourRGB(labels, w, h, ncolours);
+	}
+}
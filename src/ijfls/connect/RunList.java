@@ -0,0 +1,206 @@
+package ijfls.connect;
+
+import java.util.Arrays;
+
+
+/**
+ * A list of horizontal runs of foreground pixels, in raster order.
+ * Each run covers pixels [start, end) of a row, and has the label of the
+ * component it belongs to.
+ */
+public class RunList {
+	/**
+	 * The row of each run
+	 */
+	private int[] rows;
+
+	/**
+	 * The first pixel of each run
+	 */
+	private int[] starts;
+
+	/**
+	 * One past the last pixel of each run
+	 */
+	private int[] ends;
+
+	/**
+	 * The label of each run
+	 */
+	private int[] labels;
+
+	/**
+	 * The number of runs
+	 */
+	private int size;
+
+	/**
+	 * The width of the image
+	 */
+	private final int width;
+
+	/**
+	 * The height of the image
+	 */
+	private final int height;
+
+	/**
+	 * Create an empty run list
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @param capacity The initial capacity, the arrays grow as needed
+	 */
+	public RunList(int width, int height, int capacity) {
+		this.width = width;
+		this.height = height;
+		capacity = Math.max(capacity, 1);
+		rows = new int[capacity];
+		starts = new int[capacity];
+		ends = new int[capacity];
+		labels = new int[capacity];
+		size = 0;
+	}
+
+	/**
+	 * Add a run, runs must be added in raster order
+	 * @param row The row
+	 * @param start The first pixel
+	 * @param end One past the last pixel
+	 * @return The index of the new run
+	 */
+	int add(int row, int start, int end) {
+		if (size == rows.length) {
+			int n = rows.length * 2;
+			rows = grow(rows, n);
+			starts = grow(starts, n);
+			ends = grow(ends, n);
+			labels = grow(labels, n);
+		}
+
+		rows[size] = row;
+		starts[size] = start;
+		ends[size] = end;
+		labels[size] = 0;
+		return size++;
+	}
+
+	/**
+	 * Copy an array into a larger one
+	 * @param a The array
+	 * @param n The new length
+	 * @return The new array
+	 */
+	private int[] grow(int[] a, int n) {
+		int[] b = new int[n];
+		System.arraycopy(a, 0, b, 0, size);
+		return b;
+	}
+
+	/**
+	 * Set the label of a run
+	 * @param i The index of the run
+	 * @param label The label
+	 */
+	void setLabel(int i, int label) {
+		labels[i] = label;
+	}
+
+	/**
+	 * Get the number of runs
+	 * @return the number of runs
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Get the row of a run
+	 * @param i The index of the run
+	 * @return the row
+	 */
+	public int getRow(int i) {
+		return rows[i];
+	}
+
+	/**
+	 * Get the first pixel of a run
+	 * @param i The index of the run
+	 * @return the x coordinate of the first pixel
+	 */
+	public int getStart(int i) {
+		return starts[i];
+	}
+
+	/**
+	 * Get the end of a run
+	 * @param i The index of the run
+	 * @return the x coordinate one past the last pixel
+	 */
+	public int getEnd(int i) {
+		return ends[i];
+	}
+
+	/**
+	 * Get the label of a run
+	 * @param i The index of the run
+	 * @return the label of the component containing the run
+	 */
+	public int getLabel(int i) {
+		return labels[i];
+	}
+
+	/**
+	 * Get the width of the image
+	 * @return the width
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the height of the image
+	 * @return the height
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Create the runs of an existing label image, each run is a maximal
+	 * horizontal run of pixels with the same non-zero label
+	 * @param labels The label of each pixel, row by row, 0 is background
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 * @return The labelled runs
+	 */
+	public static RunList fromLabels(int[] labels, int width, int height) {
+		RunList runs = new RunList(width, height, height);
+		for (int y = 0; y < height; ++y) {
+			int offset = y * width;
+			int x = 0;
+			while (x < width) {
+				int l = labels[offset + x];
+				int start = x;
+				while (x < width && labels[offset + x] == l) {
+					++x;
+				}
+				if (l != 0) {
+					runs.setLabel(runs.add(y, start, x), l);
+				}
+			}
+		}
+		return runs;
+	}
+
+	/**
+	 * Paint the runs into a label buffer
+	 * @param out The label of each pixel, row by row. Pixels not covered by
+	 *        a run are not modified.
+	 */
+	public void paint(int[] out) {
+		for (int i = 0; i < size; ++i) {
+			int offset = rows[i] * width;
+			Arrays.fill(out, offset + starts[i], offset + ends[i], labels[i]);
+		}
+	}
+}
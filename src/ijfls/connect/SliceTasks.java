@@ -0,0 +1,65 @@
+package ijfls.connect;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import ij.IJ;
+
+
+/**
+ * Runs independent per-slice tasks on a pool of threads, and returns the
+ * results in slice order. The pool only lives for one call.
+ */
+public class SliceTasks {
+	/**
+	 * Run the tasks using a pool of threads
+	 * @param tasks The task for each slice
+	 * @param threads The number of threads
+	 * @param status If not null the status bar shows this followed by the
+	 *        slice number while waiting for each slice
+	 * @return The result of each task, in the same order
+	 * @throws InterruptedException if interrupted while waiting, the
+	 *         remaining tasks are cancelled
+	 * @throws RuntimeException wrapping a checked exception thrown by a
+	 *         task, unchecked exceptions and errors are rethrown as they
+	 *         are
+	 */
+	public static <T> List<T> run(List<? extends Callable<T>> tasks,
+								  int threads, String status)
+		throws InterruptedException {
+		int n = tasks.size();
+		List<T> results = new ArrayList<T>(n);
+		ExecutorService pool = Executors.newFixedThreadPool(
+			Math.max(Math.min(threads, n), 1));
+		try {
+			List<Future<T>> futures = new ArrayList<Future<T>>(n);
+			for (Callable<T> task : tasks) {
+				futures.add(pool.submit(task));
+			}
+			for (int i = 0; i < n; ++i) {
+				if (status != null) {
+					IJ.showStatus(status + " " + (i + 1) + "/" + n);
+				}
+				results.add(futures.get(i).get());
+			}
+		}
+		catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof RuntimeException) {
+				throw (RuntimeException)cause;
+			}
+			if (cause instanceof Error) {
+				throw (Error)cause;
+			}
+			throw new RuntimeException(cause);
+		}
+		finally {
+			pool.shutdownNow();
+		}
+		return results;
+	}
+}
@@ -63,15 +63,23 @@ public class UnionFind<E> {
 	}
 
 	/**
-	 * Search for the root of a tree, when found attach this node directly to
-	 * root to avoid traversing the tree in future
+	 * Search for the root of a tree, when found attach every node on the
+	 * path directly to root to avoid traversing the tree in future
 	 * @return The root of this tree (i.e. the label for this component)
 	 */
 	public UnionFind<E> findRoot() {
-		if (parent != this) {
-			parent = parent.findRoot();
+		UnionFind<E> root = this;
+		while (root.parent != root) {
+			root = root.parent;
 		}
-		return parent;
+
+		UnionFind<E> n = this;
+		while (n.parent != root) {
+			UnionFind<E> next = n.parent;
+			n.parent = root;
+			n = next;
+		}
+		return root;
 	}
 
 	/**
@@ -0,0 +1,610 @@
+package ijfls.levelset;
+
+/**
+ * The boundary list engine of the fast level set, shared by FastLevelSet
+ * and FastLevelSet3D.
+ *
+ * Points are identified by their linear index, and everything which
+ * depends on the number of dimensions is delegated: the neighbours of a
+ * point come from a Neighbourhood, and the speed and smoothing fields are
+ * calculated by the subclass. This class holds phi, the speed, the Lin and
+ * Lout lists and the count of moving points, and implements the evolution,
+ * the convergence check and the consistency check. The iteration loop is
+ * in IterativeLevelSet.
+ *
+ * @param <G> The type of the phi and speed arrays passed to the speed
+ *        fields
+ */
+public abstract class BandLevelSet<G extends BandLevelSet.Bytes>
+	extends IterativeLevelSet {
+	/**
+	 * An array of signed values indexed by the linear index of a point
+	 */
+	protected static class Bytes {
+		/**
+		 * The contents of the array
+		 */
+		protected final byte[] vals;
+
+		/**
+		 * @param n Number of elements
+		 */
+		public Bytes(int n) {
+			vals = new byte[n];
+		}
+
+		/**
+		 * Get an element by linear index
+		 * @param i The index
+		 * @return The value of the element
+		 */
+		public final byte get(int i) {
+			return vals[i];
+		}
+
+		/**
+		 * Set an element by linear index
+		 * @param i The index
+		 * @param v The value of the element
+		 */
+		public final void set(int i, byte v) {
+			vals[i] = v;
+		}
+	}
+
+	/**
+	 * Identifiers for the two lists of pixels
+	 */
+	protected enum ListType
+	{
+		IN, OUT;
+	};
+
+	/**
+	 * Controls whether a self-consistency check is performed at every step
+	 * (very slow, for testing only)
+	 */
+	public final boolean DEBUG_CHECK = false;
+
+	/**
+	 * The neighbours of a point
+	 */
+	protected final Neighbourhood neighbourhood;
+
+	/**
+	 * Phi (level-set function)
+	 */
+	protected final G phi;
+
+	/**
+	 * Temporary speed field
+	 */
+	protected final G speed;
+
+	/**
+	 * List of points on inside of boundary (linear indices)
+	 */
+	protected IndexList lin = new IndexList();
+
+	/**
+	 * List of points on outside of boundary (linear indices)
+	 */
+	protected IndexList lout = new IndexList();
+
+	/**
+	 * Temporary list of points to be added to Lin
+	 */
+	protected IndexList addlin = new IndexList();
+
+	/**
+	 * Temporary list of points to be added to Lout
+	 */
+	protected IndexList addlout = new IndexList();
+
+	/**
+	 * The number of boundary points whose speed indicates they should still
+	 * move, i.e. points in Lin with speed < 0 and points in Lout with
+	 * speed > 0. Updated whenever phi or speed changes on the boundary.
+	 */
+	protected int nMoving;
+
+	/**
+	 * Constructor, the subclass must set phi and call initialiseLists()
+	 * @param params Parameters for the level set algorithm
+	 * @param neighbourhood The neighbours of a point
+	 * @param phi Phi, the same size as the image
+	 * @param speed The speed, the same size as the image
+	 */
+	protected BandLevelSet(FastLevelSet.Parameters params,
+						   Neighbourhood neighbourhood, G phi, G speed) {
+		super(params);
+		this.neighbourhood = neighbourhood;
+		this.phi = phi;
+		this.speed = speed;
+		nMoving = 0;
+	}
+
+	/**
+	 * Update the speed field with the points which have switched since it
+	 * was last updated
+	 */
+	protected abstract void updateSpeedChanges();
+
+	/**
+	 * Compute the speed at a point
+	 * @param p The linear index of the point
+	 * @return The speed at the point: [-1 0 1]
+	 */
+	protected abstract int computeSpeed(int p);
+
+	/**
+	 * Called at the start of each smoothing iteration
+	 * @return The threshold for the smoothing decision
+	 */
+	protected abstract int prepareSmooth();
+
+	/**
+	 * Calculate the smoothing field at a point
+	 * @param p The linear index of the point
+	 * @return The Gaussian weighted inside area around the point
+	 */
+	protected abstract int calculateSmooth(int p);
+
+	/**
+	 * Notify the speed and smoothing fields that a point has moved from
+	 * outside to inside
+	 * @param p The linear index of the point
+	 */
+	protected abstract void notifySwitchIn(int p);
+
+	/**
+	 * Notify the speed and smoothing fields that a point has moved from
+	 * inside to outside
+	 * @param p The linear index of the point
+	 */
+	protected abstract void notifySwitchOut(int p);
+
+	/**
+	 * Creates the Gaussian smoothing filter
+	 */
+	protected abstract void createGaussFilter();
+
+	/**
+	 * Evolve once according to the image speed field
+	 */
+	protected void evolveSpeed() {
+		/**
+		 * @todo Should we set the speed at the new positions to something else
+		 * to ensure the convergence check fails?
+		 * Currently: Whenever a point is switched set its speed to the opposite
+		 * of the convergence criteria to indicate that another iteration should
+		 * be done to calculate its speed.
+		 */
+		updateSpeedChanges();
+
+		// Points which are switched are dropped by compacting the list in
+		// place, which preserves the order of the remaining points
+		int n = lout.size();
+		int keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lout.get(k);
+			calculateSpeed(p);
+			if (speed.get(p) > 0) {
+				switchIn(p);
+			}
+			else {
+				lout.set(keep++, p);
+			}
+		}
+		lout.truncate(keep);
+
+		flushListAdditions();
+		cleanLin();
+
+		n = lin.size();
+		keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lin.get(k);
+			calculateSpeed(p);
+			if (speed.get(p) < 0) {
+				switchOut(p);
+			}
+			else {
+				lin.set(keep++, p);
+			}
+		}
+		lin.truncate(keep);
+
+		flushListAdditions();
+		cleanLout();
+	}
+
+	/**
+	 * Evolve once according to the smoothing field
+	 */
+	protected void evolveSmooth() {
+		int threshold = prepareSmooth();
+
+		int n = lout.size();
+		int keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lout.get(k);
+			int f = calculateSmooth(p);
+			if (f > threshold) {
+				switchIn(p);
+			}
+			else {
+				lout.set(keep++, p);
+			}
+		}
+		lout.truncate(keep);
+
+		flushListAdditions();
+		cleanLin();
+
+		n = lin.size();
+		keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lin.get(k);
+			int f = calculateSmooth(p);
+			if (f < threshold) {
+				switchOut(p);
+			}
+			else {
+				lin.set(keep++, p);
+			}
+		}
+		lin.truncate(keep);
+
+		flushListAdditions();
+		cleanLout();
+	}
+
+	/**
+	 * Gets the level-set function phi
+	 * @return phi
+	 */
+	public G getPhi() {
+		return phi;
+	}
+
+	/**
+	 * Get the number of boundary points which are still moving
+	 * @return the number of points in Lin with speed < 0 plus the number of
+	 *         points in Lout with speed > 0
+	 */
+	public int getNumMoving() {
+		return nMoving;
+	}
+
+	/**
+	 * Get the number of points on the boundary
+	 * @return the total size of Lin and Lout
+	 */
+	public int getBoundarySize() {
+		return lin.size() + lout.size();
+	}
+
+	/**
+	 * Get the fraction of the boundary which is still moving
+	 * @return getNumMoving() / getBoundarySize(), or 0 if the boundary is
+	 *         empty
+	 */
+	public double getMovingFraction() {
+		int n = getBoundarySize();
+		return n == 0 ? 0 : (double)nMoving / n;
+	}
+
+	/**
+	 * Has the level-set converged?
+	 * In theory we should recalculate the speed field before checking for
+	 * convergence, however this may be inefficient so instead the caller must
+	 * either do the recalculation or ensure the speed field indicates
+	 * non-convergence
+	 * The number of moving points is tracked incrementally so this does not
+	 * need to scan the boundary.
+	 * @return true if no more than convergenceTolerance of the boundary
+	 *         points are moving
+	 */
+	protected boolean hasConverged() {
+		// Convergence: speed(Lin) >= 0, speed(Lout) <= 0
+		return nMoving <= params.convergenceTolerance * getBoundarySize();
+	}
+
+	/**
+	 * Is a point on the boundary and still moving?
+	 * @param p The linear index of the point
+	 * @return 1 if p is in Lin with speed < 0 or in Lout with speed > 0,
+	 *         0 otherwise
+	 */
+	private int moving(int p) {
+		byte ph = phi.get(p);
+		byte sp = speed.get(p);
+		return ((ph == -1 && sp < 0) || (ph == 1 && sp > 0)) ? 1 : 0;
+	}
+
+	/**
+	 * Create Lin and Lout and the Gaussian smoothing filter, phi must have
+	 * been set to -3 inside and 3 outside
+	 */
+	protected void initialiseLists() {
+		// Add the points which have a neighbour on the other side to Lin or
+		// Lout (in raster order)
+		Neighbourhood nh = neighbourhood;
+		int n = nh.getNumPoints();
+		for (int p = 0; p < n; ++p) {
+			boolean inside = phi.get(p) < 0;
+			nh.find(p);
+
+			for (int i = 0; i < nh.size; ++i) {
+				if ((phi.get(nh.points[i]) < 0) != inside) {
+					addToList(p, inside ? ListType.IN : ListType.OUT);
+					break;
+				}
+			}
+		}
+
+		flushListAdditions();
+
+		checkConsistency();
+
+		if (params.smoothIterations > 0) {
+			createGaussFilter();
+		}
+	}
+
+	/**
+	 * Check everything is consistent
+	 */
+	protected void checkConsistency() {
+		if (!DEBUG_CHECK) {
+			return;
+		}
+
+		log.log(LevelSetLog.Level.DEBUG, "Checking consistency");
+
+		// Check Lin and Lout do not overlap or contain duplicates, and that
+		// phi, Lin and Lout are consistent
+		String errorMsg = "";
+		byte[] checked = new byte[neighbourhood.getNumPoints()];
+		int duplicates = 0;
+		int moving = 0;
+
+		for (int k = 0; k < lin.size(); ++k) {
+			int p = lin.get(k);
+			if (checked[p] != 0) {
+				++duplicates;
+			}
+			checked[p] = 1;
+			moving += moving(p);
+			if (phi.get(p) != -1) {
+				errorMsg += "Lin(" + neighbourhood.format(p) + "): phi=" +
+					phi.get(p) + ". ";
+			}
+		}
+
+		for (int k = 0; k < lout.size(); ++k) {
+			int p = lout.get(k);
+			if (checked[p] != 0) {
+				++duplicates;
+			}
+			checked[p] = 1;
+			moving += moving(p);
+			if (phi.get(p) != 1) {
+				errorMsg += "Lout(" + neighbourhood.format(p) + "): phi=" +
+					phi.get(p) + ". ";
+			}
+		}
+
+		if (duplicates > 0) {
+			errorMsg += duplicates + " duplicate point(s) found in Lin/Lout. ";
+		}
+
+		// Check the incremental count of moving points
+		if (moving != nMoving) {
+			errorMsg += "Moving points: counted " + moving + ", tracked "
+				+ nMoving + ". ";
+		}
+
+		// Now check remaining regions are either 3 or -3
+		for (int p = 0; p < checked.length; ++p) {
+			if (checked[p] == 0 && phi.get(p) != 3 && phi.get(p) != -3) {
+				errorMsg += "phi(" + neighbourhood.format(p) + ")=" +
+					phi.get(p) + ". ";
+			}
+		}
+
+		if (errorMsg.length() == 0) {
+			log.log(LevelSetLog.Level.DEBUG, "Consistency check succeeded");
+		}
+		else {
+			log.log(LevelSetLog.Level.ERROR, getClass().getSimpleName() +
+					":CheckConsistency: " +  errorMsg);
+		}
+	}
+
+	/**
+	 * Calculate the speed at a point, stores it in speed
+	 * @param p The linear index of the point
+	 */
+	protected void calculateSpeed(int p) {
+		setSpeed(p, computeSpeed(p));
+	}
+
+	/**
+	 * Store the speed at a point, and update the count of moving points
+	 * @param p The linear index of the point
+	 * @param s The speed at the point: [-1 0 1]
+	 */
+	protected void setSpeed(int p, int s) {
+		nMoving -= moving(p);
+		speed.set(p, (byte)s);
+		assert speed.get(p) >= -1 && speed.get(p) <= 1;
+		nMoving += moving(p);
+	}
+
+	/**
+	 * Add a point to the pending Lin or Lout additions.
+	 * @param p The linear index of the point to be added
+	 * @param ln Whether to add to the in or out list
+	 */
+	private void addToList(int p, ListType ln) {
+		switch(ln) {
+		case IN:
+			addlin.add(p);
+			phi.set(p, (byte)-1);
+			break;
+		case OUT:
+			addlout.add(p);
+			phi.set(p, (byte)1);
+			break;
+		default:
+			assert false;
+		}
+	}
+
+	/**
+	 * Move a point from Lout to the pending Lin additions
+	 * Changes speed field at the affected points so that convergence check
+	 * will fail
+	 * The caller is responsible for removing p from Lout, and
+	 * flushListAdditions() must be called when the iteration over Lout has
+	 * finished to ensure consistency
+	 * @param p The linear index of the point to be moved
+	 */
+	protected void switchIn(int p) {
+		notifySwitchIn(p);
+
+		// 1. Move point from Lout to Lin
+		// 2. Add outside neighbours of p to Lout
+		// 3. Set speed fields to ensure convergence check fails (as the speed
+		//	  field will need to be recalculated)
+		nMoving -= moving(p);
+		addToList(p, ListType.IN);
+		assert phi.get(p) == -1;
+		speed.set(p, (byte)-1);
+		++nMoving;
+
+		Neighbourhood nh = neighbourhood;
+		nh.find(p);
+
+		for (int i = 0; i < nh.size; ++i) {
+			int q = nh.points[i];
+			if (phi.get(q) == 3) {
+				addToList(q, ListType.OUT);
+				speed.set(q, (byte)1);
+				++nMoving;
+			}
+		}
+	}
+
+	/**
+	 * Move a point from Lin to the pending Lout additions
+	 * Changes speed field at the affected points so that convergence check
+	 * will fail
+	 * The caller is responsible for removing p from Lin, and
+	 * flushListAdditions() must be called when the iteration over Lin has
+	 * finished to ensure consistency
+	 * @param p The linear index of the point to be moved
+	 */
+	protected void switchOut(int p) {
+		notifySwitchOut(p);
+
+		// 1. Move point from Lin to Lout
+		// 2. Add inside neighbours of p to Lin
+		// 3. Set speed fields to ensure convergence check fails (as the speed
+		//	  field will need to be recalculated)
+		nMoving -= moving(p);
+		addToList(p, ListType.OUT);
+		assert phi.get(p) == 1;
+		speed.set(p, (byte)1);
+		++nMoving;
+
+		Neighbourhood nh = neighbourhood;
+		nh.find(p);
+
+		for (int i = 0; i < nh.size; ++i) {
+			int q = nh.points[i];
+			if (phi.get(q) == -3) {
+				addToList(q, ListType.IN);
+				speed.set(q, (byte)-1);
+				++nMoving;
+			}
+		}
+	}
+
+	/**
+	 * Insert any pending additions into the front (consistent with the
+	 * original C++/Matlab) of the appropriate lists
+	 */
+	protected void flushListAdditions() {
+		lin.prependAll(addlin);
+		addlin.clear();
+		lout.prependAll(addlout);
+		addlout.clear();
+	}
+
+	/**
+	 * Clean up Lin
+	 */
+	protected void cleanLin() {
+		Neighbourhood nh = neighbourhood;
+		int n = lin.size();
+		int keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lin.get(k);
+
+			// If all neighbours are < 0, remove from Lin
+			nh.find(p);
+			boolean allInside = true;
+
+			for (int i = 0; i < nh.size; ++i) {
+				if (phi.get(nh.points[i]) > 0) {
+					allInside = false;
+					break;
+				}
+			}
+
+			if (allInside) {
+				nMoving -= moving(p);
+				phi.set(p, (byte)-3);
+			}
+			else {
+				lin.set(keep++, p);
+			}
+		}
+		lin.truncate(keep);
+	}
+
+	/**
+	 * Clean up Lout
+	 */
+	protected void cleanLout() {
+		Neighbourhood nh = neighbourhood;
+		int n = lout.size();
+		int keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lout.get(k);
+
+			// If all neighbours are > 0, remove from Lout
+			nh.find(p);
+			boolean allOutside = true;
+
+			for (int i = 0; i < nh.size; ++i) {
+				if (phi.get(nh.points[i]) < 0) {
+					allOutside = false;
+					break;
+				}
+			}
+
+			if (allOutside) {
+				nMoving -= moving(p);
+				phi.set(p, (byte)3);
+			}
+			else {
+				lout.set(keep++, p);
+			}
+		}
+		lout.truncate(keep);
+	}
+}
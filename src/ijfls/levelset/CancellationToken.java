@@ -0,0 +1,22 @@
+package ijfls.levelset;
+
+/**
+ * Checked by the level set between sub-iterations so that a segmentation
+ * can be stopped early
+ */
+public interface CancellationToken {
+	/**
+	 * A token which is never cancelled
+	 */
+	public static final CancellationToken NONE = new CancellationToken() {
+		public boolean isCancelled() {
+			return false;
+		}
+	};
+
+	/**
+	 * Should the segmentation stop?
+	 * @return true to stop
+	 */
+	public boolean isCancelled();
+}
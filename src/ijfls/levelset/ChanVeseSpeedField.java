@@ -1,30 +1,74 @@
 package ijfls.levelset;
 
 import ij.process.*;
-import ij.IJ;
-import java.util.LinkedList;
 
 
 /**
  * A basic implementation of the Chan and Vese speed field
+ *
+ * The sign of the speed only depends on which side of the threshold
+ * (meanIn + meanOut) / 2 the intensity of a point lies, so the threshold is
+ * calculated whenever the means are updated and computeSpeed() only has to
+ * compare the pixel with it. For 8 and 16-bit images the threshold is also
+ * converted into the largest integer below it and the smallest integer
+ * above it, and computeSpeed() reads the pixel array directly and compares
+ * integers. The result is identical to getFLSSpeed(computeSpeedD()).
  */
 public class ChanVeseSpeedField extends SpeedField {
 	/**
 	 * The image
 	 */
-	private ImageProcessor im;
+	private ImageView im;
+
+	/**
+	 * Constructor, initialise() must be called before the speed field is
+	 * used
+	 * @param im The image
+	 */
+	public ChanVeseSpeedField(ImageProcessor im) {
+		this.im = ImageView.create(im);
+		width = this.im.getWidth();
+		bytePixels = this.im instanceof ImageView.Bytes ?
+			((ImageView.Bytes)this.im).pixels : null;
+		shortPixels = this.im instanceof ImageView.Shorts ?
+			((ImageView.Shorts)this.im).pixels : null;
+		floatPixels = this.im instanceof ImageView.Floats ?
+			((ImageView.Floats)this.im).pixels : null;
+		calculateTotals();
+	}
 
 	/**
 	 * Constructor
+	 * @param im The image
+	 * @param init The initialisation
 	 */
 	public ChanVeseSpeedField(ImageProcessor im, BinaryProcessor init) {
-		this.im = im;
+		this(im);
 		initialise(init);
-		IJ.log("ChanVeseSpeedField");
 	}
 
 	public int computeSpeed(FastLevelSet.Byte2D phi, Point p) {
-		return getFLSSpeed(computeSpeedD(phi, p));
+		int i = p.y * width + p.x;
+		if (bytePixels != null || shortPixels != null) {
+			int v = bytePixels != null ?
+				bytePixels[i] & 0xff : shortPixels[i] & 0xffff;
+			if (v >= above) {
+				return sign;
+			}
+			if (v <= below) {
+				return -sign;
+			}
+			return 0;
+		}
+
+		float v = floatPixels[i];
+		if (v > threshold) {
+			return sign;
+		}
+		if (v < threshold) {
+			return -sign;
+		}
+		return 0;
 	}
 
 	public double computeSpeedD(FastLevelSet.Byte2D phi, Point p) {
@@ -40,80 +84,154 @@ public class ChanVeseSpeedField extends SpeedField {
 		return sp;
 	}
 
+	public int getDependencyRadius() {
+		// The means are only updated by updateSpeedChanges()
+		return 0;
+	}
+
 	public boolean requiresSpeedUpdate() {
 		return in2out.size() > 0 || out2in.size() > 0;
 	}
 
 	public void switchOut(Point p) {
 		assert p.x < im.getWidth() && p.y < im.getHeight();
-		in2out.addFirst(p);
+		in2out.add(p.y * im.getWidth() + p.x);
 	}
 
 	public void switchIn(Point p) {
 		assert p.x < im.getWidth() && p.y < im.getHeight();
-		out2in.addFirst(p);
+		out2in.add(p.y * im.getWidth() + p.x);
 	}
 
 	public void updateSpeedChanges() {
-		for (Point p : in2out) {
-			--ain;
-			++aout;
-			tin -= im.get(p.x, p.y);
-			tout += im.get(p.x, p.y);
-		}
+		double d = im.sum(out2in) - im.sum(in2out);
+		ain += out2in.size() - in2out.size();
+		aout += in2out.size() - out2in.size();
+		tin += d;
+		tout -= d;
 		in2out.clear();
-
-		for (Point p : out2in) {
-			++ain;
-			--aout;
-			tin += im.get(p.x, p.y);
-			tout -= im.get(p.x, p.y);
-		}
 		out2in.clear();
 
 		double meanin = tin / ain;
 		double meanout = tout / aout;
 		sum = meanin + meanout;
 		diff = meanin - meanout;
+		updateThreshold();
 	}
 
 	/**
-	 * Calculate the initial inside and outside mean intensities
-	 */
-	protected void initialise(BinaryProcessor init) {
-		tin = 0;
-		tout = 0;
-		ain = 0;
-		aout = 0;
-
-		int w = im.getWidth();
-		int h = im.getHeight();
-		for(int y = 0; y < h; ++y) {
-			for(int x = 0; x < w; ++x) {
-				if (init.get(x, y) > 0) {
-					++ain;
-					tin += im.get(x, y);
-				}
-				else {
-					++aout;
-					tout += im.get(x, y);
-				}
+	 * Calculate the thresholds used by computeSpeed().
+	 * getFLSSpeed(computeSpeedD()) is -signum(diff * (sum - 2I)), which is
+	 * signum(diff) if I > sum / 2, -signum(diff) if I < sum / 2, and 0 if
+	 * they're equal or the means are undefined (comparisons with NaN are
+	 * false).
+	 */
+	private void updateThreshold() {
+		threshold = sum / 2;
+		if (Double.isNaN(diff) || Double.isNaN(threshold) || diff == 0) {
+			sign = 0;
+			above = Long.MIN_VALUE;
+			below = Long.MAX_VALUE;
+			return;
+		}
+		sign = diff > 0 ? 1 : -1;
+		// Pixels are ints, so clamping an infinite threshold is harmless
+		double t = Math.max(Math.min(threshold, 1e12), -1e12);
+		above = (long)Math.floor(t) + 1;
+		below = (long)Math.ceil(t) - 1;
+	}
+
+	/**
+	 * Calculate the initial inside and outside mean intensities.
+	 * Only the inside of the initialisation is summed, the outside is
+	 * obtained from the image totals.
+	 */
+	public void initialise(BinaryProcessor init) {
+		in2out.clear();
+		out2in.clear();
+
+		byte[] mask = (byte[])init.getPixels();
+		int n = 0;
+		for (int i = 0; i < mask.length; ++i) {
+			if (mask[i] != 0) {
+				++n;
 			}
 		}
+		double sumin = im.sum(mask);
+
+		ain = n;
+		aout = mask.length - n;
+		tin = sumin;
+		tout = total - sumin;
 
 		// This will take care of recalculate the sum and difference
 		updateSpeedChanges();
 	}
 
+	/**
+	 * Calculate the total intensity of the image, this doesn't depend on
+	 * the initialisation
+	 */
+	protected void calculateTotals() {
+		total = im.sum();
+	}
+
+	/**
+	 * The width of the image
+	 */
+	private final int width;
+
+	/**
+	 * The pixels of an 8-bit image, otherwise null
+	 */
+	private final byte[] bytePixels;
+
+	/**
+	 * The pixels of a 16-bit image, otherwise null
+	 */
+	private final short[] shortPixels;
+
+	/**
+	 * The pixels of a 32-bit image, otherwise null
+	 */
+	private final float[] floatPixels;
+
+	/**
+	 * The speed of points whose intensity is above the threshold, -sign is
+	 * the speed of points below it
+	 */
+	private int sign;
+
+	/**
+	 * The smallest integer above the threshold, used for integer images
+	 */
+	private long above;
+
+	/**
+	 * The largest integer below the threshold, used for integer images
+	 */
+	private long below;
+
+	/**
+	 * The intensity at which the speed changes sign, (meanIn + meanOut) / 2
+	 */
+	private double threshold;
+
 	/**
 	 * Current list of points which have moved from inside to outside
+	 * (linear indices, the caller may reuse the Point objects)
 	 */
-	private LinkedList<Point> in2out = new LinkedList<Point>();
+	private IndexList in2out = new IndexList();
 
 	/**
 	 * Current list of points which have moved from outside to inside
 	 */
-	private LinkedList<Point> out2in = new LinkedList<Point>();
+	private IndexList out2in = new IndexList();
+
+	/**
+	 * Total intensity of the image
+	 */
+	private double total;
 
 	/**
 	 * Total inside intensity
@@ -0,0 +1,142 @@
+package ijfls.levelset;
+
+import ij.ImageStack;
+
+
+/**
+ * The Chan and Vese speed field for a volume, the inside and outside means
+ * are calculated over the whole stack. As in ChanVeseSpeedField the speed
+ * is found by comparing the voxel with (meanIn + meanOut) / 2.
+ */
+public class ChanVeseSpeedField3D extends SpeedField3D {
+	/**
+	 * The image
+	 */
+	private StackVoxels im;
+
+	/**
+	 * Current list of points which have moved from inside to outside
+	 */
+	private IndexList in2out = new IndexList();
+
+	/**
+	 * Current list of points which have moved from outside to inside
+	 */
+	private IndexList out2in = new IndexList();
+
+	/**
+	 * Total inside intensity
+	 */
+	private double tin;
+
+	/**
+	 * Total outside intensity
+	 */
+	private double tout;
+
+	/**
+	 * Inside volume
+	 */
+	private long ain;
+
+	/**
+	 * Outside volume
+	 */
+	private long aout;
+
+	/**
+	 * Sum of means (inside + outside)
+	 */
+	private double sum;
+
+	/**
+	 * Difference between means (inside - outside)
+	 */
+	private double diff;
+
+	/**
+	 * The intensity at which the speed changes sign, (meanIn + meanOut) / 2
+	 */
+	private double threshold;
+
+	/**
+	 * The speed of voxels above the threshold, -sign is the speed of voxels
+	 * below it
+	 */
+	private int sign;
+
+	/**
+	 * Constructor
+	 * @param im The image
+	 * @param init The initialisation
+	 */
+	public ChanVeseSpeedField3D(ImageStack im, ImageStack init) {
+		this.im = new StackVoxels(im);
+		initialise(new StackVoxels(init));
+	}
+
+	int computeSpeed(FastLevelSet3D.Byte3D phi, int p) {
+		// See ChanVeseSpeedField.updateThreshold()
+		float v = im.get(p);
+		if (v > threshold) {
+			return sign;
+		}
+		if (v < threshold) {
+			return -sign;
+		}
+		return 0;
+	}
+
+	boolean requiresSpeedUpdate() {
+		return in2out.size() > 0 || out2in.size() > 0;
+	}
+
+	void switchOut(int p) {
+		in2out.add(p);
+	}
+
+	void switchIn(int p) {
+		out2in.add(p);
+	}
+
+	void updateSpeedChanges() {
+		double d = im.sum(out2in) - im.sum(in2out);
+		ain += out2in.size() - in2out.size();
+		aout += in2out.size() - out2in.size();
+		tin += d;
+		tout -= d;
+		in2out.clear();
+		out2in.clear();
+
+		double meanin = tin / ain;
+		double meanout = tout / aout;
+		sum = meanin + meanout;
+		diff = meanin - meanout;
+		threshold = sum / 2;
+		sign = Double.isNaN(diff) || diff == 0 ? 0 : (diff > 0 ? 1 : -1);
+	}
+
+	/**
+	 * Calculate the initial inside and outside mean intensities
+	 * @param init The initialisation
+	 */
+	protected void initialise(StackVoxels init) {
+		double sumin = 0;
+		ain = 0;
+
+		int n = im.getWidth() * im.getHeight() * im.getDepth();
+		for (int p = 0; p < n; ++p) {
+			if (init.get(p) > 0) {
+				++ain;
+				sumin += im.get(p);
+			}
+		}
+
+		aout = n - ain;
+		tin = sumin;
+		tout = im.sum() - sumin;
+
+		// This will take care of recalculate the sum and difference
+		updateSpeedChanges();
+	}
+}
@@ -0,0 +1,314 @@
+package ijfls.levelset;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import ij.process.*;
+
+
+/**
+ * An edge based speed field, similar to geodesic active contours with a
+ * balloon force.
+ *
+ * The edge stopping function g = 1 / (1 + (|grad I| / k)^2) is calculated
+ * once for the whole image, where the gradient is found using Sobel
+ * filters. The boundary moves outwards (or inwards) where g > 0.5, and
+ * backwards where g < 0.5, so it settles on edges where the gradient
+ * magnitude is close to k. The speed at every pixel is precomputed so
+ * computeSpeed() is a single array read, and since the speed doesn't depend
+ * on phi no initialisation is required.
+ */
+public class EdgeSpeedField extends SpeedField {
+	/**
+	 * Parameters for the edge speed field
+	 */
+	public static class Parameters {
+		/**
+		 * The gradient magnitude at which the boundary stops, if <= 0 the
+		 * mean gradient magnitude of the image is used
+		 */
+		public double edgeScale;
+
+		/**
+		 * If true the boundary expands away from edges, otherwise it
+		 * contracts
+		 */
+		public boolean expand;
+
+		/**
+		 * Number of threads used to calculate the gradient
+		 */
+		public int threads;
+
+		/**
+		 * Set parameters to defaults
+		 */
+		public Parameters() {
+			edgeScale = 0;
+			expand = true;
+			threads = 1;
+		}
+
+		/**
+		 * Copy parameters
+		 * @param other The parameters to copy
+		 */
+		public Parameters(Parameters other) {
+			edgeScale = other.edgeScale;
+			expand = other.expand;
+			threads = other.threads;
+		}
+	}
+
+	/**
+	 * The edge stopping function at each pixel
+	 */
+	private final float[] g;
+
+	/**
+	 * The fast level set speed at each pixel, [-1 0 1]
+	 */
+	private final byte[] speed;
+
+	/**
+	 * The width of the image
+	 */
+	private final int width;
+
+	/**
+	 * +1 if the boundary expands away from edges, -1 if it contracts
+	 */
+	private final int direction;
+
+	/**
+	 * The gradient magnitude at which the boundary stops
+	 */
+	private double edgeScale;
+
+	/**
+	 * The time taken to precompute the speed field in milliseconds
+	 */
+	private final double precomputeMs;
+
+	/**
+	 * Interface for a task which processes a range of rows
+	 */
+	private interface RowTask {
+		/**
+		 * Process rows [y0, y1)
+		 * @param y0 The first row
+		 * @param y1 One past the last row
+		 */
+		void run(int y0, int y1);
+	}
+
+	/**
+	 * Constructor, the speed field is calculated immediately
+	 * @param params Parameters for calculating the speed field, may be null
+	 *        to use the defaults
+	 * @param im The image
+	 */
+	public EdgeSpeedField(Parameters params, ImageProcessor im) {
+		if (params == null) {
+			params = new Parameters();
+		}
+		long start = System.nanoTime();
+
+		width = im.getWidth();
+		g = new float[width * im.getHeight()];
+		speed = new byte[g.length];
+		direction = params.expand ? 1 : -1;
+		edgeScale = params.edgeScale;
+		precompute(im, Math.max(params.threads, 1));
+
+		precomputeMs = (System.nanoTime() - start) / 1e6;
+	}
+
+	/**
+	 * Constructor
+	 * @param params Parameters for calculating the speed field, may be null
+	 * @param im The image
+	 * @param init The initialisation, not used
+	 */
+	public EdgeSpeedField(Parameters params, ImageProcessor im,
+						  BinaryProcessor init) {
+		this(params, im);
+		initialise(init);
+	}
+
+	public int computeSpeed(FastLevelSet.Byte2D phi, Point p) {
+		return speed[p.y * width + p.x];
+	}
+
+	public double computeSpeedD(FastLevelSet.Byte2D phi, Point p) {
+		// Positive contracts, see SpeedField
+		return direction * (0.5 - g[p.y * width + p.x]);
+	}
+
+	public int getDependencyRadius() {
+		return 0;
+	}
+
+	public String describe() {
+		return "EdgeSpeedField Parameters: edgeScale:"
+			+ LevelSetLog.d2s(edgeScale, 3) + " expand:" + (direction > 0)
+			+ " precompute (ms):" + LevelSetLog.d2s(precomputeMs, 1);
+	}
+
+	/**
+	 * Get the gradient magnitude at which the boundary stops, calculated
+	 * from the image if it wasn't given
+	 * @return The edge scale
+	 */
+	public double getEdgeScale() {
+		return edgeScale;
+	}
+
+	/**
+	 * Get the time taken to calculate the gradient and speeds, this is
+	 * separate from the evolution of the level set
+	 * @return The time in milliseconds
+	 */
+	public double getPrecomputeMillis() {
+		return precomputeMs;
+	}
+
+	/**
+	 * Calculate the gradient magnitude, the edge stopping function and the
+	 * speed at every pixel
+	 * @param im The image
+	 * @param threads The number of threads, one pool is shared by all the
+	 *        passes over the rows
+	 */
+	private void precompute(ImageProcessor im, int threads) {
+		int h = im.getHeight();
+		if (threads <= 1 || h < 2 * threads) {
+			precompute(im, 1, null);
+			return;
+		}
+
+		ExecutorService pool = Executors.newFixedThreadPool(threads);
+		try {
+			precompute(im, threads, pool);
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	/**
+	 * Calculate the gradient magnitude, the edge stopping function and the
+	 * speed at every pixel
+	 * @param im The image
+	 * @param threads The number of threads in pool
+	 * @param pool The threads, null to use this thread
+	 */
+	private void precompute(final ImageProcessor im, int threads,
+							ExecutorService pool) {
+		final int w = width;
+		final int h = im.getHeight();
+
+		// getf() returns values for all image types
+		final float[] pixels = new float[g.length];
+		forRows(h, threads, pool, new RowTask() {
+			public void run(int y0, int y1) {
+				for (int i = y0 * w; i < y1 * w; ++i) {
+					pixels[i] = im.getf(i);
+				}
+			}
+		});
+
+		// Sobel gradient magnitude, replicating the edges
+		final double[] rowSums = new double[h];
+		forRows(h, threads, pool, new RowTask() {
+			public void run(int y0, int y1) {
+				for (int y = y0; y < y1; ++y) {
+					int up = Math.max(y - 1, 0) * w;
+					int mid = y * w;
+					int down = Math.min(y + 1, h - 1) * w;
+					double rowSum = 0;
+					for (int x = 0; x < w; ++x) {
+						int l = Math.max(x - 1, 0);
+						int r = Math.min(x + 1, w - 1);
+						float gx = pixels[up + r] - pixels[up + l] +
+							2 * (pixels[mid + r] - pixels[mid + l]) +
+							pixels[down + r] - pixels[down + l];
+						float gy = pixels[down + l] - pixels[up + l] +
+							2 * (pixels[down + x] - pixels[up + x]) +
+							pixels[down + r] - pixels[up + r];
+						float m = (float)Math.sqrt(gx * gx + gy * gy) / 8;
+						g[mid + x] = m;
+						rowSum += m;
+					}
+					rowSums[y] = rowSum;
+				}
+			}
+		});
+
+		if (edgeScale <= 0) {
+			double total = 0;
+			for (double s : rowSums) {
+				total += s;
+			}
+			edgeScale = total / g.length;
+			if (edgeScale <= 0) {
+				// Uniform image
+				edgeScale = 1;
+			}
+		}
+
+		final double k2 = edgeScale * edgeScale;
+		forRows(h, threads, pool, new RowTask() {
+			public void run(int y0, int y1) {
+				for (int i = y0 * w; i < y1 * w; ++i) {
+					double m = g[i];
+					g[i] = (float)(1 / (1 + m * m / k2));
+					speed[i] = (byte)getFLSSpeed(direction * (0.5 - g[i]));
+				}
+			}
+		});
+	}
+
+	/**
+	 * Run a task over all rows, dividing them between threads
+	 * @param h The number of rows
+	 * @param threads The number of threads in pool
+	 * @param pool The threads, null to use this thread
+	 * @param task The task
+	 */
+	private static void forRows(int h, int threads, ExecutorService pool,
+								final RowTask task) {
+		if (pool == null) {
+			task.run(0, h);
+			return;
+		}
+
+		try {
+			List<Future<Void>> results = new ArrayList<Future<Void>>();
+			for (int t = 0; t < threads; ++t) {
+				final int y0 = (int)((long)h * t / threads);
+				final int y1 = (int)((long)h * (t + 1) / threads);
+				results.add(pool.submit(new Callable<Void>() {
+					public Void call() {
+						task.run(y0, y1);
+						return null;
+					}
+				}));
+			}
+			for (Future<Void> f : results) {
+				f.get();
+			}
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException(e);
+		}
+		catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+}
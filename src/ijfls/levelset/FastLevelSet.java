@@ -1,11 +1,11 @@
 package ijfls.levelset;
 
-import ij.IJ;
 import ij.process.*;
 
 import java.util.List;
 import java.util.LinkedList;
 import java.util.Iterator;
+import java.util.NoSuchElementException;
 
 
 /**
@@ -20,8 +20,12 @@ import java.util.Iterator;
  * Essentially this is an extreme narrowband method, which takes advantage
  * of the fact that for image segmentation we don't always need to solve
  * the level-set PDE exactly, see paper for details.
+ *
+ * The boundary lists and the evolution are implemented by BandLevelSet,
+ * this class provides the 4-connected image geometry, the speed field and
+ * the smoothing filter.
  */
-public class FastLevelSet {
+public class FastLevelSet extends BandLevelSet<FastLevelSet.Byte2D> {
 
 	/**
 	 * Parameters for the fast level set algorithm
@@ -51,12 +55,27 @@ public class FastLevelSet {
 		 * Sigma for the Gaussian filter
 		 */
 		public double gaussSigma;
+
+		/**
+		 * The level set is considered to have converged when no more than
+		 * this fraction of the boundary points are still moving, 0 means
+		 * all points must have stopped
+		 */
+		public double convergenceTolerance;
+
+		/**
+		 * Cache the smoothing convolution and update it as points switch
+		 * (uses an int per pixel) instead of recalculating it in full at
+		 * every boundary point on every smoothing iteration. This is only
+		 * faster if few points switch in each iteration.
+		 */
+		public boolean incrementalSmoothing;
 	}
 
 	/**
 	 * A 2D array which holds signed values
 	 */
-	protected class Byte2D {
+	protected static class Byte2D extends BandLevelSet.Bytes {
 		/**
 		 * @param w Number of columns
 		 */
@@ -67,19 +86,14 @@ public class FastLevelSet {
 		 */
 		private int height;
 
-		/**
-		 * @the contents of the matrix
-		 */
-		private byte[] vals;
-
 		/**
 		 * @param w Number of columns
 		 * @param h Number of rows
 		 */
 		public Byte2D(int w, int h) {
+			super(w * h);
 			width = w;
 			height = h;
-			vals = new byte[w * h];
 		}
 
 		/**
@@ -101,18 +115,21 @@ public class FastLevelSet {
 		public void set(int x, int y, byte v) {
 			vals[y * width + x] = v;
 		}
-	}
 
-	/**
-	 * Controls whether a self-consistency check is performed at every step
-	 * (very slow, for testing only)
-	 */
-	public final boolean DEBUG_CHECK = false;
+		/**
+		 * @return the number of columns
+		 */
+		public int getWidth() {
+			return width;
+		}
 
-	/**
-	 * Parameters for the level-set algorithm
-	 */
-	protected Parameters params;
+		/**
+		 * @return the number of rows
+		 */
+		public int getHeight() {
+			return height;
+		}
+	}
 
 	/**
 	 * Size of the image
@@ -125,44 +142,9 @@ public class FastLevelSet {
 	protected ImageProcessor im; // ImageType
 
 	/**
-	 * Phi (level-set function)
-	 */
-	protected Byte2D phi; // PhiType
-
-	/**
-	 * Temporary speed field
-	 */
-	protected Byte2D speed; // SpeedType
-
-	/**
-	 * List of points on inside of boundary
-	 */
-	protected List<Point> lin = new LinkedList<Point>();
-
-	/**
-	 * List of points on outside of boundary
-	 */
-	protected List<Point> lout = new LinkedList<Point>();
-
-	/**
-	 * Temporary list of points to be added to Lin
+	 * The Gaussian smoothing filter, null if smoothing is disabled
 	 */
-	protected List<Point> addlin = new LinkedList<Point>();
-
-	/**
-	 * Temporary list of points to be added to Lout
-	 */
-	protected List<Point> addlout = new LinkedList<Point>();
-
-	/**
-	 * The Gaussian filter matrix
-	 */
-	protected Byte2D gaussFilter;
-
-	/**
-	 * The threshold for the Gaussian filter smoothing
-	 */
-	protected int gaussFilterThreshold;
+	protected SmoothingFilter smoothing;
 
 	/**
 	 * The speed field
@@ -170,20 +152,9 @@ public class FastLevelSet {
 	protected SpeedField speedField;
 
 	/**
-	 * A temporary variable to hold the current neighbourhood of a point
-	 */
-	protected Point[] nhood;
-
-	/**
-	 * Number of points in the neighbourhood
-	 */
-	protected int nhSize;
-
-	/**
-	 * List of classes to notify of iteration progress
+	 * A temporary point used to pass coordinates to the speed field
 	 */
-	protected List<LevelSetIterationListener> iterationListerners =
-		new LinkedList<LevelSetIterationListener>();
+	protected Point pt;
 
 	/**
 	 * List of classes to notify of updated pixels lists
@@ -202,183 +173,19 @@ public class FastLevelSet {
 	 */
 	public FastLevelSet(Parameters params, ImageProcessor im,
 						BinaryProcessor init, SpeedField speedf) {
-		this.params = params;
+		super(params, new Neighbourhood.Grid4(im.getWidth(), im.getHeight()),
+			  new Byte2D(im.getWidth(), im.getHeight()),
+			  new Byte2D(im.getWidth(), im.getHeight()));
 		size = new Point(im.getWidth(), im.getHeight());
 
 		this.im = im;
-		phi = new Byte2D(size.x, size.y);
-		speed = new Byte2D(size.x, size.y);
-
-		gaussFilter = new Byte2D(
-			params.gaussWidth * 2 + 1, params.gaussWidth * 2 + 1);
-		gaussFilterThreshold = 0;
+		smoothing = null;
 		speedField = speedf;
-		nhood = new Point[4];
-		for (int i = 0; i < 4; ++i) {
-			nhood[i] = new Point(0, 0);
-		}
-		nhSize = 0;
+		pt = new Point(0, 0);
 
 		initialise(init);
 	}
 
-	
-	/**
-	 * Segment the image, subject to the maximum iterations
-	 * @return true if segmentation completed, false otherwise
-	 */
-	public boolean segment() {
-		boolean converged = false;
-
-		IJ.log("speedIterations:" + params.speedIterations +
-			   " smoothIterations:" + params.smoothIterations +
-			   " maxIterations:" + params.maxIterations +
-			   " gaussWidth:" + params.gaussWidth + 
-			   " gaussSigma:" + IJ.d2s(params.gaussSigma));
-
-		for(int nIts = 0; nIts < params.maxIterations; ++nIts) {
-			IJ.log("Iteration: " + (nIts + 1) +
-				   "/" + params.maxIterations);
-
-			for(int nSpeedIts = 0; nSpeedIts < params.speedIterations;
-				++nSpeedIts) {
-				IJ.log("\tSpeed: [" + (nIts + 1) + "]" +
-					   (nSpeedIts + 1) + "/" + params.speedIterations);
-
-				evolveSpeed();
-				checkConsistency();
-				notifySpeed(nIts + 1, params.maxIterations, nSpeedIts + 1,
-							params.speedIterations);
-
-				converged = hasConverged();
-				if(converged) {
-					// Always do at least two iterations
-					if (nIts == 0) {
-						IJ.log("Converged on iteration [" + (nIts + 1)
-							   + "]" + (nSpeedIts + 1) + ", ignoring");
-						converged = false;
-
-						// Always break because the level set is currently stuck
-					}
-					else {
-						IJ.log("Converged on iteration [" + (nIts + 1)
-							   + "]" + (nSpeedIts + 1));
-					}
-
-					break;
-				}
-
-				if (escapePressed()) {
-					return false;
-				}
-			}
-
-			for(int nSmoothIts = 0; nSmoothIts < params.smoothIterations;
-				++nSmoothIts) {
-				IJ.log("\tSmooth: [" + (nIts + 1) + "]"
-					   + (nSmoothIts + 1) + "/" + params.smoothIterations);
-
-				evolveSmooth();
-				checkConsistency();
-				notifySmooth(nIts + 1, params.maxIterations, nSmoothIts + 1,
-							params.smoothIterations);
-
-				if (escapePressed()) {
-					return false;
-				}
-			}
-
-			notifyFull(nIts + 1, params.maxIterations);
-
-			if (converged) {
-				break;
-			}
-		}
-
-		return true;
-	}
-
-	/**
-	 * Evolve once according to the image speed field
-	 */
-	protected void evolveSpeed() {
-		/**
-		 * @todo Should we set the speed at the new positions to something else
-		 * to ensure the convergence check fails?
-		 * Currently: Whenever a point is switched set its speed to the opposite
-		 * of the convergence criteria to indicate that another iteration should
-		 * be done to calculate its speed.
-		 */
-		if (speedField.requiresSpeedUpdate()) {
-			speedField.updateSpeedChanges();
-		}
-
-		Iterator<Point> pi;
-
-		pi = lout.iterator();
-		while (pi.hasNext()) {
-			Point p = pi.next();
-			calculateSpeed(p);
-			if (speed.get(p.x, p.y) > 0) {
-				switchIn(pi, p);
-			}
-		}
-
-		flushListAdditions();
-		cleanLin();
-
-		pi = lin.iterator();
-		while(pi.hasNext()) {
-			Point p = pi.next();
-			calculateSpeed(p);
-			if(speed.get(p.x, p.y) < 0) {
-				switchOut(pi, p);
-			}
-		}
-
-		flushListAdditions();
-		cleanLout();
-	}
-
-	/**
-	 * Evolve once according to the smoothing field
-	 */
-	protected void evolveSmooth() {
-		Iterator<Point> pi;
-
-		pi = lout.iterator();
-		while (pi.hasNext()) {
-			Point p = pi.next();
-			int f = calculateSmooth(p);
-			if(f > gaussFilterThreshold) {
-				switchIn(pi, p);
-			}
-		}
-
-		flushListAdditions();
-		cleanLin();
-
-		pi = lin.iterator();
-		while (pi.hasNext()) {
-			Point p = pi.next();
-			int f = calculateSmooth(p);
-			if(f < gaussFilterThreshold) {
-				switchOut(pi, p);
-			}
-		}
-
-		flushListAdditions();
-		cleanLout();
-	}
-
-	/**
-	 * Gets the level-set function phi
-	 * @return phi
-	 */
-	public Byte2D getPhi() {
-		return phi;
-	}
-
 	/**
 	 * Gets a binary segmentation from phi
 	 * @return the segmented image
@@ -386,506 +193,129 @@ public class FastLevelSet {
 	public BinaryProcessor getSegmentation() {
 		BinaryProcessor seg = new BinaryProcessor(
 			new ByteProcessor(size.x, size.y));
-		for(int y = 0; y < size.y; ++y) {
-			for(int x = 0; x < size.x; ++x) {
-				seg.set(x, y, phi.get(x, y) < 0 ? 255 : 0);
-			}
+		byte[] pixels = (byte[])seg.getPixels();
+		for (int i = 0; i < pixels.length; ++i) {
+			pixels[i] = phi.get(i) < 0 ? (byte)255 : 0;
 		}
 		return seg;
 	}
 
-	/**
-	 * Has the level-set converged?
-	 * In theory we should recalculate the speed field before checking for
-	 * convergence, however this may be inefficient so instead the caller must
-	 * either do the recalculation or ensure the speed field indicates
-	 * non-convergence
-	 * @todo Get rid of the convergence check since it probably isn't that
-	 * useful
-	 * @return true if convergence has been reached
-	 */
-	protected boolean hasConverged() {
-		// Convergence: speed(Lin) >= 0, speed(Lout) <= 0
-
-		for (Point p : lin) {
-			if(speed.get(p.x, p.y) < 0) {
-				return false;
-			}
-		}
-
-		for (Point p : lout) {
-			if(speed.get(p.x, p.y) > 0) {
-				return false;
-			}
-		}
-
-		return true;
-	}
-
 	/**
 	 * Initialise phi and create the Gaussian smoothing filter
 	 * @param init The binary initialisation
 	 */
 	protected void initialise(BinaryProcessor init) {
-		/**
-		 * @todo optimise this
-		 */
-		Point p = new Point(0, 0);
-		for (p.y = 0; p.y < size.y; ++p.y) {
-			for (p.x = 0; p.x < size.x; ++p.x) {
-				if (init.get(p.x, p.y) > 0) {
-					addToList(p, ListType.IN);
-				}
-				else {
-					addToList(p, ListType.OUT);
-				}
+		// Mark everything as interior or exterior
+		for (int y = 0; y < size.y; ++y) {
+			for (int x = 0; x < size.x; ++x) {
+				phi.set(x, y, init.get(x, y) > 0 ? (byte)-3 : (byte)3);
 			}
 		}
 
-		flushListAdditions();
-		cleanLin();
-		cleanLout();
-
-		checkConsistency();
-
-		if (params.smoothIterations > 0) {
-			createGaussFilter();
-		}
+		initialiseLists();
 	}
 
-	/**
-	 * Creates the Gaussian filter matrix, scaled up to integers
-	 */
 	protected void createGaussFilter() {
-		int gw = params.gaussWidth;
-		double gs = params.gaussSigma;
-		int s = 2 * gw + 1;
-		int gfScale = 0;
-
-		// Rough heuristic: scale by number of elements in filter
-		double scale1 = s * s;
-		if (scale1 > 255) {
-			// This is because gaussFilter is a byte array
-			error("Not implemented for s > 15");
+		if (params.incrementalSmoothing) {
+			smoothing = new IncrementalSmoothingFilter(
+				params.gaussWidth, params.gaussSigma, size.x, size.y);
 		}
-
-		// In theory could just calculate 1/8th and duplicate instead
-		for (int y = 0; y < s; ++y) {
-			for (int x = 0; x < s; ++x) {
-				double d2 = (x - gw) * (x - gw) + (y - gw) * (y - gw);
-				double gf = 1.0 / gs / gs * Math.exp(-0.5 / gs / gs * d2)
-					* scale1;
-				gaussFilter.set(x, y, (byte)gf);
-				gfScale += gf;
-			}
+		else {
+			smoothing = new SmoothingFilter(
+				params.gaussWidth, params.gaussSigma, size.x, size.y);
 		}
-		gaussFilterThreshold = gfScale / 2;
 	}
 
 	/**
-	 * Check everything is consistent
+	 * Convert a linear index into the temporary point
+	 * @param p The linear index
+	 * @return pt, updated to hold the coordinates of p
 	 */
-	protected void checkConsistency() {
-		if (!DEBUG_CHECK) {
-			return;
-		}
-
-		IJ.log("Checking consistency\n");
-
-		// Check Lin and Lout do not overlap or contain duplicates
-		String errorMsg = "";
-		java.util.Set<Point> setLin = new java.util.TreeSet<Point>(lin);
-		java.util.Set<Point> setLout = new java.util.TreeSet<Point>(lout);
-
-		if (lin.size() != setLin.size()) {
-			errorMsg += "Lin contains " + (lin.size() - setLin.size())
-				+ " duplicates. ";
-		}
-		if (lout.size() != setLout.size()) {
-			errorMsg += "Lout contains " + (lout.size() - setLout.size())
-				+ " duplicates. ";
-		}
-
-		java.util.Set<Point> inter = new java.util.TreeSet<Point>(setLin);
-		inter.retainAll(setLout);
-		if (inter.size() > 0) {
-			errorMsg += inter.size() + " point(s) found in both Lin and Lout. ";
-		}
-
-		// Don't bother checking further if there's already an error
-		if (errorMsg.length() > 0) {
-			error("FastLevelSet:CheckConsistency: " +  errorMsg);
-		}
-
-		// Check phi, Lin and Lout are consistent
-		Byte2D checked = new Byte2D(size.x, size.y);
-
-		for (Point p : lin) {
-			if (phi.get(p.x, p.y) == -1) {
-				checked.set(p.x, p.y, (byte)1);
-			}
-			else {
-				errorMsg += "Lin(" + p.x + "," + p.y + "): phi="
-					+ phi.get(p.x, p.y) + ". ";
-			}
-		}
-
-		for (Point p : lout) {
-			if (phi.get(p.x, p.y) == 1) {
-				checked.set(p.x, p.y, (byte)1);
-			}
-			else {
-				errorMsg += "Lout(" + p.x + "," + p.y + "): phi="
-					+ phi.get(p.x, p.y) + ". ";
-			}
-		}
-
-		// Now check remaining regions are either 3 or -3
-		for (int y = 0; y < size.y; ++y) {
-			for (int x = 0; x < size.x; ++x) {
-				if (phi.get(x, y) == 3 || phi.get(x, y) == -3) {
-					checked.set(x, y, (byte)1);
-				}
-				else if (checked.get(x, y) == 0) {
-					errorMsg += "phi(" + x + "," + y	+ ")="
-						+ phi.get(x, y) + ". ";
-				}
-			}
-		}
-
-		if (errorMsg.length() == 0) {
-			IJ.log("Consistency check succeeded\n");
-		}
-		else {
-			error("FastLevelSet:CheckConsistency: " +  errorMsg);
-		}
+	protected Point toPoint(int p) {
+		pt.x = p % size.x;
+		pt.y = p / size.x;
+		return pt;
 	}
 
-	/**
-	 * Calculate the speed at a point, stores it in m_speed
-	 */
-	protected void calculateSpeed(Point p) {
-		/**
-		 * @todo Remove floating point calculations
-		 */
-		speed.set(p.x, p.y, (byte)speedField.computeSpeed(phi, p));
-		assert speed.get(p.x, p.y) >= -1 && speed.get(p.x, p.y) <= 1;
+	protected String describeSpeedField() {
+		return speedField.describe();
 	}
 
-	/**
-	 * Calculate the smoothing field at a point
-	 */
-	protected int calculateSmooth(Point p) {
-		// Convolve neighbourhood of a point with a gaussian
-		int gw = params.gaussWidth;
-		int dxmax = Math.min(gw + 1, size.x - p.x);
-		int dymax = Math.min(gw + 1, size.y - p.y);
-		int dxmin = Math.max(-gw, -p.x);
-		int dymin = Math.max(-gw, -p.y);
-
-		int f = 0;
-		for(int dy = dymin; dy < dymax; ++dy) {
-			for(int dx = dxmin; dx < dxmax; ++dx) {
-				// conv(G, phi < 0)
-				if (phi.get(p.x + dx, p.y + dy) < 0) {
-					f = f + gaussFilter.get(gw + dx, gw + dy);
-				}
-			}
+	protected void updateSpeedChanges() {
+		if (speedField.requiresSpeedUpdate()) {
+			speedField.updateSpeedChanges();
 		}
-
-		return f;
 	}
 
-	/**
-	 * Gets the 4-connected neighbourhood of a point
-	 */
-	protected void getNeighbourhood(Point p) {
+	protected int computeSpeed(int p) {
 		/**
-		 * @todo Ignore bounds, and instead check bounds when neighbourhood is
-		 * used?
+		 * @todo Remove floating point calculations
 		 */
-		if (p.x == 0) {
-			if (p.y == 0) {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y + 1;
-				nhood[1].x = p.x + 1;
-				nhood[1].y = p.y;
-				nhSize = 2;
-			}
-			else if (p.y == size.y - 1) {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y - 1;
-				nhood[1].x = p.x + 1;
-				nhood[1].y = p.y;
-				nhSize = 2;
-			}
-			else {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y + 1;
-				nhood[1].x = p.x;
-				nhood[1].y = p.y - 1;
-				nhood[2].x = p.x + 1;
-				nhood[2].y = p.y;
-				nhSize = 3;
-			}
-		}
-		else if (p.x == size.x - 1) {
-			if (p.y == 0) {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y + 1;
-				nhood[1].x = p.x - 1;
-				nhood[1].y = p.y;
-				nhSize = 2;
-			}
-			else if (p.y == size.y - 1) {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y - 1;
-				nhood[1].x = p.x - 1;
-				nhood[1].y = p.y;
-				nhSize = 2;
-			}
-			else {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y + 1;
-				nhood[1].x = p.x;
-				nhood[1].y = p.y - 1;
-				nhood[2].x = p.x - 1;
-				nhood[2].y = p.y;
-				nhSize = 3;
-			}
-		}
-		else {
-			if (p.y == 0) {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y + 1;
-				nhood[1].x = p.x - 1;
-				nhood[1].y = p.y;
-				nhood[2].x = p.x + 1;
-				nhood[2].y = p.y;
-				nhSize = 3;
-			}
-			else if (p.y == size.y - 1) {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y - 1;
-				nhood[1].x = p.x - 1;
-				nhood[1].y = p.y;
-				nhood[2].x = p.x + 1;
-				nhood[2].y = p.y;
-				nhSize = 3; 
-			}
-			else {
-				nhood[0].x = p.x;
-				nhood[0].y = p.y + 1;
-				nhood[1].x = p.x;
-				nhood[1].y = p.y - 1;
-				nhood[2].x = p.x + 1;
-				nhood[2].y = p.y;
-				nhood[3].x = p.x - 1;
-				nhood[3].y = p.y;
-				nhSize = 4;
-			}
-		}
+		return speedField.computeSpeed(phi, toPoint(p));
 	}
 
-	/**
-	 * Identifiers for the two lists of pixels
-	 */
-	protected enum ListType
-	{
-		IN, OUT;
-	};
-
-	/**
-	 * Add a point to the Lin or Lout.
-	 * @param p The point to be added
-	 * @param ln Whether to add to the in or out list
-	 */
-	private void addToList(Point p, ListType ln) {
-		//IJ.log("addToList: p=(" + p.x + "," + p.y + ") ln=" + ln);
-
-		switch(ln) {
-		case IN:
-			addlin.add(new Point(p.x, p.y));
-			phi.set(p.x, p.y, (byte)-1);
-			break;
-		case OUT:
-			addlout.add(new Point(p.x, p.y));
-			phi.set(p.x, p.y, (byte)1);
-			break;
-		default:
-			assert false;
-		}
+	protected int prepareSmooth() {
+		smoothing.updateSwitches(getBoundarySize());
+		return smoothing.getThreshold();
 	}
 
-	/**
-	 * Remove a point from Lin or Lout
-	 * @param pi Iterator to the point to be removed
-	 * @param p The point to be removed (needed to update phi)
-	 * @param ln Whether to work on the in or out list
-	 * @param phival The new value of phi at this point
-	 */
-	private void removeFromList(Iterator<Point> pi, Point p,
-								ListType ln, byte phival) {
-		//IJ.log("removeFromList: p=(" + p.x + "," + p.y + ") ln=" + ln
-		//	   + " phival:" + phival);
-
-		switch(ln) {
-		case IN:
-			if (phival != 0) {
-				phi.set(p.x, p.y, phival);
-			}
-			pi.remove();
-			break;
-		case OUT:
-			if (phival != 0) {
-				phi.set(p.x, p.y, phival);
-			}
-			pi.remove();
-			break;
-		default:
-			assert false ;
-		}
+	protected int calculateSmooth(int p) {
+		// Convolve neighbourhood of a point with a gaussian
+		return smoothing.compute(phi, p);
 	}
 
-	/**
-	 * Move a point from Lout to the pending Lin additions
-	 * Changes speed field at the affected points so that convergence check
-	 * will fail
-	 * flushListAdditions() must be called when all iterators are no longer
-	 * required to ensure consistency
-	 * @param pi Iterator to the point to be moved
-	 * @param p The point to be moved (needed to update phi)
-	 */
-	private void switchIn(Iterator<Point> pi, Point p) {
-		//IJ.log("switchIn: p=(" + p.x + "," + p.y + ")");
-		speedField.switchIn(p);
-
-		// 1. Move point from Lout to Lin
-		// 2. Add outside neighbours of p to Lout
-		// 3. Set speed fields to ensure convergence check fails (as the speed
-		//	  field will need to be recalculated)
-		addToList(p, ListType.IN);
-		assert phi.get(p.x, p.y) == -1;
-		speed.set(p.x, p.y, (byte)-1);
-
-		getNeighbourhood(p);
-
-		for (int i = 0; i < nhSize; ++i) {
-			if (phi.get(nhood[i].x, nhood[i].y) == 3) {
-				addToList(nhood[i], ListType.OUT);
-				speed.set(nhood[i].x, nhood[i].y, (byte)1);
-			}
+	protected void notifySwitchIn(int p) {
+		speedField.switchIn(toPoint(p));
+		if (smoothing != null) {
+			smoothing.switchIn(p);
 		}
-
-		removeFromList(pi, p, ListType.OUT, (byte)0);
-		assert phi.get(p.x, p.y) == -1;
 	}
 
-	/**
-	 * Move a point from Lin to the pending Lout additions
-	 * Changes speed field at the affected points so that convergence check
-	 * will fail
-	 * flushListAdditions() must be called when all iterators are no longer
-	 * required to ensure consistency
-	 * @param pi Iterator to the point to be moved
-	 * @param p The point to be moved (needed to update phi)
-	 */
-	private void switchOut(Iterator<Point> pi, Point p) {
-		//IJ.log("switchOut: p=(" + p.x + "," + p.y + ")");
-		speedField.switchOut(p);
-
-		// 1. Move point from Lin to Lout
-		// 2. Add inside neighbours of p to Lin
-		// 3. Set speed fields to ensure convergence check fails (as the speed
-		//	  field will need to be recalculated)
-		addToList(p, ListType.OUT);
-		assert phi.get(p.x, p.y) == 1;
-		speed.set(p.x, p.y, (byte)1);
-
-		getNeighbourhood(p);
-
-		for (int i = 0; i < nhSize; ++i) {
-			if (phi.get(nhood[i].x, nhood[i].y) == -3) {
-				addToList(nhood[i], ListType.IN);
-				speed.set(nhood[i].x, nhood[i].y, (byte)-1);
-			}
+	protected void notifySwitchOut(int p) {
+		speedField.switchOut(toPoint(p));
+		if (smoothing != null) {
+			smoothing.switchOut(p);
 		}
-
-		removeFromList(pi, p, ListType.IN, (byte)0);
-		assert phi.get(p.x, p.y) == 1;
 	}
 
 	/**
-	 * Insert any pending additions into the front (consistent with the
-	 * original C++/Matlab) of the appropriate lists
+	 * An iterator which converts a list of linear indices into Points for
+	 * the list listeners. A new Point is created for each element so
+	 * listeners may keep references to them.
 	 */
-	private void flushListAdditions() {
-		lin.addAll(0, addlin);
-		addlin.clear();
-		lout.addAll(0, addlout);
-		addlout.clear();
-	}
+	private class PointIterator implements Iterator<Point> {
+		/**
+		 * The list being iterated over
+		 */
+		private final IndexList l;
 
-	/**
-	 * Clean up Lin
-	 */
-	private void cleanLin() {
-		Iterator<Point> pi = lin.iterator();
-		while (pi.hasNext()) {
-			Point p = pi.next();
-			//IJ.log("cleanLin: p=(" + p.x + "," + p.y + ")");
-
-			// If all neighbours are < 0, remove from Lin
-			getNeighbourhood(p);
-			boolean allInside = true;
-
-			for (int i = 0; i < nhSize; ++i) {
-				if (phi.get(nhood[i].x, nhood[i].y) > 0) {
-					allInside = false;
-					break;
-				}
-			}
+		/**
+		 * The position of the next element
+		 */
+		private int k = 0;
 
-			if (allInside) {
-				removeFromList(pi, p, ListType.IN, (byte)-3);
-				assert phi.get(p.x, p.y) == -3;
-			}
+		/**
+		 * @param l The list to iterate over
+		 */
+		public PointIterator(IndexList l) {
+			this.l = l;
 		}
-	}
 
-	/**
-	 * Clean up Lout
-	 */
-	private void cleanLout() {
-		Iterator<Point> pi = lout.iterator();
-		while (pi.hasNext()) {
-			Point p = pi.next();
-			//IJ.log("cleanLout: p=(" + p.x + "," + p.y + ")");
-
-			// If all neighbours are > 0, remove from Lout
-			getNeighbourhood(p);
-			boolean allOutside = true;
-
-			for (int i = 0; i < nhSize; ++i) {
-				if (phi.get(nhood[i].x, nhood[i].y) < 0) {
-					allOutside = false;
-					break;
-				}
-			}
+		public boolean hasNext() {
+			return k < l.size();
+		}
 
-			if (allOutside) {
-				removeFromList(pi, p, ListType.OUT, (byte)3);
-				assert phi.get(p.x, p.y) == 3;
+		public Point next() {
+			if (!hasNext()) {
+				throw new NoSuchElementException();
 			}
+			int p = l.get(k++);
+			return new Point(p % size.x, p / size.x);
 		}
-	}
 
-	/**
-	 * Add a class to be notified of iterations
-	 * @param li The class to be notified
-	 */
-	public void addIterationListener(LevelSetIterationListener li) {
-		iterationListerners.add(li);
+		public void remove() {
+			throw new UnsupportedOperationException();
+		}
 	}
 
 	/**
@@ -896,74 +326,30 @@ public class FastLevelSet {
 		listListerners.add(li);
 	}
 
-	/**
-	 * Notify listeners of a completed full iteration
-	 * @param full The number of completed full iterations
-	 * @param fullT The total number of full iterations
-	 */
 	protected void notifyFull(int full, int fullT) {
-		for (LevelSetIterationListener li : iterationListerners) {
-			li.fullIteration(full, fullT);
-		}
+		super.notifyFull(full, fullT);
 
 		for (LevelSetListListener li : listListerners) {
-			li.fullIteration(lin.iterator(), lout.iterator());
+			li.fullIteration(new PointIterator(lin),
+							  new PointIterator(lout));
 		}
 	}
 
-	/**
-	 * Notify listeners of a completed speed iteration
-	 * @param full The number of completed full iterations
-	 * @param fullT The total number of full iterations
-	 * @param speed The number of completed speed iterations in this cycle
-	 * @param speedT The total number of speed iterations in this cycle
-	 */
 	protected void notifySpeed(int full, int fullT, int speed, int speedT) {
-		for (LevelSetIterationListener li : iterationListerners) {
-			li.speedIteration(full, fullT, speed, speedT);
-		}
+		super.notifySpeed(full, fullT, speed, speedT);
 
 		for (LevelSetListListener li : listListerners) {
-			li.speedIteration(lin.iterator(), lout.iterator());
+			li.speedIteration(new PointIterator(lin),
+							   new PointIterator(lout));
 		}
 	}
 
-	/**
-	 * Notify listeners of a completed smooth iteration
-	 * @param full The number of completed full iterations
-	 * @param fullT The total number of full iterations
-	 * @param smooth The number of completed smooth iterations in this cycle
-	 * @param smoothT The total number of smooth iterations in this cycle
-	 */
 	protected void notifySmooth(int full, int fullT, int smooth, int smoothT) {
-		for (LevelSetIterationListener li : iterationListerners) {
-			li.smoothIteration(full, fullT, smooth, smoothT);
-		}
+		super.notifySmooth(full, fullT, smooth, smoothT);
 
 		for (LevelSetListListener li : listListerners) {
-			li.smoothIteration(lin.iterator(), lout.iterator());
-		}
-	}
-
-	/**
-	 * Check if escape key pressed, print an error message if so
-	 * @return true if escape pressed, false otherwise
-	 */
-	protected static boolean escapePressed() {
-		boolean b = IJ.escapePressed();
-		if (b) {
-			error("Escape pressed, terminating.");
+			li.smoothIteration(new PointIterator(lin),
+								new PointIterator(lout));
 		}
-		IJ.resetEscape();
-		return b;
-	}
-
-	/**
-	 * Bring up an error message (note does not exit)
-	 * @param msg The error message to be displayed
-	 */
-	private static void error(String msg) {
-		IJ.error("FastLevelSet error", msg);
 	}
 }
-
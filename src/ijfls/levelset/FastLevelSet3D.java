@@ -0,0 +1,229 @@
+package ijfls.levelset;
+
+import ij.ImageStack;
+import ij.process.*;
+
+
+/**
+ * FastLevelSet3D
+ *
+ * The fast level set algorithm (see FastLevelSet) applied to a volume, so
+ * that a stack is segmented as a single 3D object instead of slice by
+ * slice. Neighbourhoods are 6-connected, the boundary lists and the
+ * evolution are shared with FastLevelSet through BandLevelSet.
+ *
+ * Points are identified by their linear index
+ * (z * width * height + y * width + x), so the volume must have fewer than
+ * 2^31 voxels. In addition to the image phi and the speed use one byte per
+ * voxel, and the boundary lists use one int per boundary point.
+ */
+public class FastLevelSet3D extends BandLevelSet<FastLevelSet3D.Byte3D> {
+	/**
+	 * A 3D array which holds signed values
+	 */
+	protected static class Byte3D extends BandLevelSet.Bytes {
+		/**
+		 * Number of columns
+		 */
+		private int width;
+
+		/**
+		 * Number of rows
+		 */
+		private int height;
+
+		/**
+		 * Number of slices
+		 */
+		private int depth;
+
+		/**
+		 * @param w Number of columns
+		 * @param h Number of rows
+		 * @param d Number of slices
+		 */
+		public Byte3D(int w, int h, int d) {
+			super(w * h * d);
+			width = w;
+			height = h;
+			depth = d;
+		}
+
+		/**
+		 * @return the number of columns
+		 */
+		public int getWidth() {
+			return width;
+		}
+
+		/**
+		 * @return the number of rows
+		 */
+		public int getHeight() {
+			return height;
+		}
+
+		/**
+		 * @return the number of slices
+		 */
+		public int getDepth() {
+			return depth;
+		}
+	}
+
+	/**
+	 * Width of the image
+	 */
+	protected int width;
+
+	/**
+	 * Height of the image
+	 */
+	protected int height;
+
+	/**
+	 * Number of slices
+	 */
+	protected int depth;
+
+	/**
+	 * Number of pixels in a slice
+	 */
+	protected int area;
+
+	/**
+	 * The Gaussian smoothing filter, null if smoothing is disabled
+	 */
+	protected SmoothingFilter3D smoothing;
+
+	/**
+	 * The speed field
+	 */
+	protected SpeedField3D speedField;
+
+	/**
+	 * Constructor.
+	 * Setup the intermediate arrays.
+	 * Initialise phi and the gaussian filter.
+	 * @param params Parameters for the level set algorithm,
+	 *        incrementalSmoothing is ignored
+	 * @param im The image to be segmented
+	 * @param init The binary initialisation, must be the same size as im
+	 * @param speedf The speed field
+	 */
+	public FastLevelSet3D(FastLevelSet.Parameters params, ImageStack im,
+						  ImageStack init, SpeedField3D speedf) {
+		super(params, createNeighbourhood(im, init),
+			  new Byte3D(im.getWidth(), im.getHeight(), im.getSize()),
+			  new Byte3D(im.getWidth(), im.getHeight(), im.getSize()));
+		width = im.getWidth();
+		height = im.getHeight();
+		depth = im.getSize();
+		area = width * height;
+
+		smoothing = null;
+		speedField = speedf;
+
+		initialise(init);
+	}
+
+	/**
+	 * Check the size of the volume and create its neighbourhood
+	 * @param im The image to be segmented
+	 * @param init The binary initialisation
+	 * @return The 6-connected neighbourhood
+	 * @throws IllegalArgumentException if the volume is too large or the
+	 *         initialisation is a different size
+	 */
+	private static Neighbourhood createNeighbourhood(ImageStack im,
+													 ImageStack init) {
+		int width = im.getWidth();
+		int height = im.getHeight();
+		int depth = im.getSize();
+		if ((long)width * height * depth > Integer.MAX_VALUE) {
+			throw new IllegalArgumentException(
+				"Volume too large: " + width + "x" + height + "x" + depth);
+		}
+		if (init.getWidth() != width || init.getHeight() != height ||
+			init.getSize() != depth) {
+			throw new IllegalArgumentException(
+				"Initialisation must be the same size as the image");
+		}
+		return new Neighbourhood.Grid6(width, height, depth);
+	}
+
+	protected String describe() {
+		return "FastLevelSet3D " + width + "x" + height + "x" + depth + " ";
+	}
+
+	/**
+	 * Gets a binary segmentation from phi
+	 * @return the segmented volume, one binary slice per input slice
+	 */
+	public ImageStack getSegmentation() {
+		ImageStack seg = new ImageStack(width, height);
+		for (int z = 0; z < depth; ++z) {
+			byte[] pixels = new byte[area];
+			int offset = z * area;
+			for (int i = 0; i < area; ++i) {
+				pixels[i] = phi.get(offset + i) < 0 ? (byte)255 : 0;
+			}
+			seg.addSlice(null, new BinaryProcessor(
+							 new ByteProcessor(width, height, pixels, null)));
+		}
+		return seg;
+	}
+
+	/**
+	 * Initialise phi and create the Gaussian smoothing filter
+	 * @param init The binary initialisation
+	 */
+	protected void initialise(ImageStack init) {
+		// Mark everything as interior or exterior
+		for (int z = 0; z < depth; ++z) {
+			// stack.getProcessor(i) uses 1-based indexing
+			ImageProcessor ip = init.getProcessor(z + 1);
+			int offset = z * area;
+			for (int i = 0; i < area; ++i) {
+				phi.set(offset + i, ip.get(i) > 0 ? (byte)-3 : (byte)3);
+			}
+		}
+
+		initialiseLists();
+	}
+
+	protected void createGaussFilter() {
+		smoothing = new SmoothingFilter3D(
+			params.gaussWidth, params.gaussSigma, width, height, depth);
+	}
+
+	protected String describeSpeedField() {
+		return speedField.describe();
+	}
+
+	protected void updateSpeedChanges() {
+		if (speedField.requiresSpeedUpdate()) {
+			speedField.updateSpeedChanges();
+		}
+	}
+
+	protected int computeSpeed(int p) {
+		return speedField.computeSpeed(phi, p);
+	}
+
+	protected int prepareSmooth() {
+		return smoothing.getThreshold();
+	}
+
+	protected int calculateSmooth(int p) {
+		return smoothing.compute(phi, p);
+	}
+
+	protected void notifySwitchIn(int p) {
+		speedField.switchIn(p);
+	}
+
+	protected void notifySwitchOut(int p) {
+		speedField.switchOut(p);
+	}
+}
@@ -1,7 +1,6 @@
 package ijfls.levelset;
 
 import ij.process.*;
-import ij.IJ;
 
 
 /**
@@ -23,6 +22,22 @@ public class HybridSpeedField extends SpeedField {
 		 * Filter out intensities above this level, 0 means ignore
 		 */
 		public int cutoffIntensity;
+
+		/**
+		 * Calculate the local means using an integral image of the
+		 * intensities and a tree of the inside region which is updated as
+		 * points switch, instead of looping over the neighbourhood of every
+		 * point. The cost no longer depends on neighbourhoodRadius but about
+		 * 20 bytes per pixel are required.
+		 */
+		public boolean useIntegralImages;
+
+		/**
+		 * As useIntegralImages but for HybridSpeedField3D, which ignores
+		 * useIntegralImages. This is separate since the 20 bytes per voxel
+		 * are far more than the volume itself, so it is off by default.
+		 */
+		public boolean useVolumeIntegralImages;
 	}
 
 	/**
@@ -33,22 +48,59 @@ public class HybridSpeedField extends SpeedField {
 	/**
 	 * The (optionally filtered) image
 	 */
-	private ImageProcessor filt;
+	private ImageView filt;
 
 	/**
-	 * Constructor
+	 * Integral image of the intensities, (width + 1) * (height + 1), only
+	 * used if params.useIntegralImages is set
+	 */
+	private double[] integral = null;
+
+	/**
+	 * The inside region, only used if params.useIntegralImages is set
+	 */
+	private RegionSumTree inside = null;
+
+	/**
+	 * Constructor. If params.useIntegralImages is set the local means are
+	 * calculated directly from phi until initialise() is called.
 	 * @param params Parameters for calculating the speed field
+	 * @param im The image
 	 */
 	public HybridSpeedField(Parameters params, ImageProcessor im) {
 		this.params = params;
-		this.filt = im;
-		IJ.log("HybridSpeedField Parameters: neighbourhoodRadius:"
-			   + params.neighbourhoodRadius + " cutoffIntensity:"
-			   + params.cutoffIntensity);
+		this.filt = ImageView.create(im);
 
 		if (params.cutoffIntensity > 0) {
 			filterImage();
 		}
+
+		if (params.useIntegralImages) {
+			createIntegralImage();
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param params Parameters for calculating the speed field
+	 * @param im The image
+	 * @param init The initialisation
+	 */
+	public HybridSpeedField(Parameters params, ImageProcessor im,
+							BinaryProcessor init) {
+		this(params, im);
+		initialise(init);
+	}
+
+	/**
+	 * Create the tree holding the initial inside region, does nothing
+	 * unless params.useIntegralImages is set
+	 * @param init The initialisation
+	 */
+	public void initialise(BinaryProcessor init) {
+		if (integral != null) {
+			inside = new RegionSumTree(init, filt);
+		}
 	}
 
 	public int computeSpeed(FastLevelSet.Byte2D phi, Point p) {
@@ -56,6 +108,10 @@ public class HybridSpeedField extends SpeedField {
 	}
 
 	public double computeSpeedD(FastLevelSet.Byte2D phi, Point p) {
+		if (inside != null) {
+			return computeSpeedIntegral(p);
+		}
+
 		int cr = params.neighbourhoodRadius;
 		int pmaxx = Math.min(p.x + cr, filt.getWidth());
 		int pmaxy = Math.min(p.y + cr, filt.getHeight());
@@ -66,7 +122,7 @@ public class HybridSpeedField extends SpeedField {
 
 		for (int y = pminy; y < pmaxy; ++y) {
 			for (int x = pminx; x < pmaxx; ++x) {
-				int im = filt.get(x, y);
+				float im = filt.get(x, y);
 				if (phi.get(x, y) < 0) {
 					++areaIn;
 					meanIn += im;
@@ -87,20 +143,95 @@ public class HybridSpeedField extends SpeedField {
 		return sp;
 	}
 
+	public int getDependencyRadius() {
+		return params.neighbourhoodRadius;
+	}
+
+	public String describe() {
+		return "HybridSpeedField Parameters: neighbourhoodRadius:"
+			+ params.neighbourhoodRadius + " cutoffIntensity:"
+			+ params.cutoffIntensity + " useIntegralImages:"
+			+ params.useIntegralImages;
+	}
+
+	public void switchOut(Point p) {
+		if (inside != null) {
+			inside.update(p.x, p.y, -1, filt.get(p.x, p.y));
+		}
+	}
+
+	public void switchIn(Point p) {
+		if (inside != null) {
+			inside.update(p.x, p.y, 1, filt.get(p.x, p.y));
+		}
+	}
+
+	/**
+	 * Compute the speed at a point using the integral images, the result is
+	 * identical to computeSpeedD() for integer images (for 32-bit images
+	 * the sums may be rounded differently)
+	 * @param p The point
+	 * @return The speed at the point as a double
+	 */
+	private double computeSpeedIntegral(Point p) {
+		int cr = params.neighbourhoodRadius;
+		int w = filt.getWidth();
+		int pmaxx = Math.min(p.x + cr, w);
+		int pmaxy = Math.min(p.y + cr, filt.getHeight());
+		int pminx = Math.max(p.x - cr, 0);
+		int pminy = Math.max(p.y - cr, 0);
+
+		int w1 = w + 1;
+		double total = integral[pmaxy * w1 + pmaxx] - integral[pminy * w1 + pmaxx]
+			- integral[pmaxy * w1 + pminx] + integral[pminy * w1 + pminx];
+		int area = (pmaxx - pminx) * (pmaxy - pminy);
+
+		int ain = inside.count(pminx, pminy, pmaxx, pmaxy);
+		double tin = inside.sum(pminx, pminy, pmaxx, pmaxy);
+
+		double meanIn = tin / ain;
+		double meanOut = (total - tin) / (area - ain);
+
+		// Chan-Vese
+		double sp = - (meanIn - meanOut) *
+			(2 * filt.get(p.x, p.y) - meanIn - meanOut);
+		return sp;
+	}
+
 	/**
-	 * Execute a low-intensity pass filter on the image
+	 * Create the integral image of the intensities
 	 */
-	protected void filterImage() {
+	protected void createIntegralImage() {
 		int w = filt.getWidth();
 		int h = filt.getHeight();
 
+		integral = new double[(w + 1) * (h + 1)];
+
 		for (int y = 0; y < h; ++y) {
+			double rowSum = 0;
 			for (int x = 0; x < w; ++x) {
-				double tmp = filt.get(x, y) / params.cutoffIntensity;
-				tmp = filt.get(x, y) * Math.sqrt(1 / (1 + tmp * tmp));
-				filt.set(x, y, (int)tmp);
+				rowSum += filt.get(x, y);
+				integral[(y + 1) * (w + 1) + x + 1] =
+					integral[y * (w + 1) + x + 1] + rowSum;
 			}
 		}
 	}
+
+	/**
+	 * Execute a low-intensity pass filter on the image, the result is a new
+	 * 32-bit image so the original isn't modified
+	 */
+	protected void filterImage() {
+		int w = filt.getWidth();
+		int h = filt.getHeight();
+		float[] pixels = new float[w * h];
+
+		for (int i = 0; i < pixels.length; ++i) {
+			double v = filt.get(i);
+			double tmp = v / params.cutoffIntensity;
+			pixels[i] = (float)(v * Math.sqrt(1 / (1 + tmp * tmp)));
+		}
+		filt = new ImageView.Floats(w, h, pixels);
+	}
 }
 
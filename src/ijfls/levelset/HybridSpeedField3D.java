@@ -0,0 +1,273 @@
+package ijfls.levelset;
+
+import ij.ImageStack;
+import ij.process.*;
+
+
+/**
+ * The hybrid speed field for a volume, the Chan-Vese speed calculated using
+ * the means in a cube around each point.
+ *
+ * If HybridSpeedField.Parameters.useVolumeIntegralImages is set each slice
+ * has an integral image of the intensities and a RegionSumTree of the
+ * inside region, so the sums over a cube take O(radius) lookups instead of
+ * O(radius^3). This needs about 20 bytes per voxel, so it is off by
+ * default and the means are calculated directly from phi, which needs no
+ * memory beyond the image and the level set.
+ */
+public class HybridSpeedField3D extends SpeedField3D {
+	/**
+	 * Parameters for this speed field
+	 */
+	private HybridSpeedField.Parameters params;
+
+	/**
+	 * The image
+	 */
+	private StackVoxels im;
+
+	/**
+	 * Width of the image
+	 */
+	private final int width;
+
+	/**
+	 * Height of the image
+	 */
+	private final int height;
+
+	/**
+	 * Number of slices
+	 */
+	private final int depth;
+
+	/**
+	 * Integral image of the intensities of each slice,
+	 * (width + 1) * (height + 1), only used if
+	 * params.useVolumeIntegralImages is set
+	 */
+	private double[][] integrals = null;
+
+	/**
+	 * The inside region of each slice, only used if
+	 * params.useVolumeIntegralImages is set
+	 */
+	private RegionSumTree[] inside = null;
+
+	/**
+	 * Constructor. If params.useVolumeIntegralImages is set the local means
+	 * are calculated directly from phi until initialise() is called.
+	 * @param params Parameters for calculating the speed field
+	 * @param im The image
+	 */
+	public HybridSpeedField3D(HybridSpeedField.Parameters params,
+							  ImageStack im) {
+		this.params = params;
+		this.im = new StackVoxels(im);
+		width = im.getWidth();
+		height = im.getHeight();
+		depth = im.getSize();
+
+		if (params.useVolumeIntegralImages) {
+			createIntegralImages();
+		}
+	}
+
+	/**
+	 * Constructor
+	 * @param params Parameters for calculating the speed field
+	 * @param im The image
+	 * @param init The initialisation
+	 */
+	public HybridSpeedField3D(HybridSpeedField.Parameters params,
+							  ImageStack im, ImageStack init) {
+		this(params, im);
+		initialise(init);
+	}
+
+	/**
+	 * Create the trees holding the initial inside region of each slice,
+	 * does nothing unless params.useVolumeIntegralImages is set
+	 * @param init The initialisation
+	 */
+	public void initialise(ImageStack init) {
+		if (integrals == null) {
+			return;
+		}
+
+		int area = width * height;
+		byte[] mask = new byte[area];
+		inside = new RegionSumTree[depth];
+		for (int z = 0; z < depth; ++z) {
+			// stack.getProcessor(i) uses 1-based indexing
+			ImageProcessor ip = init.getProcessor(z + 1);
+			for (int i = 0; i < area; ++i) {
+				mask[i] = ip.get(i) > 0 ? (byte)1 : (byte)0;
+			}
+			inside[z] = new RegionSumTree(mask, getSlice(z));
+		}
+	}
+
+	int computeSpeed(FastLevelSet3D.Byte3D phi, int p) {
+		if (inside != null) {
+			return SpeedField.getFLSSpeed(computeSpeedIntegral(p));
+		}
+
+		int area = width * height;
+		int px = p % width;
+		int py = (p / width) % height;
+		int pz = p / area;
+
+		int cr = params.neighbourhoodRadius;
+		int pmaxx = Math.min(px + cr, width);
+		int pmaxy = Math.min(py + cr, height);
+		int pmaxz = Math.min(pz + cr, depth);
+		int pminx = Math.max(px - cr, 0);
+		int pminy = Math.max(py - cr, 0);
+		int pminz = Math.max(pz - cr, 0);
+
+		double areaIn = 0, areaOut = 0, meanIn = 0, meanOut = 0;
+
+		for (int z = pminz; z < pmaxz; ++z) {
+			for (int y = pminy; y < pmaxy; ++y) {
+				int row = z * area + y * width;
+				for (int x = pminx; x < pmaxx; ++x) {
+					double v = get(row + x);
+					if (phi.get(row + x) < 0) {
+						++areaIn;
+						meanIn += v;
+					}
+					else {
+						++areaOut;
+						meanOut += v;
+					}
+				}
+			}
+		}
+
+		meanIn /= areaIn;
+		meanOut /= areaOut;
+
+		// Chan-Vese
+		double sp = - (meanIn - meanOut) * (2 * get(p) - meanIn - meanOut);
+		return SpeedField.getFLSSpeed(sp);
+	}
+
+	public String describe() {
+		return "HybridSpeedField3D Parameters: neighbourhoodRadius:"
+			+ params.neighbourhoodRadius + " cutoffIntensity:"
+			+ params.cutoffIntensity + " useVolumeIntegralImages:"
+			+ params.useVolumeIntegralImages;
+	}
+
+	void switchOut(int p) {
+		if (inside != null) {
+			int area = width * height;
+			inside[p / area].update(p % width, (p / width) % height, -1,
+									get(p));
+		}
+	}
+
+	void switchIn(int p) {
+		if (inside != null) {
+			int area = width * height;
+			inside[p / area].update(p % width, (p / width) % height, 1,
+									get(p));
+		}
+	}
+
+	/**
+	 * Compute the speed at a point using the integral images, the result is
+	 * identical to the direct calculation for integer images (for 32-bit
+	 * images the sums may be rounded differently)
+	 * @param p The linear index of the point
+	 * @return The speed at the point as a double
+	 */
+	private double computeSpeedIntegral(int p) {
+		int area = width * height;
+		int px = p % width;
+		int py = (p / width) % height;
+		int pz = p / area;
+
+		int cr = params.neighbourhoodRadius;
+		int pmaxx = Math.min(px + cr, width);
+		int pmaxy = Math.min(py + cr, height);
+		int pmaxz = Math.min(pz + cr, depth);
+		int pminx = Math.max(px - cr, 0);
+		int pminy = Math.max(py - cr, 0);
+		int pminz = Math.max(pz - cr, 0);
+
+		int w1 = width + 1;
+		double total = 0, tin = 0;
+		int ain = 0;
+		for (int z = pminz; z < pmaxz; ++z) {
+			double[] integral = integrals[z];
+			total += integral[pmaxy * w1 + pmaxx]
+				- integral[pminy * w1 + pmaxx]
+				- integral[pmaxy * w1 + pminx]
+				+ integral[pminy * w1 + pminx];
+			ain += inside[z].count(pminx, pminy, pmaxx, pmaxy);
+			tin += inside[z].sum(pminx, pminy, pmaxx, pmaxy);
+		}
+		int volume = (pmaxx - pminx) * (pmaxy - pminy) * (pmaxz - pminz);
+
+		double meanIn = tin / ain;
+		double meanOut = (total - tin) / (volume - ain);
+
+		// Chan-Vese
+		double sp = - (meanIn - meanOut) * (2 * get(p) - meanIn - meanOut);
+		return sp;
+	}
+
+	/**
+	 * Create the integral image of the intensities of each slice
+	 */
+	protected void createIntegralImages() {
+		int w1 = width + 1;
+		integrals = new double[depth][];
+		for (int z = 0; z < depth; ++z) {
+			double[] integral = new double[w1 * (height + 1)];
+			int offset = z * width * height;
+			for (int y = 0; y < height; ++y) {
+				double rowSum = 0;
+				for (int x = 0; x < width; ++x) {
+					rowSum += get(offset + y * width + x);
+					integral[(y + 1) * w1 + x + 1] =
+						integral[y * w1 + x + 1] + rowSum;
+				}
+			}
+			integrals[z] = integral;
+		}
+	}
+
+	/**
+	 * Get the (optionally filtered) intensities of a slice
+	 * @param z The slice index (0-based)
+	 * @return A copy of the intensities
+	 */
+	private ImageView getSlice(int z) {
+		int area = width * height;
+		float[] pixels = new float[area];
+		for (int i = 0; i < area; ++i) {
+			pixels[i] = (float)get(z * area + i);
+		}
+		return new ImageView.Floats(width, height, pixels);
+	}
+
+	/**
+	 * Get the (optionally filtered) intensity of a voxel, the low-intensity
+	 * pass filter in HybridSpeedField is applied on the fly so the stack
+	 * isn't modified
+	 * @param p The linear index of the voxel
+	 * @return The intensity
+	 */
+	private double get(int p) {
+		double v = im.get(p);
+		if (params.cutoffIntensity > 0) {
+			double tmp = v / params.cutoffIntensity;
+			// Rounded as in HybridSpeedField.filterImage()
+			v = (float)(v * Math.sqrt(1 / (1 + tmp * tmp)));
+		}
+		return v;
+	}
+}
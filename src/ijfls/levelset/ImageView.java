@@ -0,0 +1,268 @@
+package ijfls.levelset;
+
+import ij.process.*;
+
+
+/**
+ * Read-only access to the pixel values of an image.
+ *
+ * ImageProcessor.get() returns the bits of the float rather than its value
+ * for 32-bit images, all views return the value of the pixel. There is a
+ * final subclass of this for each type of pixel array.
+ *
+ * get() is still a virtual call, so loops over many pixels should use the
+ * sum() methods instead, which are implemented by each subclass as a loop
+ * over its own primitive array. Code which reads single pixels in a hot
+ * path can use the pixel array of the subclass directly, as
+ * ChanVeseSpeedField does.
+ */
+public abstract class ImageView {
+	/**
+	 * The width of the image
+	 */
+	protected final int width;
+
+	/**
+	 * The height of the image
+	 */
+	protected final int height;
+
+	/**
+	 * @param width The width of the image
+	 * @param height The height of the image
+	 */
+	protected ImageView(int width, int height) {
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Create a view of an image. 8-bit, 16-bit and 32-bit images are viewed
+	 * directly, other types are converted to 32-bit first.
+	 * @param im The image, changes to its pixels are visible in the view
+	 * @return The view
+	 */
+	public static ImageView create(ImageProcessor im) {
+		int w = im.getWidth();
+		int h = im.getHeight();
+		Object pixels = im.getPixels();
+		if (pixels instanceof byte[]) {
+			return new Bytes(w, h, (byte[])pixels);
+		}
+		if (pixels instanceof short[]) {
+			return new Shorts(w, h, (short[])pixels);
+		}
+		if (pixels instanceof float[]) {
+			return new Floats(w, h, (float[])pixels);
+		}
+		return new Floats(w, h, (float[])im.convertToFloat().getPixels());
+	}
+
+	/**
+	 * Get the width of the image
+	 * @return the width
+	 */
+	public final int getWidth() {
+		return width;
+	}
+
+	/**
+	 * Get the height of the image
+	 * @return the height
+	 */
+	public final int getHeight() {
+		return height;
+	}
+
+	/**
+	 * Get the number of pixels
+	 * @return width * height
+	 */
+	public final int size() {
+		return width * height;
+	}
+
+	/**
+	 * Get the value of a pixel
+	 * @param i The linear index of the pixel, y * width + x
+	 * @return The value
+	 */
+	public abstract float get(int i);
+
+	/**
+	 * Get the value of a pixel
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @return The value
+	 */
+	public final float get(int x, int y) {
+		return get(y * width + x);
+	}
+
+	/**
+	 * Are all pixel values integers?
+	 * @return true for 8 and 16-bit images
+	 */
+	public abstract boolean isInteger();
+
+	/**
+	 * Sum all pixels
+	 * @return The total
+	 */
+	public abstract double sum();
+
+	/**
+	 * Sum the pixels inside a mask
+	 * @param mask The mask, non-zero pixels are summed
+	 * @return The total
+	 */
+	public abstract double sum(byte[] mask);
+
+	/**
+	 * Sum a list of pixels
+	 * @param points The linear indices of the pixels
+	 * @return The total
+	 */
+	public abstract double sum(IndexList points);
+
+	/**
+	 * The pixels of an 8-bit image, unsigned
+	 */
+	public static final class Bytes extends ImageView {
+		final byte[] pixels;
+
+		public Bytes(int width, int height, byte[] pixels) {
+			super(width, height);
+			this.pixels = pixels;
+		}
+
+		public float get(int i) {
+			return pixels[i] & 0xff;
+		}
+
+		public boolean isInteger() {
+			return true;
+		}
+
+		public double sum() {
+			long t = 0;
+			for (int i = 0; i < pixels.length; ++i) {
+				t += pixels[i] & 0xff;
+			}
+			return t;
+		}
+
+		public double sum(byte[] mask) {
+			long t = 0;
+			for (int i = 0; i < pixels.length; ++i) {
+				if (mask[i] != 0) {
+					t += pixels[i] & 0xff;
+				}
+			}
+			return t;
+		}
+
+		public double sum(IndexList points) {
+			long t = 0;
+			int n = points.size();
+			for (int k = 0; k < n; ++k) {
+				t += pixels[points.get(k)] & 0xff;
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * The pixels of a 16-bit image, unsigned
+	 */
+	public static final class Shorts extends ImageView {
+		final short[] pixels;
+
+		public Shorts(int width, int height, short[] pixels) {
+			super(width, height);
+			this.pixels = pixels;
+		}
+
+		public float get(int i) {
+			return pixels[i] & 0xffff;
+		}
+
+		public boolean isInteger() {
+			return true;
+		}
+
+		public double sum() {
+			long t = 0;
+			for (int i = 0; i < pixels.length; ++i) {
+				t += pixels[i] & 0xffff;
+			}
+			return t;
+		}
+
+		public double sum(byte[] mask) {
+			long t = 0;
+			for (int i = 0; i < pixels.length; ++i) {
+				if (mask[i] != 0) {
+					t += pixels[i] & 0xffff;
+				}
+			}
+			return t;
+		}
+
+		public double sum(IndexList points) {
+			long t = 0;
+			int n = points.size();
+			for (int k = 0; k < n; ++k) {
+				t += pixels[points.get(k)] & 0xffff;
+			}
+			return t;
+		}
+	}
+
+	/**
+	 * The pixels of a 32-bit image
+	 */
+	public static final class Floats extends ImageView {
+		final float[] pixels;
+
+		public Floats(int width, int height, float[] pixels) {
+			super(width, height);
+			this.pixels = pixels;
+		}
+
+		public float get(int i) {
+			return pixels[i];
+		}
+
+		public boolean isInteger() {
+			return false;
+		}
+
+		public double sum() {
+			double t = 0;
+			for (int i = 0; i < pixels.length; ++i) {
+				t += pixels[i];
+			}
+			return t;
+		}
+
+		public double sum(byte[] mask) {
+			double t = 0;
+			for (int i = 0; i < pixels.length; ++i) {
+				if (mask[i] != 0) {
+					t += pixels[i];
+				}
+			}
+			return t;
+		}
+
+		public double sum(IndexList points) {
+			double t = 0;
+			int n = points.size();
+			for (int k = 0; k < n; ++k) {
+				t += pixels[points.get(k)];
+			}
+			return t;
+		}
+	}
+}
@@ -0,0 +1,148 @@
+package ijfls.levelset;
+
+import java.util.Arrays;
+
+
+/**
+ * A smoothing filter which caches the convolution of the Gaussian with the
+ * inside region, and updates it whenever a point changes sides.
+ *
+ * The convolution at a point is calculated in full the first time it is
+ * requested, after that each switch costs one update per filter element
+ * around the switched point, instead of one full convolution per boundary
+ * point per smoothing iteration. The results are identical to
+ * SmoothingFilter.
+ *
+ * Switches are recorded and only applied when the convolution is next
+ * requested. The speed iterations may switch a large fraction of the
+ * boundary, in which case it is cheaper to discard the cache.
+ *
+ * Updating the cache is more expensive per element than the direct
+ * convolution, so this is only faster when few points switch relative to
+ * the size of the boundary, e.g. large images which are close to
+ * convergence.
+ */
+public class IncrementalSmoothingFilter extends SmoothingFilter {
+	/**
+	 * Marks a point whose convolution has not been calculated yet
+	 */
+	private static final int INVALID = Integer.MIN_VALUE;
+
+	/**
+	 * Approximate cost of updating the cache for one switched point
+	 * relative to recalculating the convolution at one point
+	 */
+	private static final int UPDATE_COST = 2;
+
+	/**
+	 * The cached convolution for every point in the image
+	 */
+	private final int[] conv;
+
+	/**
+	 * The points whose convolution has been cached
+	 */
+	private final IndexList cached = new IndexList();
+
+	/**
+	 * Switches which haven't been applied to the cache yet, points which
+	 * have moved outside are stored as (-p - 1)
+	 */
+	private final IndexList pending = new IndexList();
+
+	/**
+	 * Constructor
+	 * @param gaussWidth Radius of the Gaussian filter
+	 * @param gaussSigma Sigma for the Gaussian filter
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 */
+	public IncrementalSmoothingFilter(int gaussWidth, double gaussSigma,
+									  int width, int height) {
+		super(gaussWidth, gaussSigma, width, height);
+		conv = new int[width * height];
+		Arrays.fill(conv, INVALID);
+	}
+
+	int compute(FastLevelSet.Byte2D phi, int p) {
+		if (!pending.isEmpty()) {
+			applyPending();
+		}
+
+		int f = conv[p];
+		if (f == INVALID) {
+			f = convolve(phi, p);
+			conv[p] = f;
+			cached.add(p);
+		}
+		return f;
+	}
+
+	void switchOut(int p) {
+		if (!cached.isEmpty()) {
+			pending.add(-p - 1);
+		}
+	}
+
+	void switchIn(int p) {
+		if (!cached.isEmpty()) {
+			pending.add(p);
+		}
+	}
+
+	void updateSwitches(int boundarySize) {
+		if (UPDATE_COST * pending.size() > boundarySize) {
+			for (int k = 0; k < cached.size(); ++k) {
+				conv[cached.get(k)] = INVALID;
+			}
+			cached.clear();
+			pending.clear();
+		}
+		else {
+			applyPending();
+		}
+	}
+
+	/**
+	 * Bring the cache up to date with the pending switches
+	 */
+	private void applyPending() {
+		for (int k = 0; k < pending.size(); ++k) {
+			int q = pending.get(k);
+			if (q >= 0) {
+				update(q, 1);
+			}
+			else {
+				update(-q - 1, -1);
+			}
+		}
+		pending.clear();
+	}
+
+	/**
+	 * Add or subtract the contribution of a point to the cached convolution
+	 * of its neighbours
+	 * @param q The linear index of the point which has changed sides
+	 * @param sign 1 if q has moved inside, -1 if q has moved outside
+	 */
+	private void update(int q, int sign) {
+		int qx = q % width;
+		int qy = q / width;
+		int dxmax = Math.min(gw + 1, width - qx);
+		int dymax = Math.min(gw + 1, height - qy);
+		int dxmin = Math.max(-gw, -qx);
+		int dymin = Math.max(-gw, -qy);
+
+		// The offset of q from the point being updated is (-dx, -dy), but
+		// the filter is symmetric
+		for (int dy = dymin; dy < dymax; ++dy) {
+			int row = q + dy * width;
+			int krow = (gw + dy) * s + gw;
+			for (int dx = dxmin; dx < dxmax; ++dx) {
+				if (conv[row + dx] != INVALID) {
+					conv[row + dx] += sign * kernel[krow + dx];
+				}
+			}
+		}
+	}
+}
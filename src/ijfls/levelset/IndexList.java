@@ -0,0 +1,135 @@
+package ijfls.levelset;
+
+/**
+ * A growable list of packed linear pixel indices (y * width + x).
+ * This is used for the level set boundary lists instead of a list of
+ * Points to avoid allocating an object for every pixel which is switched,
+ * and to keep the indices contiguous in memory.
+ *
+ * Elements are removed by compaction, i.e. the caller iterates over the
+ * list writing back the elements it wants to keep and then calls
+ * truncate(), so the relative order of the remaining elements is unchanged.
+ */
+public class IndexList {
+	/**
+	 * The default initial capacity
+	 */
+	private static final int DEFAULT_CAPACITY = 16;
+
+	/**
+	 * The contents of the list, only the first size elements are valid
+	 */
+	private int[] vals;
+
+	/**
+	 * The number of elements in the list
+	 */
+	private int size;
+
+	/**
+	 * Create an empty list
+	 */
+	public IndexList() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	/**
+	 * Create an empty list
+	 * @param capacity The initial capacity
+	 */
+	public IndexList(int capacity) {
+		vals = new int[Math.max(capacity, 1)];
+		size = 0;
+	}
+
+	/**
+	 * Get the number of elements
+	 * @return the number of elements in the list
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Is the list empty?
+	 * @return true if the list contains no elements
+	 */
+	public boolean isEmpty() {
+		return size == 0;
+	}
+
+	/**
+	 * Get an element
+	 * @param i The position in the list
+	 * @return The element at position i
+	 */
+	public int get(int i) {
+		assert i < size;
+		return vals[i];
+	}
+
+	/**
+	 * Replace an element
+	 * @param i The position in the list
+	 * @param v The new value of the element
+	 */
+	public void set(int i, int v) {
+		assert i < size;
+		vals[i] = v;
+	}
+
+	/**
+	 * Append an element to the end of the list
+	 * @param v The element to be added
+	 */
+	public void add(int v) {
+		if (size == vals.length) {
+			ensureCapacity(size + 1);
+		}
+		vals[size++] = v;
+	}
+
+	/**
+	 * Insert all elements of another list at the front of this list,
+	 * preserving their order
+	 * @param l The list of elements to be inserted
+	 */
+	public void prependAll(IndexList l) {
+		if (l.size == 0) {
+			return;
+		}
+		ensureCapacity(size + l.size);
+		System.arraycopy(vals, 0, vals, l.size, size);
+		System.arraycopy(l.vals, 0, vals, 0, l.size);
+		size += l.size;
+	}
+
+	/**
+	 * Discard all elements after the first n
+	 * @param n The new size of the list, must not be greater than the
+	 *        current size
+	 */
+	public void truncate(int n) {
+		assert n >= 0 && n <= size;
+		size = n;
+	}
+
+	/**
+	 * Remove all elements (the capacity is unchanged)
+	 */
+	public void clear() {
+		size = 0;
+	}
+
+	/**
+	 * Increase the capacity of the list if necessary
+	 * @param n The minimum required capacity
+	 */
+	private void ensureCapacity(int n) {
+		if (n > vals.length) {
+			int[] tmp = new int[Math.max(n, vals.length * 2)];
+			System.arraycopy(vals, 0, tmp, 0, size);
+			vals = tmp;
+		}
+	}
+}
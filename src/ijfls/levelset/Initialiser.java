@@ -67,19 +67,50 @@ public class Initialiser {
 
 	/**
 	 * Create a binary image using
-	 * {@link ij.process.AutoThresholder AutoThresholder}
-	 * @param im The image to be thresholded (will be duplicated)
+	 * {@link ij.process.AutoThresholder AutoThresholder}.
+	 * 8-bit images are thresholded on their own values, other images on a
+	 * 256 bin histogram between their minimum and maximum.
+	 * @param im The image to be thresholded (not modified)
 	 * @param method The name of the method from AutoThresholder
 	 */
 	private static BinaryProcessor autoThreshold(ImageProcessor im,
 												 String method) {
-		AutoThresholder thresholder = new AutoThresholder();
-		int threshold = thresholder.getThreshold(method, im.getHistogram());
+		ImageView view = ImageView.create(im);
+		int n = view.size();
+
+		double min = 0;
+		double binWidth = 1;
+		if (!(view instanceof ImageView.Bytes)) {
+			min = Double.MAX_VALUE;
+			double max = -Double.MAX_VALUE;
+			for (int i = 0; i < n; ++i) {
+				float v = view.get(i);
+				min = Math.min(min, v);
+				max = Math.max(max, v);
+			}
+			binWidth = max > min ? (max - min) / 256 : 1;
+		}
 
-		ImageProcessor init = im.duplicate();
-		init.threshold(threshold);
-		init.convertToByte(false);
-		return new BinaryProcessor((ByteProcessor)init);
+		byte[] bins = new byte[n];
+		int[] hist = new int[256];
+		for (int i = 0; i < n; ++i) {
+			int b = (int)((view.get(i) - min) / binWidth);
+			b = Math.max(Math.min(b, 255), 0);
+			bins[i] = (byte)b;
+			++hist[b];
+		}
+
+		AutoThresholder thresholder = new AutoThresholder();
+		int threshold = thresholder.getThreshold(method, hist);
+
+		// As ImageProcessor.threshold(): <= threshold is background
+		ByteProcessor init = new ByteProcessor(view.getWidth(),
+											   view.getHeight());
+		byte[] pixels = (byte[])init.getPixels();
+		for (int i = 0; i < n; ++i) {
+			pixels[i] = (bins[i] & 0xff) > threshold ? (byte)255 : 0;
+		}
+		return new BinaryProcessor(init);
 	}
 
 	/**
@@ -111,9 +142,11 @@ public class Initialiser {
 			}
 		}
 		else {
+			byte[] m = (byte[])mask.getPixels();
 			for (int x = 0; x < rect.width; ++x) {
 				for (int y = 0; y < rect.height; ++y) {
-					init.set(x + rect.x, y + rect.y, mask.get(x, y));
+					init.set(x + rect.x, y + rect.y,
+							 m[y * rect.width + x] & 0xff);
 				}
 			}
 		}
@@ -0,0 +1,258 @@
+package ijfls.levelset;
+
+import java.util.List;
+import java.util.LinkedList;
+
+
+/**
+ * The iteration loop shared by the level sets.
+ *
+ * Each full iteration is a number of speed sub-iterations, stopping early
+ * if the level set has converged, followed by a number of smoothing
+ * sub-iterations. This class runs the loop and handles the progress
+ * listeners, logging and cancellation, the subclass implements the
+ * evolution and decides when it has converged.
+ */
+public abstract class IterativeLevelSet {
+	/**
+	 * Parameters for the level-set algorithm
+	 */
+	protected FastLevelSet.Parameters params;
+
+	/**
+	 * Where log messages are written
+	 */
+	protected LevelSetLog log = LevelSetLog.NONE;
+
+	/**
+	 * Checked between sub-iterations to see whether the segmentation
+	 * should stop
+	 */
+	protected CancellationToken cancel = CancellationToken.NONE;
+
+	/**
+	 * List of classes to notify of iteration progress
+	 */
+	protected List<LevelSetIterationListener> iterationListerners =
+		new LinkedList<LevelSetIterationListener>();
+
+	/**
+	 * @param params Parameters for the level set algorithm
+	 */
+	protected IterativeLevelSet(FastLevelSet.Parameters params) {
+		this.params = params;
+	}
+
+	/**
+	 * Evolve once according to the image speed field
+	 */
+	protected abstract void evolveSpeed();
+
+	/**
+	 * Evolve once according to the smoothing field
+	 */
+	protected abstract void evolveSmooth();
+
+	/**
+	 * Has the level set converged? Called after each speed sub-iteration.
+	 * @return true if the level set has converged
+	 */
+	protected abstract boolean hasConverged();
+
+	/**
+	 * Get the fraction of the boundary which is still moving, for the log
+	 * @return The fraction
+	 */
+	public abstract double getMovingFraction();
+
+	/**
+	 * Describe the image for the log
+	 * @return A prefix for the parameters message, may be empty
+	 */
+	protected String describe() {
+		return "";
+	}
+
+	/**
+	 * Describe the speed field for the log
+	 * @return The description
+	 */
+	protected abstract String describeSpeedField();
+
+	/**
+	 * Check everything is consistent after each sub-iteration, does nothing
+	 * unless overridden
+	 */
+	protected void checkConsistency() {
+	}
+
+	/**
+	 * Segment the image, subject to the maximum iterations
+	 * @return true if segmentation completed, false otherwise
+	 */
+	public boolean segment() {
+		boolean converged = false;
+		boolean info = log.isEnabled(LevelSetLog.Level.INFO);
+		boolean debug = log.isEnabled(LevelSetLog.Level.DEBUG);
+
+		if (info) {
+			log.log(LevelSetLog.Level.INFO, describeSpeedField());
+			log.log(LevelSetLog.Level.INFO,
+					describe() +
+					"speedIterations:" + params.speedIterations +
+					" smoothIterations:" + params.smoothIterations +
+					" maxIterations:" + params.maxIterations +
+					" gaussWidth:" + params.gaussWidth +
+					" gaussSigma:" + LevelSetLog.d2s(params.gaussSigma, 2) +
+					" convergenceTolerance:" +
+					LevelSetLog.d2s(params.convergenceTolerance, 4));
+		}
+
+		for(int nIts = 0; nIts < params.maxIterations; ++nIts) {
+			if (info) {
+				log.log(LevelSetLog.Level.INFO, "Iteration: " + (nIts + 1) +
+						"/" + params.maxIterations);
+			}
+
+			for(int nSpeedIts = 0; nSpeedIts < params.speedIterations;
+				++nSpeedIts) {
+				if (debug) {
+					log.log(LevelSetLog.Level.DEBUG, "\tSpeed: [" + (nIts + 1) +
+							"]" + (nSpeedIts + 1) + "/" +
+							params.speedIterations);
+				}
+
+				evolveSpeed();
+				checkConsistency();
+				notifySpeed(nIts + 1, params.maxIterations, nSpeedIts + 1,
+							params.speedIterations);
+
+				converged = hasConverged();
+				if(converged) {
+					// Always do at least two iterations
+					if (nIts == 0) {
+						if (info) {
+							log.log(LevelSetLog.Level.INFO,
+									"Converged on iteration [" + (nIts + 1) +
+									"]" + (nSpeedIts + 1) + ", ignoring");
+						}
+						converged = false;
+
+						// Always break because the level set is currently stuck
+					}
+					else if (info) {
+						log.log(LevelSetLog.Level.INFO,
+								"Converged on iteration [" + (nIts + 1) +
+								"]" + (nSpeedIts + 1) + ", moving fraction: " +
+								LevelSetLog.d2s(getMovingFraction(), 4));
+					}
+
+					break;
+				}
+
+				if (isCancelled()) {
+					return false;
+				}
+			}
+
+			for(int nSmoothIts = 0; nSmoothIts < params.smoothIterations;
+				++nSmoothIts) {
+				if (debug) {
+					log.log(LevelSetLog.Level.DEBUG, "\tSmooth: [" + (nIts + 1) +
+							"]" + (nSmoothIts + 1) + "/" +
+							params.smoothIterations);
+				}
+
+				evolveSmooth();
+				checkConsistency();
+				notifySmooth(nIts + 1, params.maxIterations, nSmoothIts + 1,
+							params.smoothIterations);
+
+				if (isCancelled()) {
+					return false;
+				}
+			}
+
+			notifyFull(nIts + 1, params.maxIterations);
+
+			if (converged) {
+				break;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * Add a class to be notified of iterations
+	 * @param li The class to be notified
+	 */
+	public void addIterationListener(LevelSetIterationListener li) {
+		iterationListerners.add(li);
+	}
+
+	/**
+	 * Notify listeners of a completed full iteration
+	 * @param full The number of completed full iterations
+	 * @param fullT The total number of full iterations
+	 */
+	protected void notifyFull(int full, int fullT) {
+		for (LevelSetIterationListener li : iterationListerners) {
+			li.fullIteration(full, fullT);
+		}
+	}
+
+	/**
+	 * Notify listeners of a completed speed iteration
+	 * @param full The number of completed full iterations
+	 * @param fullT The total number of full iterations
+	 * @param speed The number of completed speed iterations in this cycle
+	 * @param speedT The total number of speed iterations in this cycle
+	 */
+	protected void notifySpeed(int full, int fullT, int speed, int speedT) {
+		for (LevelSetIterationListener li : iterationListerners) {
+			li.speedIteration(full, fullT, speed, speedT);
+		}
+	}
+
+	/**
+	 * Notify listeners of a completed smooth iteration
+	 * @param full The number of completed full iterations
+	 * @param fullT The total number of full iterations
+	 * @param smooth The number of completed smooth iterations in this cycle
+	 * @param smoothT The total number of smooth iterations in this cycle
+	 */
+	protected void notifySmooth(int full, int fullT, int smooth, int smoothT) {
+		for (LevelSetIterationListener li : iterationListerners) {
+			li.smoothIteration(full, fullT, smooth, smoothT);
+		}
+	}
+
+	/**
+	 * Set where log messages are written
+	 * @param log The log, LevelSetLog.NONE to discard all messages
+	 */
+	public void setLog(LevelSetLog log) {
+		this.log = log;
+	}
+
+	/**
+	 * Set the token which is checked between sub-iterations
+	 * @param cancel The token, segment() returns false if it is cancelled
+	 */
+	public void setCancellationToken(CancellationToken cancel) {
+		this.cancel = cancel;
+	}
+
+	/**
+	 * Check whether the segmentation should stop
+	 * @return true if cancelled, false otherwise
+	 */
+	protected boolean isCancelled() {
+		if (cancel.isCancelled()) {
+			log.log(LevelSetLog.Level.INFO, "Cancelled, terminating.");
+			return true;
+		}
+		return false;
+	}
+}
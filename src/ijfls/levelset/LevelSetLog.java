@@ -0,0 +1,91 @@
+package ijfls.levelset;
+
+import java.util.Locale;
+
+
+/**
+ * Receives log messages from the level set classes.
+ * Callers should check isEnabled() before building a message, so a log
+ * which is disabled at that level costs a single comparison.
+ * There is no global log, each level set is given one with setLog() and
+ * writes nothing until it is.
+ */
+public abstract class LevelSetLog {
+	/**
+	 * The message levels, in order of increasing verbosity
+	 */
+	public enum Level {
+		/**
+		 * Errors which should be reported to the user
+		 */
+		ERROR,
+
+		/**
+		 * Parameters, iterations and convergence
+		 */
+		INFO,
+
+		/**
+		 * Every sub-iteration and consistency checks
+		 */
+		DEBUG
+	}
+
+	/**
+	 * A log which discards all messages
+	 */
+	public static final LevelSetLog NONE = new LevelSetLog(null) {
+		protected void write(Level l, String msg) {
+		}
+	};
+
+	/**
+	 * The most verbose level which is written, null for none
+	 */
+	private final Level level;
+
+	/**
+	 * @param level The most verbose level which is written, null to
+	 *        discard everything
+	 */
+	protected LevelSetLog(Level level) {
+		this.level = level;
+	}
+
+	/**
+	 * Are messages at a level written?
+	 * @param l The level
+	 * @return true if messages at this level are written
+	 */
+	public final boolean isEnabled(Level l) {
+		return level != null && l.compareTo(level) <= 0;
+	}
+
+	/**
+	 * Write a message if its level is enabled
+	 * @param l The level
+	 * @param msg The message
+	 */
+	public final void log(Level l, String msg) {
+		if (isEnabled(l)) {
+			write(l, msg);
+		}
+	}
+
+	/**
+	 * Write a message, only called for enabled levels
+	 * @param l The level
+	 * @param msg The message
+	 */
+	protected abstract void write(Level l, String msg);
+
+	/**
+	 * Format a number for a log message
+	 * @param d The number
+	 * @param places The number of decimal places
+	 * @return The formatted number
+	 */
+	public static String d2s(double d, int places) {
+		return String.format(Locale.US, "%." + places + "f", d);
+	}
+}
@@ -0,0 +1,577 @@
+package ijfls.levelset;
+
+import ij.process.*;
+
+
+/**
+ * A multi-region version of the fast level set, which evolves any number of
+ * labelled regions at once using a multiphase Chan-Vese speed.
+ *
+ * Instead of a phi function per region there is a single label map where 0
+ * is the background and 1..n are the regions, so regions can't overlap.
+ * Each label (including the background) has a band of its pixels which
+ * have a 4-neighbour with a different label, this is the equivalent of Lin
+ * for that region while the bands of its neighbours form its Lout.
+ *
+ * In a speed iteration each band pixel moves to the neighbouring label
+ * whose mean intensity is closest to the pixel's intensity, if it's closer
+ * than the mean of its current label. In a smoothing iteration each band
+ * pixel moves to the neighbouring label with the largest Gaussian weighted
+ * area around the pixel, if it's larger than that of its current label.
+ *
+ * The iteration loop is shared with FastLevelSet through IterativeLevelSet,
+ * but even with a single region the result differs from FastLevelSet with a
+ * ChanVeseSpeedField:
+ * - The smoothing compares the kernel weights of the candidate labels,
+ *   clipped at the image border, instead of comparing the Gaussian weighted
+ *   inside area with the SmoothingFilter threshold.
+ * - Convergence is measured by the number of points which switched in the
+ *   last speed iteration, instead of the number of boundary points whose
+ *   speed indicates they should still move.
+ * - The bands are evolved in order of label, so a point which switches to
+ *   a higher label is considered again in the same pass but a point which
+ *   switches to a lower label isn't.
+ *
+ * The mean intensity of each label is tracked incrementally as pixels
+ * switch, so the cost of an iteration depends on the total size of the
+ * bands rather than the number of regions.
+ */
+public class MultiFastLevelSet extends IterativeLevelSet {
+	/**
+	 * The largest label which can be stored in the label map
+	 */
+	public static final int MAX_REGIONS = 0xffff;
+
+	/**
+	 * Width of the image
+	 */
+	protected final int width;
+
+	/**
+	 * Height of the image
+	 */
+	protected final int height;
+
+	/**
+	 * The image to be segmented
+	 */
+	protected final ImageView im;
+
+	/**
+	 * The label of each pixel (unsigned), 0 is background
+	 */
+	protected final short[] labels;
+
+	/**
+	 * The number of regions, excluding background
+	 */
+	protected final int nregions;
+
+	/**
+	 * The band of each label: pixels with that label which have a
+	 * 4-neighbour with a different label
+	 */
+	protected final IndexList[] bands;
+
+	/**
+	 * Band pixels which have been added during the current pass, indexed by
+	 * label
+	 */
+	protected final IndexList[] pending;
+
+	/**
+	 * The labels whose pending list is not empty, so flushPending() doesn't
+	 * have to check every label
+	 */
+	protected final IndexList pendingLabels = new IndexList();
+
+	/**
+	 * 1 if a pixel is in a band or pending list, 0 otherwise
+	 */
+	protected final byte[] inBand;
+
+	/**
+	 * The number of pixels with each label
+	 */
+	protected final double[] area;
+
+	/**
+	 * The total intensity of each label
+	 */
+	protected final double[] total;
+
+	/**
+	 * The mean intensity of each label, updated at the start of each speed
+	 * iteration
+	 */
+	protected final double[] means;
+
+	/**
+	 * The Gaussian smoothing filter, null if smoothing is disabled
+	 */
+	protected SmoothingFilter smoothing;
+
+	/**
+	 * A temporary variable to hold the current neighbourhood of a point
+	 * (linear indices)
+	 */
+	protected final int[] nhood = new int[4];
+
+	/**
+	 * Number of points in the neighbourhood
+	 */
+	protected int nhSize;
+
+	/**
+	 * Temporary candidate labels and their smoothing weights
+	 */
+	protected final int[] candidates = new int[5];
+	protected final int[] weights = new int[5];
+
+	/**
+	 * The number of pixels which switched in the last speed iteration
+	 */
+	protected int nSwitched;
+
+	/**
+	 * Constructor
+	 * @param params Parameters for the level set algorithm
+	 * @param im The image to be segmented
+	 * @param init The initial label of each pixel, 0 for background and at
+	 *        most MAX_REGIONS
+	 * @throws IllegalArgumentException if the labels are invalid
+	 */
+	public MultiFastLevelSet(FastLevelSet.Parameters params,
+							 ImageProcessor im, ImageProcessor init) {
+		super(params);
+		if (init.getWidth() != im.getWidth() ||
+			init.getHeight() != im.getHeight()) {
+			throw new IllegalArgumentException(
+				"Initialisation must be the same size as the image");
+		}
+
+		this.im = ImageView.create(im);
+		width = im.getWidth();
+		height = im.getHeight();
+		int n = width * height;
+		labels = new short[n];
+		inBand = new byte[n];
+
+		ImageView initView = ImageView.create(init);
+		int maxLabel = 0;
+		for (int p = 0; p < n; ++p) {
+			float v = initView.get(p);
+			if (v < 0 || v > MAX_REGIONS || v != (int)v) {
+				throw new IllegalArgumentException("Invalid label: " + v);
+			}
+			labels[p] = (short)v;
+			maxLabel = Math.max(maxLabel, (int)v);
+		}
+		nregions = maxLabel;
+
+		bands = new IndexList[nregions + 1];
+		pending = new IndexList[nregions + 1];
+		for (int k = 0; k <= nregions; ++k) {
+			bands[k] = new IndexList();
+			pending[k] = new IndexList();
+		}
+		area = new double[nregions + 1];
+		total = new double[nregions + 1];
+		means = new double[nregions + 1];
+
+		initialise();
+	}
+
+	/**
+	 * Create the bands and the intensity totals, and the Gaussian filter
+	 */
+	protected void initialise() {
+		int n = width * height;
+		for (int p = 0; p < n; ++p) {
+			int l = label(p);
+			area[l] += 1;
+			total[l] += im.get(p);
+			if (isInterface(p)) {
+				inBand[p] = 1;
+				bands[l].add(p);
+			}
+		}
+		updateMeans();
+
+		if (params.smoothIterations > 0) {
+			smoothing = new SmoothingFilter(params.gaussWidth,
+											params.gaussSigma, width, height);
+		}
+	}
+
+	/**
+	 * Has the level set converged?
+	 * @return true if no more than convergenceTolerance of the boundary
+	 *         points switched in the last speed iteration
+	 */
+	protected boolean hasConverged() {
+		return nSwitched <= params.convergenceTolerance * getBoundarySize();
+	}
+
+	/**
+	 * Get the fraction of the boundary which switched in the last speed
+	 * iteration
+	 * @return nSwitched / getBoundarySize(), or 0 if the boundary is empty
+	 */
+	public double getMovingFraction() {
+		int n = getBoundarySize();
+		return n == 0 ? 0 : (double)nSwitched / n;
+	}
+
+	protected String describe() {
+		return "MultiFastLevelSet " + width + "x" + height + " ";
+	}
+
+	protected String describeSpeedField() {
+		return "Multiphase Chan-Vese regions:" + nregions;
+	}
+
+	/**
+	 * Evolve once according to the multiphase Chan-Vese speed
+	 */
+	protected void evolveSpeed() {
+		updateMeans();
+		nSwitched = 0;
+
+		for (int k = 0; k <= nregions; ++k) {
+			IndexList band = bands[k];
+			int n = band.size();
+			int keep = 0;
+			for (int i = 0; i < n; ++i) {
+				int p = band.get(i);
+				int t = closestMean(p, k);
+				if (t != k) {
+					switchLabel(p, k, t);
+					++nSwitched;
+				}
+				else {
+					band.set(keep++, p);
+				}
+			}
+			band.truncate(keep);
+			flushPending();
+		}
+
+		cleanBands();
+	}
+
+	/**
+	 * Evolve once according to the smoothing field
+	 */
+	protected void evolveSmooth() {
+		for (int k = 0; k <= nregions; ++k) {
+			IndexList band = bands[k];
+			int n = band.size();
+			int keep = 0;
+			for (int i = 0; i < n; ++i) {
+				int p = band.get(i);
+				int t = smoothestLabel(p, k);
+				if (t != k) {
+					switchLabel(p, k, t);
+				}
+				else {
+					band.set(keep++, p);
+				}
+			}
+			band.truncate(keep);
+			flushPending();
+		}
+
+		cleanBands();
+	}
+
+	/**
+	 * Find the neighbouring label whose mean is closest to the intensity of
+	 * a point
+	 * @param p The linear index of the point
+	 * @param k The label of the point
+	 * @return The label the point should have, k if it shouldn't move
+	 */
+	private int closestMean(int p, int k) {
+		double v = im.get(p);
+		double d = v - means[k];
+		double best = d * d;
+		int t = k;
+
+		getNeighbourhood(p);
+		for (int i = 0; i < nhSize; ++i) {
+			int l = label(nhood[i]);
+			if (l != k && l != t) {
+				d = v - means[l];
+				// Comparisons with the mean of an empty label are false
+				if (d * d < best) {
+					best = d * d;
+					t = l;
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Find the neighbouring label with the largest Gaussian weighted area
+	 * around a point
+	 * @param p The linear index of the point
+	 * @param k The label of the point
+	 * @return The label the point should have, k if it shouldn't move
+	 */
+	private int smoothestLabel(int p, int k) {
+		int nc = 0;
+		candidates[nc] = k;
+		weights[nc++] = 0;
+		getNeighbourhood(p);
+		for (int i = 0; i < nhSize; ++i) {
+			int l = label(nhood[i]);
+			boolean found = false;
+			for (int c = 0; c < nc; ++c) {
+				found |= candidates[c] == l;
+			}
+			if (!found) {
+				candidates[nc] = l;
+				weights[nc++] = 0;
+			}
+		}
+		if (nc == 1) {
+			return k;
+		}
+
+		int gw = smoothing.gw;
+		int s = smoothing.s;
+		int[] kernel = smoothing.kernel;
+		int px = p % width;
+		int py = p / width;
+		int dxmax = Math.min(gw + 1, width - px);
+		int dymax = Math.min(gw + 1, height - py);
+		int dxmin = Math.max(-gw, -px);
+		int dymin = Math.max(-gw, -py);
+
+		for (int dy = dymin; dy < dymax; ++dy) {
+			int row = p + dy * width;
+			int krow = (gw + dy) * s + gw;
+			for (int dx = dxmin; dx < dxmax; ++dx) {
+				int l = label(row + dx);
+				for (int c = 0; c < nc; ++c) {
+					if (candidates[c] == l) {
+						weights[c] += kernel[krow + dx];
+						break;
+					}
+				}
+			}
+		}
+
+		int t = 0;
+		for (int c = 1; c < nc; ++c) {
+			if (weights[c] > weights[t]) {
+				t = c;
+			}
+		}
+		return candidates[t];
+	}
+
+	/**
+	 * Move a point to a different label. The caller is responsible for
+	 * removing p from the band of its old label, and flushPending() must be
+	 * called when the iteration over the band has finished.
+	 * @param p The linear index of the point
+	 * @param from The old label
+	 * @param to The new label
+	 */
+	protected void switchLabel(int p, int from, int to) {
+		double v = im.get(p);
+		area[from] -= 1;
+		total[from] -= v;
+		area[to] += 1;
+		total[to] += v;
+
+		labels[p] = (short)to;
+		addPending(to, p);
+
+		// Neighbours are now on the boundary
+		getNeighbourhood(p);
+		for (int i = 0; i < nhSize; ++i) {
+			int q = nhood[i];
+			if (inBand[q] == 0) {
+				inBand[q] = 1;
+				addPending(label(q), q);
+			}
+		}
+	}
+
+	/**
+	 * Add a point to the pending list of a label
+	 * @param k The label
+	 * @param p The linear index of the point
+	 */
+	private void addPending(int k, int p) {
+		if (pending[k].isEmpty()) {
+			pendingLabels.add(k);
+		}
+		pending[k].add(p);
+	}
+
+	/**
+	 * Insert any pending additions into the front of the bands, this only
+	 * visits the labels which have pending additions
+	 */
+	protected void flushPending() {
+		for (int i = 0; i < pendingLabels.size(); ++i) {
+			int k = pendingLabels.get(i);
+			bands[k].prependAll(pending[k]);
+			pending[k].clear();
+		}
+		pendingLabels.clear();
+	}
+
+	/**
+	 * Remove points which are no longer on a boundary from the bands
+	 */
+	protected void cleanBands() {
+		for (int k = 0; k <= nregions; ++k) {
+			IndexList band = bands[k];
+			int n = band.size();
+			int keep = 0;
+			for (int i = 0; i < n; ++i) {
+				int p = band.get(i);
+				if (isInterface(p)) {
+					band.set(keep++, p);
+				}
+				else {
+					inBand[p] = 0;
+				}
+			}
+			band.truncate(keep);
+		}
+	}
+
+	/**
+	 * Recalculate the mean intensity of each label
+	 */
+	protected void updateMeans() {
+		for (int k = 0; k <= nregions; ++k) {
+			means[k] = total[k] / area[k];
+		}
+	}
+
+	/**
+	 * Get the label of a point
+	 * @param p The linear index of the point
+	 * @return The label
+	 */
+	protected final int label(int p) {
+		return labels[p] & 0xffff;
+	}
+
+	/**
+	 * Does a point have a 4-neighbour with a different label?
+	 * @param p The linear index of the point
+	 * @return true if the point is on a boundary
+	 */
+	protected boolean isInterface(int p) {
+		int l = labels[p];
+		getNeighbourhood(p);
+		for (int i = 0; i < nhSize; ++i) {
+			if (labels[nhood[i]] != l) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Gets the 4-connected neighbourhood of a point
+	 * @param p The linear index of the point
+	 */
+	protected void getNeighbourhood(int p) {
+		int x = p % width;
+		int y = p / width;
+		nhSize = 0;
+		if (y < height - 1) {
+			nhood[nhSize++] = p + width;
+		}
+		if (y > 0) {
+			nhood[nhSize++] = p - width;
+		}
+		if (x < width - 1) {
+			nhood[nhSize++] = p + 1;
+		}
+		if (x > 0) {
+			nhood[nhSize++] = p - 1;
+		}
+	}
+
+	/**
+	 * Get the number of regions
+	 * @return the number of regions, excluding background
+	 */
+	public int getNumRegions() {
+		return nregions;
+	}
+
+	/**
+	 * Get the number of points on all boundaries
+	 * @return the total size of the bands
+	 */
+	public int getBoundarySize() {
+		int n = 0;
+		for (IndexList band : bands) {
+			n += band.size();
+		}
+		return n;
+	}
+
+	/**
+	 * Get the area of a region
+	 * @param k The label
+	 * @return The number of pixels
+	 */
+	public int getArea(int k) {
+		return (int)area[k];
+	}
+
+	/**
+	 * Get the mean intensity of a region
+	 * @param k The label
+	 * @return The mean intensity, NaN if the region is empty
+	 */
+	public double getMean(int k) {
+		return total[k] / area[k];
+	}
+
+	/**
+	 * Get the label of each pixel
+	 * @return A new label image
+	 */
+	public ShortProcessor getLabels() {
+		return new ShortProcessor(width, height, labels.clone(), null);
+	}
+
+	/**
+	 * Get a binary segmentation. Where two regions touch the pixels of the
+	 * lower label are set to background, so each region remains a separate
+	 * 4-connected component.
+	 * @return the segmented image
+	 */
+	public BinaryProcessor getSegmentation() {
+		BinaryProcessor seg = new BinaryProcessor(
+			new ByteProcessor(width, height));
+		byte[] pixels = (byte[])seg.getPixels();
+		for (int p = 0; p < pixels.length; ++p) {
+			int l = label(p);
+			if (l == 0) {
+				continue;
+			}
+			boolean separate = false;
+			getNeighbourhood(p);
+			for (int i = 0; i < nhSize; ++i) {
+				separate |= label(nhood[i]) > l;
+			}
+			pixels[p] = separate ? 0 : (byte)255;
+		}
+		return seg;
+	}
+}
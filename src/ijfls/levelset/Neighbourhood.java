@@ -0,0 +1,223 @@
+package ijfls.levelset;
+
+/**
+ * The geometry of an image or volume as seen by the boundary list engine:
+ * the number of points, and the neighbours of a point identified by its
+ * linear index.
+ *
+ * A single instance holds the neighbourhood of the last point passed to
+ * find(), so it must not be shared between threads.
+ */
+abstract class Neighbourhood {
+	/**
+	 * The linear indices of the neighbours found by the last call to find()
+	 */
+	final int[] points;
+
+	/**
+	 * The number of neighbours found by the last call to find()
+	 */
+	int size;
+
+	/**
+	 * @param maxSize The maximum number of neighbours of a point
+	 */
+	protected Neighbourhood(int maxSize) {
+		points = new int[maxSize];
+		size = 0;
+	}
+
+	/**
+	 * Get the number of points in the image or volume
+	 * @return the number of points
+	 */
+	abstract int getNumPoints();
+
+	/**
+	 * Find the neighbours of a point, the result is stored in points and
+	 * size
+	 * @param p The linear index of the point
+	 */
+	abstract void find(int p);
+
+	/**
+	 * Format the coordinates of a point for messages
+	 * @param p The linear index of the point
+	 * @return The coordinates
+	 */
+	abstract String format(int p);
+
+	/**
+	 * The 4-connected neighbourhood of a point in an image
+	 */
+	static final class Grid4 extends Neighbourhood {
+		/**
+		 * Width of the image
+		 */
+		private final int width;
+
+		/**
+		 * Height of the image
+		 */
+		private final int height;
+
+		/**
+		 * @param width Width of the image
+		 * @param height Height of the image
+		 */
+		Grid4(int width, int height) {
+			super(4);
+			this.width = width;
+			this.height = height;
+		}
+
+		int getNumPoints() {
+			return width * height;
+		}
+
+		void find(int p) {
+			/**
+			 * @todo Ignore bounds, and instead check bounds when neighbourhood
+			 * is used?
+			 */
+			int w = width;
+			int x = p % w;
+			int y = p / w;
+
+			if (x == 0) {
+				if (y == 0) {
+					points[0] = p + w;
+					points[1] = p + 1;
+					size = 2;
+				}
+				else if (y == height - 1) {
+					points[0] = p - w;
+					points[1] = p + 1;
+					size = 2;
+				}
+				else {
+					points[0] = p + w;
+					points[1] = p - w;
+					points[2] = p + 1;
+					size = 3;
+				}
+			}
+			else if (x == w - 1) {
+				if (y == 0) {
+					points[0] = p + w;
+					points[1] = p - 1;
+					size = 2;
+				}
+				else if (y == height - 1) {
+					points[0] = p - w;
+					points[1] = p - 1;
+					size = 2;
+				}
+				else {
+					points[0] = p + w;
+					points[1] = p - w;
+					points[2] = p - 1;
+					size = 3;
+				}
+			}
+			else {
+				if (y == 0) {
+					points[0] = p + w;
+					points[1] = p - 1;
+					points[2] = p + 1;
+					size = 3;
+				}
+				else if (y == height - 1) {
+					points[0] = p - w;
+					points[1] = p - 1;
+					points[2] = p + 1;
+					size = 3;
+				}
+				else {
+					points[0] = p + w;
+					points[1] = p - w;
+					points[2] = p + 1;
+					points[3] = p - 1;
+					size = 4;
+				}
+			}
+		}
+
+		String format(int p) {
+			return (p % width) + "," + (p / width);
+		}
+	}
+
+	/**
+	 * The 6-connected neighbourhood of a point in a volume
+	 */
+	static final class Grid6 extends Neighbourhood {
+		/**
+		 * Width of the volume
+		 */
+		private final int width;
+
+		/**
+		 * Height of the volume
+		 */
+		private final int height;
+
+		/**
+		 * Number of slices
+		 */
+		private final int depth;
+
+		/**
+		 * Number of points in a slice
+		 */
+		private final int area;
+
+		/**
+		 * @param width Width of the volume
+		 * @param height Height of the volume
+		 * @param depth Number of slices
+		 */
+		Grid6(int width, int height, int depth) {
+			super(6);
+			this.width = width;
+			this.height = height;
+			this.depth = depth;
+			area = width * height;
+		}
+
+		int getNumPoints() {
+			return area * depth;
+		}
+
+		void find(int p) {
+			int x = p % width;
+			int y = (p / width) % height;
+			int z = p / area;
+
+			size = 0;
+			if (y < height - 1) {
+				points[size++] = p + width;
+			}
+			if (y > 0) {
+				points[size++] = p - width;
+			}
+			if (x < width - 1) {
+				points[size++] = p + 1;
+			}
+			if (x > 0) {
+				points[size++] = p - 1;
+			}
+			if (z < depth - 1) {
+				points[size++] = p + area;
+			}
+			if (z > 0) {
+				points[size++] = p - area;
+			}
+		}
+
+		String format(int p) {
+			return (p % width) + "," + ((p / width) % height) + "," +
+				(p / area);
+		}
+	}
+}
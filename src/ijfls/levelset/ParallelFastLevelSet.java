@@ -0,0 +1,365 @@
+package ijfls.levelset;
+
+import ij.process.*;
+
+import java.util.Arrays;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+
+/**
+ * A multi-threaded version of FastLevelSet.
+ *
+ * Each speed or smoothing sub-iteration is split into two phases:
+ * 1. The speed or smoothing field at every point on the boundary list is
+ *    calculated in parallel using phi as it was at the start of the
+ *    sub-iteration. The list is divided into chunks which are processed by
+ *    a ForkJoinPool.
+ * 2. A single thread goes through the list in order and switches points,
+ *    this is the only phase which modifies phi and the boundary lists.
+ *
+ * In the serial algorithm a switch can change the field at points later in
+ * the list. In deterministic mode the image is divided into tiles, and
+ * every switch during phase 2 marks its tile. If any tile within the
+ * dependency radius of a point has been marked the field at that point is
+ * recalculated, so the segmentation is identical to FastLevelSet regardless
+ * of the number of threads. Otherwise the values from phase 1 are always
+ * used, which is faster but gives a slightly different segmentation
+ * (though still independent of the number of threads).
+ *
+ * Speed fields which don't declare a dependency radius are evaluated
+ * serially.
+ *
+ * The band is not divided between threads, only the evaluation in phase 1
+ * is parallel. In deterministic mode most points near the boundary are
+ * recalculated serially when the dependency radius is comparable to the
+ * tile size, as for smoothing and the hybrid speed field, and the
+ * Chan-Vese speed is too cheap for phase 1 to pay for itself. Use
+ * ParallelFastLevelSetBenchmark to check for a speedup on the target
+ * machine, FastLevelSet_Plugin only uses this if parallelLevelSet is set.
+ */
+public class ParallelFastLevelSet extends FastLevelSet {
+	/**
+	 * Number of boundary points processed by a single task
+	 */
+	private static final int CHUNK_SIZE = 1024;
+
+	/**
+	 * Minimum width and height of a tile in the dirty map
+	 */
+	private static final int MIN_TILE_SIZE = 8;
+
+	/**
+	 * The threads used to calculate the fields
+	 */
+	private final ForkJoinPool pool;
+
+	/**
+	 * Reproduce the serial result exactly?
+	 */
+	private final boolean deterministic;
+
+	/**
+	 * The fields calculated in phase 1, one element per boundary list
+	 * element
+	 */
+	private int[] fields = new int[0];
+
+	/**
+	 * Tiles which contain a point that has been switched in the current
+	 * sub-iteration
+	 */
+	private byte[] dirty = new byte[0];
+
+	/**
+	 * The dependency radius of the field used in the current sub-iteration,
+	 * -1 if switches should not be tracked
+	 */
+	private int dirtyRadius = -1;
+
+	/**
+	 * Width and height of the tiles in the dirty map
+	 */
+	private int tileSize;
+
+	/**
+	 * Number of columns of tiles
+	 */
+	private int ntilesx;
+
+	/**
+	 * Constructor.
+	 * @param params Parameters for the level set algorithm
+	 * @param im The image to be segmented
+	 * @param init The binary initialisation
+	 * @param speedf The speed field
+	 * @param pool The threads to use
+	 * @param deterministic If true the segmentation will be identical to
+	 *        FastLevelSet
+	 */
+	public ParallelFastLevelSet(Parameters params, ImageProcessor im,
+								BinaryProcessor init, SpeedField speedf,
+								ForkJoinPool pool, boolean deterministic) {
+		super(params, im, init, speedf);
+		this.pool = pool;
+		this.deterministic = deterministic;
+	}
+
+	/**
+	 * The cached smoothing filter can't be read concurrently, and its
+	 * advantage is lost when many points are calculated in parallel
+	 */
+	protected void createGaussFilter() {
+		smoothing = new SmoothingFilter(
+			params.gaussWidth, params.gaussSigma, size.x, size.y);
+	}
+
+	protected void evolveSpeed() {
+		int radius = speedField.getDependencyRadius();
+		if (radius < 0) {
+			super.evolveSpeed();
+			return;
+		}
+
+		updateSpeedChanges();
+
+		evaluate(lout, false);
+		startTracking(radius);
+		int n = lout.size();
+		int keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lout.get(k);
+			if (isDirty(p)) {
+				calculateSpeed(p);
+			}
+			else {
+				setSpeed(p, fields[k]);
+			}
+
+			if (speed.get(p) > 0) {
+				switchIn(p);
+			}
+			else {
+				lout.set(keep++, p);
+			}
+		}
+		lout.truncate(keep);
+
+		flushListAdditions();
+		cleanLin();
+
+		evaluate(lin, false);
+		startTracking(radius);
+		n = lin.size();
+		keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lin.get(k);
+			if (isDirty(p)) {
+				calculateSpeed(p);
+			}
+			else {
+				setSpeed(p, fields[k]);
+			}
+
+			if (speed.get(p) < 0) {
+				switchOut(p);
+			}
+			else {
+				lin.set(keep++, p);
+			}
+		}
+		lin.truncate(keep);
+
+		flushListAdditions();
+		cleanLout();
+		dirtyRadius = -1;
+	}
+
+	protected void evolveSmooth() {
+		smoothing.updateSwitches(getBoundarySize());
+		int threshold = smoothing.getThreshold();
+
+		evaluate(lout, true);
+		startTracking(params.gaussWidth);
+		int n = lout.size();
+		int keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lout.get(k);
+			int f = isDirty(p) ? calculateSmooth(p) : fields[k];
+			if (f > threshold) {
+				switchIn(p);
+			}
+			else {
+				lout.set(keep++, p);
+			}
+		}
+		lout.truncate(keep);
+
+		flushListAdditions();
+		cleanLin();
+
+		evaluate(lin, true);
+		startTracking(params.gaussWidth);
+		n = lin.size();
+		keep = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = lin.get(k);
+			int f = isDirty(p) ? calculateSmooth(p) : fields[k];
+			if (f < threshold) {
+				switchOut(p);
+			}
+			else {
+				lin.set(keep++, p);
+			}
+		}
+		lin.truncate(keep);
+
+		flushListAdditions();
+		cleanLout();
+		dirtyRadius = -1;
+	}
+
+	protected void switchIn(int p) {
+		markDirty(p);
+		super.switchIn(p);
+	}
+
+	protected void switchOut(int p) {
+		markDirty(p);
+		super.switchOut(p);
+	}
+
+	/**
+	 * Calculate the speed or smoothing field at every point in a list in
+	 * parallel, the results are stored in fields
+	 * @param l The list of points
+	 * @param smooth Calculate the smoothing field if true, otherwise the
+	 *        speed field
+	 */
+	private void evaluate(IndexList l, boolean smooth) {
+		if (fields.length < l.size()) {
+			fields = new int[Math.max(l.size(), fields.length * 2)];
+		}
+		pool.invoke(new Evaluate(l, 0, l.size(), smooth));
+	}
+
+	/**
+	 * Start recording switched points (deterministic mode only)
+	 * @param radius The dependency radius of the field being calculated
+	 */
+	private void startTracking(int radius) {
+		// If the field only depends on the point itself there's nothing to
+		// track because each point is only visited once
+		if (!deterministic || radius == 0) {
+			dirtyRadius = -1;
+			return;
+		}
+
+		dirtyRadius = radius;
+		tileSize = Math.max(radius, MIN_TILE_SIZE);
+		ntilesx = (size.x + tileSize - 1) / tileSize;
+		int ntiles = ntilesx * ((size.y + tileSize - 1) / tileSize);
+		if (dirty.length < ntiles) {
+			dirty = new byte[ntiles];
+		}
+		else {
+			Arrays.fill(dirty, 0, ntiles, (byte)0);
+		}
+	}
+
+	/**
+	 * Mark the tile containing a switched point
+	 * @param p The linear index of the point
+	 */
+	private void markDirty(int p) {
+		if (dirtyRadius > 0) {
+			dirty[(p / size.x) / tileSize * ntilesx + (p % size.x) / tileSize] =
+				1;
+		}
+	}
+
+	/**
+	 * Has a point within the dependency radius been switched?
+	 * @param p The linear index of the point
+	 * @return true if the field calculated in phase 1 may be wrong
+	 */
+	private boolean isDirty(int p) {
+		if (dirtyRadius <= 0) {
+			return false;
+		}
+
+		int x = p % size.x;
+		int y = p / size.x;
+		int tx0 = Math.max(x - dirtyRadius, 0) / tileSize;
+		int tx1 = Math.min(x + dirtyRadius, size.x - 1) / tileSize;
+		int ty0 = Math.max(y - dirtyRadius, 0) / tileSize;
+		int ty1 = Math.min(y + dirtyRadius, size.y - 1) / tileSize;
+
+		for (int ty = ty0; ty <= ty1; ++ty) {
+			for (int tx = tx0; tx <= tx1; ++tx) {
+				if (dirty[ty * ntilesx + tx] != 0) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Calculates the fields for a range of a boundary list, recursively
+	 * splitting the range until it is small enough
+	 */
+	private class Evaluate extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		/**
+		 * The list of points
+		 */
+		private final IndexList l;
+
+		/**
+		 * First element of the range (inclusive)
+		 */
+		private final int lo;
+
+		/**
+		 * Last element of the range (exclusive)
+		 */
+		private final int hi;
+
+		/**
+		 * Calculate the smoothing field if true, otherwise the speed field
+		 */
+		private final boolean smooth;
+
+		public Evaluate(IndexList l, int lo, int hi, boolean smooth) {
+			this.l = l;
+			this.lo = lo;
+			this.hi = hi;
+			this.smooth = smooth;
+		}
+
+		protected void compute() {
+			if (hi - lo > CHUNK_SIZE) {
+				int mid = (lo + hi) >>> 1;
+				invokeAll(new Evaluate(l, lo, mid, smooth),
+						  new Evaluate(l, mid, hi, smooth));
+				return;
+			}
+
+			// Each task needs its own temporary point
+			Point q = new Point(0, 0);
+			for (int k = lo; k < hi; ++k) {
+				int p = l.get(k);
+				if (smooth) {
+					fields[k] = smoothing.compute(phi, p);
+				}
+				else {
+					q.x = p % size.x;
+					q.y = p / size.x;
+					fields[k] = speedField.computeSpeed(phi, q);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package ijfls.levelset;
+
+import ij.process.*;
+
+/**
+ * A 2D binary indexed (Fenwick) tree holding the number of pixels and the
+ * total intensity of a region which changes one pixel at a time.
+ * This acts as a summed-area table which can be updated: adding or
+ * removing a pixel, and finding the sums over a rectangle, both take
+ * O(log(width) * log(height)) operations.
+ * See http://en.wikipedia.org/wiki/Fenwick_tree
+ */
+class RegionSumTree {
+	/**
+	 * Width of the image
+	 */
+	private final int width;
+
+	/**
+	 * Height of the image
+	 */
+	private final int height;
+
+	/**
+	 * Tree of pixel counts, (width + 1) * (height + 1) using 1-based indices
+	 */
+	private final int[] counts;
+
+	/**
+	 * Tree of intensity sums, same layout as counts
+	 */
+	private final double[] sums;
+
+	/**
+	 * Create an empty region
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 */
+	public RegionSumTree(int width, int height) {
+		this.width = width;
+		this.height = height;
+		counts = new int[(width + 1) * (height + 1)];
+		sums = new double[(width + 1) * (height + 1)];
+	}
+
+	/**
+	 * Create a region from a mask. This takes O(width * height) operations
+	 * instead of adding each pixel separately.
+	 * @param mask The region, non-zero pixels are inside
+	 * @param im The intensities
+	 */
+	public RegionSumTree(BinaryProcessor mask, ImageView im) {
+		this((byte[])mask.getPixels(), im);
+	}
+
+	/**
+	 * Create a region from a mask array the same size as the image
+	 * @param pixels The region, non-zero pixels are inside
+	 * @param im The intensities
+	 */
+	public RegionSumTree(byte[] pixels, ImageView im) {
+		this(im.getWidth(), im.getHeight());
+		int w1 = width + 1;
+
+		for (int y = 0; y < height; ++y) {
+			for (int x = 0; x < width; ++x) {
+				if (pixels[y * width + x] != 0) {
+					counts[(y + 1) * w1 + x + 1] = 1;
+					sums[(y + 1) * w1 + x + 1] = im.get(x, y);
+				}
+			}
+		}
+
+		// Add each node to its parent along the rows, then the columns
+		for (int i = 1; i <= height; ++i) {
+			int row = i * w1;
+			for (int j = 1; j <= width; ++j) {
+				int k = j + (j & -j);
+				if (k <= width) {
+					counts[row + k] += counts[row + j];
+					sums[row + k] += sums[row + j];
+				}
+			}
+		}
+		for (int i = 1; i <= height; ++i) {
+			int k = i + (i & -i);
+			if (k <= height) {
+				for (int j = 1; j <= width; ++j) {
+					counts[k * w1 + j] += counts[i * w1 + j];
+					sums[k * w1 + j] += sums[i * w1 + j];
+				}
+			}
+		}
+	}
+
+	/**
+	 * Add or remove a pixel
+	 * @param x The x coordinate
+	 * @param y The y coordinate
+	 * @param sign 1 to add the pixel, -1 to remove it
+	 * @param v The intensity of the pixel
+	 */
+	public void update(int x, int y, int sign, double v) {
+		double sv = sign * v;
+		for (int i = y + 1; i <= height; i += i & -i) {
+			int row = i * (width + 1);
+			for (int j = x + 1; j <= width; j += j & -j) {
+				counts[row + j] += sign;
+				sums[row + j] += sv;
+			}
+		}
+	}
+
+	/**
+	 * Get the number of pixels in a rectangle
+	 * @param x0 First column (inclusive)
+	 * @param y0 First row (inclusive)
+	 * @param x1 Last column (exclusive)
+	 * @param y1 Last row (exclusive)
+	 * @return The number of region pixels in the rectangle
+	 */
+	public int count(int x0, int y0, int x1, int y1) {
+		return prefixCount(x1, y1) - prefixCount(x0, y1)
+			- prefixCount(x1, y0) + prefixCount(x0, y0);
+	}
+
+	/**
+	 * Get the total intensity in a rectangle
+	 * @param x0 First column (inclusive)
+	 * @param y0 First row (inclusive)
+	 * @param x1 Last column (exclusive)
+	 * @param y1 Last row (exclusive)
+	 * @return The total intensity of region pixels in the rectangle
+	 */
+	public double sum(int x0, int y0, int x1, int y1) {
+		return prefixSum(x1, y1) - prefixSum(x0, y1)
+			- prefixSum(x1, y0) + prefixSum(x0, y0);
+	}
+
+	/**
+	 * Get the number of pixels in [0, x) * [0, y)
+	 */
+	private int prefixCount(int x, int y) {
+		int c = 0;
+		for (int i = y; i > 0; i -= i & -i) {
+			int row = i * (width + 1);
+			for (int j = x; j > 0; j -= j & -j) {
+				c += counts[row + j];
+			}
+		}
+		return c;
+	}
+
+	/**
+	 * Get the total intensity in [0, x) * [0, y)
+	 */
+	private double prefixSum(int x, int y) {
+		double s = 0;
+		for (int i = y; i > 0; i -= i & -i) {
+			int row = i * (width + 1);
+			for (int j = x; j > 0; j -= j & -j) {
+				s += sums[row + j];
+			}
+		}
+		return s;
+	}
+}
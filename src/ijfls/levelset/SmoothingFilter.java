@@ -0,0 +1,143 @@
+package ijfls.levelset;
+
+/**
+ * The smoothing term for the fast level set.
+ * This is a Gaussian filter scaled up to integers which is convolved with
+ * the inside region (phi < 0), a point should be inside if the result is
+ * greater than the threshold and outside if it is less.
+ *
+ * This implementation calculates the full convolution at every point that
+ * is requested. Subclasses may use the switchIn() and switchOut()
+ * notifications to avoid this.
+ */
+public class SmoothingFilter {
+	/**
+	 * Radius of the Gaussian filter
+	 */
+	protected final int gw;
+
+	/**
+	 * Number of rows and columns in the filter
+	 */
+	protected final int s;
+
+	/**
+	 * The Gaussian filter matrix, scaled up to integers (row-major)
+	 */
+	protected final int[] kernel;
+
+	/**
+	 * The threshold for the smoothing decision
+	 */
+	protected final int threshold;
+
+	/**
+	 * Width of the image
+	 */
+	protected final int width;
+
+	/**
+	 * Height of the image
+	 */
+	protected final int height;
+
+	/**
+	 * Constructor, creates the Gaussian filter
+	 * @param gaussWidth Radius of the Gaussian filter
+	 * @param gaussSigma Sigma for the Gaussian filter
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 */
+	public SmoothingFilter(int gaussWidth, double gaussSigma,
+						   int width, int height) {
+		this.gw = gaussWidth;
+		this.s = 2 * gaussWidth + 1;
+		this.width = width;
+		this.height = height;
+		kernel = new int[s * s];
+
+		// Rough heuristic: scale by number of elements in filter
+		double scale1 = s * s;
+		int gfScale = 0;
+
+		// In theory could just calculate 1/8th and duplicate instead
+		for (int y = 0; y < s; ++y) {
+			for (int x = 0; x < s; ++x) {
+				double d2 = (x - gw) * (x - gw) + (y - gw) * (y - gw);
+				double gf = 1.0 / gaussSigma / gaussSigma *
+					Math.exp(-0.5 / gaussSigma / gaussSigma * d2) * scale1;
+				kernel[y * s + x] = (int)gf;
+				gfScale += gf;
+			}
+		}
+		threshold = gfScale / 2;
+	}
+
+	/**
+	 * Get the threshold for the smoothing decision
+	 * @return the threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Compute the smoothing field at a point
+	 * @param phi Level-set phi function
+	 * @param p The linear index of the point
+	 * @return The convolution of the filter with the inside region at p
+	 */
+	int compute(FastLevelSet.Byte2D phi, int p) {
+		return convolve(phi, p);
+	}
+
+	/**
+	 * Called at the start of each smoothing iteration, allows the filter to
+	 * process all points which have switched during the speed iterations
+	 * @param boundarySize The number of points on the boundary
+	 */
+	void updateSwitches(int boundarySize) {
+	}
+
+	/**
+	 * Notify the filter that a point has moved from inside to outside
+	 * @param p The linear index of the point
+	 */
+	void switchOut(int p) {
+	}
+
+	/**
+	 * Notify the filter that a point has moved from outside to inside
+	 * @param p The linear index of the point
+	 */
+	void switchIn(int p) {
+	}
+
+	/**
+	 * Convolve the neighbourhood of a point with the Gaussian
+	 * @param phi Level-set phi function
+	 * @param p The linear index of the point
+	 * @return conv(G, phi < 0) at p
+	 */
+	protected int convolve(FastLevelSet.Byte2D phi, int p) {
+		int px = p % width;
+		int py = p / width;
+		int dxmax = Math.min(gw + 1, width - px);
+		int dymax = Math.min(gw + 1, height - py);
+		int dxmin = Math.max(-gw, -px);
+		int dymin = Math.max(-gw, -py);
+
+		int f = 0;
+		for (int dy = dymin; dy < dymax; ++dy) {
+			int row = p + dy * width;
+			int krow = (gw + dy) * s + gw;
+			for (int dx = dxmin; dx < dxmax; ++dx) {
+				if (phi.get(row + dx) < 0) {
+					f += kernel[krow + dx];
+				}
+			}
+		}
+
+		return f;
+	}
+}
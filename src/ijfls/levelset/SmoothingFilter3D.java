@@ -0,0 +1,124 @@
+package ijfls.levelset;
+
+/**
+ * The smoothing term for the 3D fast level set.
+ * This is a 3D Gaussian filter scaled up to integers which is convolved
+ * with the inside region (phi < 0), see SmoothingFilter.
+ */
+public class SmoothingFilter3D {
+	/**
+	 * Radius of the Gaussian filter
+	 */
+	protected final int gw;
+
+	/**
+	 * Number of elements along each side of the filter
+	 */
+	protected final int s;
+
+	/**
+	 * The Gaussian filter, scaled up to integers (z, y, x order)
+	 */
+	protected final int[] kernel;
+
+	/**
+	 * The threshold for the smoothing decision
+	 */
+	protected final int threshold;
+
+	/**
+	 * Width of the image
+	 */
+	protected final int width;
+
+	/**
+	 * Height of the image
+	 */
+	protected final int height;
+
+	/**
+	 * Number of slices
+	 */
+	protected final int depth;
+
+	/**
+	 * Constructor, creates the Gaussian filter
+	 * @param gaussWidth Radius of the Gaussian filter
+	 * @param gaussSigma Sigma for the Gaussian filter
+	 * @param width Width of the image
+	 * @param height Height of the image
+	 * @param depth Number of slices
+	 */
+	public SmoothingFilter3D(int gaussWidth, double gaussSigma,
+							 int width, int height, int depth) {
+		this.gw = gaussWidth;
+		this.s = 2 * gaussWidth + 1;
+		this.width = width;
+		this.height = height;
+		this.depth = depth;
+		kernel = new int[s * s * s];
+
+		// Rough heuristic: scale by number of elements in filter
+		double scale1 = s * s * s;
+		double norm = 1.0 / (gaussSigma * gaussSigma * gaussSigma);
+		int gfScale = 0;
+
+		for (int z = 0; z < s; ++z) {
+			for (int y = 0; y < s; ++y) {
+				for (int x = 0; x < s; ++x) {
+					double d2 = (x - gw) * (x - gw) + (y - gw) * (y - gw) +
+						(z - gw) * (z - gw);
+					double gf = norm * Math.exp(
+						-0.5 / gaussSigma / gaussSigma * d2) * scale1;
+					kernel[(z * s + y) * s + x] = (int)gf;
+					gfScale += kernel[(z * s + y) * s + x];
+				}
+			}
+		}
+		// Many of the elements in the corners round down to 0, so use the
+		// sum of the integer kernel to avoid biasing the threshold
+		threshold = gfScale / 2;
+	}
+
+	/**
+	 * Get the threshold for the smoothing decision
+	 * @return the threshold
+	 */
+	public int getThreshold() {
+		return threshold;
+	}
+
+	/**
+	 * Convolve the neighbourhood of a point with the Gaussian
+	 * @param phi Level-set phi function
+	 * @param p The linear index of the point
+	 * @return conv(G, phi < 0) at p
+	 */
+	int compute(FastLevelSet3D.Byte3D phi, int p) {
+		int area = width * height;
+		int px = p % width;
+		int py = (p / width) % height;
+		int pz = p / area;
+		int dxmax = Math.min(gw + 1, width - px);
+		int dymax = Math.min(gw + 1, height - py);
+		int dzmax = Math.min(gw + 1, depth - pz);
+		int dxmin = Math.max(-gw, -px);
+		int dymin = Math.max(-gw, -py);
+		int dzmin = Math.max(-gw, -pz);
+
+		int f = 0;
+		for (int dz = dzmin; dz < dzmax; ++dz) {
+			for (int dy = dymin; dy < dymax; ++dy) {
+				int row = p + dz * area + dy * width;
+				int krow = ((gw + dz) * s + gw + dy) * s + gw;
+				for (int dx = dxmin; dx < dxmax; ++dx) {
+					if (phi.get(row + dx) < 0) {
+						f += kernel[krow + dx];
+					}
+				}
+			}
+		}
+
+		return f;
+	}
+}
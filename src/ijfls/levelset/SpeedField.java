@@ -1,5 +1,7 @@
 package ijfls.levelset;
 
+import ij.process.BinaryProcessor;
+
 /**
  * A speed field for a level sets segmentation.
  * In general it is expected that the FastLevelSet algoithm will call
@@ -38,6 +40,39 @@ public abstract class SpeedField {
 	 */
 	abstract double computeSpeedD(FastLevelSet.Byte2D phi, Point p);
 
+	/**
+	 * Calculate anything which depends on the initialisation. This allows
+	 * work which only depends on the image to be done in advance, and must
+	 * be called before using a speed field created without an
+	 * initialisation.
+	 * @param init The initialisation
+	 */
+	public void initialise(BinaryProcessor init) {
+	}
+
+	/**
+	 * Get the radius of the neighbourhood whose phi values may affect the
+	 * speed at a point, this allows the speed at several points to be
+	 * calculated concurrently.
+	 * Implementations which return a value >= 0 must allow computeSpeed()
+	 * to be called from multiple threads as long as phi and the speed field
+	 * are not being modified.
+	 * @return The radius (chessboard distance), 0 if the speed does not
+	 *         depend on phi at any other point, or -1 if unknown
+	 */
+	int getDependencyRadius() {
+		return -1;
+	}
+
+	/**
+	 * Describe the speed field and its parameters for the log, speed fields
+	 * don't write to a log themselves
+	 * @return The description
+	 */
+	public String describe() {
+		return getClass().getSimpleName();
+	}
+
 	/**
 	 * Does this speed field need to be updated with changed points?
 	 * @return true if updateSpeedChanges() should be called, false otherwise
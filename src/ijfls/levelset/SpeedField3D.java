@@ -0,0 +1,53 @@
+package ijfls.levelset;
+
+/**
+ * A speed field for a FastLevelSet3D segmentation.
+ * This follows the same conventions as SpeedField, but points are
+ * identified by their linear index in the volume
+ * (z * width * height + y * width + x).
+ */
+public abstract class SpeedField3D {
+	/**
+	 * Compute the speed at a single point
+	 * @param phi Level-set phi function
+	 * @param p The linear index of the point
+	 * @return The speed at the point: [-1 0 1]
+	 */
+	abstract int computeSpeed(FastLevelSet3D.Byte3D phi, int p);
+
+	/**
+	 * Describe the speed field and its parameters for the log
+	 * @return The description
+	 */
+	public String describe() {
+		return getClass().getSimpleName();
+	}
+
+	/**
+	 * Does this speed field need to be updated with changed points?
+	 * @return true if updateSpeedChanges() should be called, false otherwise
+	 */
+	boolean requiresSpeedUpdate() {
+		return false;
+	}
+
+	/**
+	 * Notify the speed field that a point has moved from inside to outside
+	 * @param p The linear index of the point
+	 */
+	void switchOut(int p) {
+	}
+
+	/**
+	 * Notify the speed field that a point has moved from outside to inside
+	 * @param p The linear index of the point
+	 */
+	void switchIn(int p) {
+	}
+
+	/**
+	 * Update the speed field based on points which have changed sign
+	 */
+	void updateSpeedChanges() {
+	}
+}
@@ -1,7 +1,7 @@
 package ijfls.levelset;
 
 import ij.process.*;
-import ij.IJ;
+import ij.ImageStack;
 import java.util.LinkedList;
 
 /**
@@ -18,7 +18,7 @@ public class SpeedFieldFactory {
 
 		CHAN_VESE("Region (Chan Vese)"),
 		HYBRID("Local region (Hybrid)"),
-		EDGE("Edge (Not implemented) (Geodesic active contours)");
+		EDGE("Edge (Geodesic active contours)");
 
 		private final String value;
 
@@ -45,6 +45,44 @@ public class SpeedFieldFactory {
 		}
 	}
 
+	/**
+	 * Create a speedfield without an initialisation, doing as much work as
+	 * possible in advance. SpeedField.initialise() must be called before
+	 * it is used.
+	 * @param method The name of the speedfield algorithm
+	 * @param im The image to be segmented
+	 * @param hsfp Parameters for the HyrbidSpeedField
+	 */
+	static public SpeedField prepare(String method, ImageProcessor im,
+									 HybridSpeedField.Parameters hsfp) {
+		return prepare(method, im, hsfp, null);
+	}
+
+	/**
+	 * Create a speedfield without an initialisation, doing as much work as
+	 * possible in advance. SpeedField.initialise() must be called before
+	 * it is used.
+	 * @param method The name of the speedfield algorithm
+	 * @param im The image to be segmented
+	 * @param hsfp Parameters for the HyrbidSpeedField
+	 * @param esfp Parameters for the EdgeSpeedField, null for defaults
+	 */
+	static public SpeedField prepare(String method, ImageProcessor im,
+									 HybridSpeedField.Parameters hsfp,
+									 EdgeSpeedField.Parameters esfp) {
+		switch (SfMethod.fromValue(method)) {
+		case CHAN_VESE:
+			return new ChanVeseSpeedField(im);
+		case HYBRID:
+			return new HybridSpeedField(hsfp, im);
+		case EDGE:
+			return new EdgeSpeedField(esfp, im);
+		default:
+			throw new IllegalArgumentException(
+				"Speed field method not implemented");
+		}
+	}
+
 	/**
 	 * Create speedfield (note some parameters may be null)
 	 * @param method The name of the speedfield algorithm
@@ -55,12 +93,52 @@ public class SpeedFieldFactory {
 	static public SpeedField create(String method, ImageProcessor im,
 									BinaryProcessor init,
 									HybridSpeedField.Parameters hsfp) {
+		return create(method, im, init, hsfp, null);
+	}
+
+	/**
+	 * Create speedfield (note some parameters may be null)
+	 * @param method The name of the speedfield algorithm
+	 * @param im The image to be segmented
+	 * @param init The initialisation
+	 * @param hsfp Parameters for the HyrbidSpeedField
+	 * @param esfp Parameters for the EdgeSpeedField, null for defaults
+	 */
+	static public SpeedField create(String method, ImageProcessor im,
+									BinaryProcessor init,
+									HybridSpeedField.Parameters hsfp,
+									EdgeSpeedField.Parameters esfp) {
 		switch (SfMethod.fromValue(method)) {
 		case CHAN_VESE:
 			return new ChanVeseSpeedField(im, init);
 		case HYBRID:
-			return new HybridSpeedField(hsfp, im);
+			return new HybridSpeedField(hsfp, im, init);
 		case EDGE:
+			return new EdgeSpeedField(esfp, im, init);
+		default:
+			throw new IllegalArgumentException(
+				"Speed field method not implemented");
+		}
+	}
+
+	/**
+	 * Create a speedfield for a volume
+	 * @param method The name of the speedfield algorithm
+	 * @param im The volume to be segmented
+	 * @param init The initialisation
+	 * @param hsfp Parameters for the HyrbidSpeedField
+	 */
+	static public SpeedField3D create3D(String method, ImageStack im,
+										ImageStack init,
+										HybridSpeedField.Parameters hsfp) {
+		switch (SfMethod.fromValue(method)) {
+		case CHAN_VESE:
+			return new ChanVeseSpeedField3D(im, init);
+		case HYBRID:
+			return new HybridSpeedField3D(hsfp, im, init);
+		case EDGE:
+			throw new IllegalArgumentException(
+				"Edge speed field is not implemented for volumes");
 		default:
 			throw new IllegalArgumentException(
 				"Speed field method not implemented");
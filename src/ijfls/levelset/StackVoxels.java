@@ -0,0 +1,195 @@
+package ijfls.levelset;
+
+import ij.ImageStack;
+
+
+/**
+ * Read-only access to the voxels of an ImageStack by linear index
+ * (z * width * height + y * width + x)
+ *
+ * The pixel arrays of the slices are held directly, as in ImageView, so
+ * reading a voxel is an array read rather than a virtual call. All slices
+ * of a stack have the same type, so only one of the arrays is used.
+ */
+class StackVoxels {
+	/**
+	 * The pixels of each slice of an 8-bit stack, otherwise null
+	 */
+	private final byte[][] bytes;
+
+	/**
+	 * The pixels of each slice of a 16-bit stack, otherwise null
+	 */
+	private final short[][] shorts;
+
+	/**
+	 * The pixels of each slice of any other stack, otherwise null
+	 */
+	private final float[][] floats;
+
+	/**
+	 * Number of slices
+	 */
+	private final int depth;
+
+	/**
+	 * Width of the stack
+	 */
+	private final int width;
+
+	/**
+	 * Height of the stack
+	 */
+	private final int height;
+
+	/**
+	 * Number of pixels in a slice
+	 */
+	private final int area;
+
+	/**
+	 * @param stack The stack, the slices are only read once. 8, 16 and
+	 *        32-bit slices are viewed directly, other types are converted
+	 *        to 32-bit.
+	 */
+	public StackVoxels(ImageStack stack) {
+		width = stack.getWidth();
+		height = stack.getHeight();
+		area = width * height;
+		depth = stack.getSize();
+
+		// stack.getProcessor(i) uses 1-based indexing
+		ImageView[] views = new ImageView[depth];
+		for (int z = 0; z < depth; ++z) {
+			views[z] = ImageView.create(stack.getProcessor(z + 1));
+		}
+
+		if (views[0] instanceof ImageView.Bytes) {
+			bytes = new byte[depth][];
+			for (int z = 0; z < depth; ++z) {
+				bytes[z] = ((ImageView.Bytes)views[z]).pixels;
+			}
+			shorts = null;
+			floats = null;
+		}
+		else if (views[0] instanceof ImageView.Shorts) {
+			bytes = null;
+			shorts = new short[depth][];
+			for (int z = 0; z < depth; ++z) {
+				shorts[z] = ((ImageView.Shorts)views[z]).pixels;
+			}
+			floats = null;
+		}
+		else {
+			bytes = null;
+			shorts = null;
+			floats = new float[depth][];
+			for (int z = 0; z < depth; ++z) {
+				floats[z] = ((ImageView.Floats)views[z]).pixels;
+			}
+		}
+	}
+
+	/**
+	 * Get a voxel
+	 * @param p The linear index of the voxel
+	 * @return The value of the voxel, 32-bit stacks give the value rather
+	 *         than its bits
+	 */
+	public float get(int p) {
+		int z = p / area;
+		int i = p - z * area;
+		if (bytes != null) {
+			return bytes[z][i] & 0xff;
+		}
+		if (shorts != null) {
+			return shorts[z][i] & 0xffff;
+		}
+		return floats[z][i];
+	}
+
+	/**
+	 * Sum all voxels
+	 * @return The total
+	 */
+	public double sum() {
+		double t = 0;
+		for (int z = 0; z < depth; ++z) {
+			if (bytes != null) {
+				long st = 0;
+				for (byte b : bytes[z]) {
+					st += b & 0xff;
+				}
+				t += st;
+			}
+			else if (shorts != null) {
+				long st = 0;
+				for (short v : shorts[z]) {
+					st += v & 0xffff;
+				}
+				t += st;
+			}
+			else {
+				for (float v : floats[z]) {
+					t += v;
+				}
+			}
+		}
+		return t;
+	}
+
+	/**
+	 * Sum a list of voxels
+	 * @param points The linear indices of the voxels
+	 * @return The total
+	 */
+	public double sum(IndexList points) {
+		int n = points.size();
+		if (bytes != null) {
+			long t = 0;
+			for (int k = 0; k < n; ++k) {
+				int p = points.get(k);
+				int z = p / area;
+				t += bytes[z][p - z * area] & 0xff;
+			}
+			return t;
+		}
+		if (shorts != null) {
+			long t = 0;
+			for (int k = 0; k < n; ++k) {
+				int p = points.get(k);
+				int z = p / area;
+				t += shorts[z][p - z * area] & 0xffff;
+			}
+			return t;
+		}
+		double t = 0;
+		for (int k = 0; k < n; ++k) {
+			int p = points.get(k);
+			int z = p / area;
+			t += floats[z][p - z * area];
+		}
+		return t;
+	}
+
+	/**
+	 * @return the width of the stack
+	 */
+	public int getWidth() {
+		return width;
+	}
+
+	/**
+	 * @return the height of the stack
+	 */
+	public int getHeight() {
+		return height;
+	}
+
+	/**
+	 * @return the number of slices
+	 */
+	public int getDepth() {
+		return depth;
+	}
+}
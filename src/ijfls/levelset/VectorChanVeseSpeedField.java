@@ -0,0 +1,254 @@
+package ijfls.levelset;
+
+import ij.process.*;
+
+
+/**
+ * The Chan and Vese speed field for multi-channel images (Chan, Sandberg and
+ * Vese 2000, Active Contours without Edges for Vector-Valued Images).
+ *
+ * The inside and outside means are tracked separately for each channel,
+ * and the speed is the weighted sum of the Chan-Vese speed of each channel:
+ *   F = sum_c w_c ((I_c - u1_c)^2 - (I_c - u2_c)^2)
+ *     = sum_c w_c (u1_c - u2_c)(u1_c + u2_c) - sum_c 2 w_c (u1_c - u2_c) I_c
+ * The constant and the coefficient of each channel are calculated whenever
+ * the means are updated, so computeSpeed() is one multiply-add per channel.
+ * With a single channel this is the same as ChanVeseSpeedField.
+ *
+ * The channels are viewed directly, they are not copied.
+ */
+public class VectorChanVeseSpeedField extends SpeedField {
+	/**
+	 * The channels
+	 */
+	private final ImageView[] ims;
+
+	/**
+	 * The weight of each channel
+	 */
+	private final double[] weights;
+
+	/**
+	 * The width of the image
+	 */
+	private final int width;
+
+	/**
+	 * Constructor, initialise() must be called before the speed field is
+	 * used
+	 * @param channels The channels of the image, all the same size
+	 * @param weights The weight of each channel, or null for equal weights
+	 * @throws IllegalArgumentException if the channels or weights don't
+	 *         match
+	 */
+	public VectorChanVeseSpeedField(ImageProcessor[] channels,
+									double[] weights) {
+		int nc = channels.length;
+		if (nc == 0) {
+			throw new IllegalArgumentException("No channels");
+		}
+		if (weights != null && weights.length != nc) {
+			throw new IllegalArgumentException(
+				"Expected " + nc + " channel weights, got " + weights.length);
+		}
+
+		width = channels[0].getWidth();
+		int height = channels[0].getHeight();
+		ims = new ImageView[nc];
+		for (int c = 0; c < nc; ++c) {
+			if (channels[c].getWidth() != width ||
+				channels[c].getHeight() != height) {
+				throw new IllegalArgumentException(
+					"All channels must be the same size");
+			}
+			ims[c] = ImageView.create(channels[c]);
+		}
+
+		this.weights = new double[nc];
+		for (int c = 0; c < nc; ++c) {
+			this.weights[c] = weights == null ? 1 : weights[c];
+		}
+
+		total = new double[nc];
+		tin = new double[nc];
+		tout = new double[nc];
+		coeffs = new double[nc];
+		calculateTotals();
+	}
+
+	/**
+	 * Constructor
+	 * @param channels The channels of the image, all the same size
+	 * @param weights The weight of each channel, or null for equal weights
+	 * @param init The initialisation
+	 */
+	public VectorChanVeseSpeedField(ImageProcessor[] channels,
+									double[] weights, BinaryProcessor init) {
+		this(channels, weights);
+		initialise(init);
+	}
+
+	public int computeSpeed(FastLevelSet.Byte2D phi, Point p) {
+		double f = computeSpeedD(phi, p);
+		// NaN if either region is empty, the speed is then 0
+		if (f < 0) {
+			return 1;
+		}
+		if (f > 0) {
+			return -1;
+		}
+		return 0;
+	}
+
+	public double computeSpeedD(FastLevelSet.Byte2D phi, Point p) {
+		// Note don't call updateSpeedChanges(), leave it to the caller
+		int i = p.y * width + p.x;
+		double f = constant;
+		for (int c = 0; c < ims.length; ++c) {
+			f -= coeffs[c] * ims[c].get(i);
+		}
+		return f;
+	}
+
+	public int getDependencyRadius() {
+		// The means are only updated by updateSpeedChanges()
+		return 0;
+	}
+
+	public String describe() {
+		StringBuilder sb = new StringBuilder(
+			"VectorChanVeseSpeedField channels:" + ims.length + " weights:");
+		for (int c = 0; c < ims.length; ++c) {
+			sb.append(c == 0 ? "" : ",");
+			sb.append(LevelSetLog.d2s(weights[c], 3));
+		}
+		return sb.toString();
+	}
+
+	public boolean requiresSpeedUpdate() {
+		return in2out.size() > 0 || out2in.size() > 0;
+	}
+
+	public void switchOut(Point p) {
+		in2out.add(p.y * width + p.x);
+	}
+
+	public void switchIn(Point p) {
+		out2in.add(p.y * width + p.x);
+	}
+
+	public void updateSpeedChanges() {
+		int nc = ims.length;
+		ain += out2in.size() - in2out.size();
+		aout += in2out.size() - out2in.size();
+
+		for (int c = 0; c < nc; ++c) {
+			double d = ims[c].sum(out2in) - ims[c].sum(in2out);
+			tin[c] += d;
+			tout[c] -= d;
+		}
+		in2out.clear();
+		out2in.clear();
+
+		constant = 0;
+		for (int c = 0; c < nc; ++c) {
+			double meanin = tin[c] / ain;
+			double meanout = tout[c] / aout;
+			double diff = weights[c] * (meanin - meanout);
+			constant += diff * (meanin + meanout);
+			coeffs[c] = 2 * diff;
+		}
+	}
+
+	/**
+	 * Calculate the initial inside and outside mean intensities of each
+	 * channel. Only the inside of the initialisation is summed, the outside
+	 * is obtained from the image totals.
+	 */
+	public void initialise(BinaryProcessor init) {
+		in2out.clear();
+		out2in.clear();
+
+		byte[] mask = (byte[])init.getPixels();
+		int n = 0;
+		for (int i = 0; i < mask.length; ++i) {
+			if (mask[i] != 0) {
+				++n;
+			}
+		}
+		for (int c = 0; c < ims.length; ++c) {
+			double sumin = ims[c].sum(mask);
+			tin[c] = sumin;
+			tout[c] = total[c] - sumin;
+		}
+		ain = n;
+		aout = mask.length - n;
+
+		// This will take care of recalculating the coefficients
+		updateSpeedChanges();
+	}
+
+	/**
+	 * Get the number of channels
+	 * @return the number of channels
+	 */
+	public int getNumChannels() {
+		return ims.length;
+	}
+
+	/**
+	 * Calculate the total intensity of each channel, this doesn't depend on
+	 * the initialisation
+	 */
+	protected void calculateTotals() {
+		for (int c = 0; c < ims.length; ++c) {
+			total[c] = ims[c].sum();
+		}
+	}
+
+	/**
+	 * Current list of points which have moved from inside to outside
+	 * (linear indices, the caller may reuse the Point objects)
+	 */
+	private IndexList in2out = new IndexList();
+
+	/**
+	 * Current list of points which have moved from outside to inside
+	 */
+	private IndexList out2in = new IndexList();
+
+	/**
+	 * Total intensity of each channel
+	 */
+	private final double[] total;
+
+	/**
+	 * Total inside intensity of each channel
+	 */
+	private final double[] tin;
+
+	/**
+	 * Total outside intensity of each channel
+	 */
+	private final double[] tout;
+
+	/**
+	 * Inside area
+	 */
+	private int ain;
+
+	/**
+	 * Outside area
+	 */
+	private int aout;
+
+	/**
+	 * sum_c w_c (u1_c - u2_c)(u1_c + u2_c)
+	 */
+	private double constant;
+
+	/**
+	 * 2 w_c (u1_c - u2_c) for each channel
+	 */
+	private final double[] coeffs;
+}
@@ -0,0 +1,468 @@
+package ijfls.measure;
+
+import java.awt.Rectangle;
+import java.util.Arrays;
+import ij.measure.Calibration;
+import ij.measure.ResultsTable;
+import ij.process.*;
+import ijfls.connect.ComponentStatistics;
+import ijfls.connect.ConnectedComponents;
+import ijfls.connect.RunList;
+
+
+/**
+ * Shape measurements of every labelled region in a segmented slice.
+ *
+ * A binary segmentation is labelled using runs, and a label image is
+ * measured as it is so touching regions stay separate. The measurements
+ * are calculated
+ * from the component statistics, the runs and the label buffer without
+ * creating an ROI for each region:
+ * - Area, centroid and bounding box come from the component statistics.
+ * - The fitted ellipse has the same second moments as the region, scaled to
+ *   the same area, as in ImageJ's EllipseFitter.
+ * - The perimeter is the length of the pixel edges on the boundary with
+ *   ImageJ's corner correction, including the boundaries of holes.
+ * - Feret diameters are found from the convex hull of the corners of the
+ *   runs.
+ * Column names follow ImageJ's Analyzer.
+ */
+public class RegionMeasurements {
+	/**
+	 * The number of regions
+	 */
+	private final int nregions;
+
+	/**
+	 * The label of each region in the measured image
+	 */
+	private final int[] regionLabels;
+
+	/**
+	 * The measurements of each region, indexed by label - 1
+	 */
+	private final double[] area, x, y, bx, by, width, height;
+	private final double[] perimeter, major, minor, angle;
+	private final double[] feret, feretAngle, minFeret;
+
+	/**
+	 * Create empty measurements
+	 * @param n The number of regions
+	 */
+	private RegionMeasurements(int n) {
+		nregions = n;
+		regionLabels = new int[n];
+		for (int i = 0; i < n; ++i) {
+			regionLabels[i] = i + 1;
+		}
+		area = new double[n];
+		x = new double[n];
+		y = new double[n];
+		bx = new double[n];
+		by = new double[n];
+		width = new double[n];
+		height = new double[n];
+		perimeter = new double[n];
+		major = new double[n];
+		minor = new double[n];
+		angle = new double[n];
+		feret = new double[n];
+		feretAngle = new double[n];
+		minFeret = new double[n];
+	}
+
+	/**
+	 * Label and measure the regions in a segmentation
+	 * @param seg The segmentation, non-zero pixels are foreground
+	 * @param connectivity 4 or 8
+	 * @return The measurements of each region
+	 */
+	public static RegionMeasurements measure(ImageProcessor seg,
+											 int connectivity) {
+		ByteProcessor bp = seg instanceof ByteProcessor ?
+			(ByteProcessor)seg : (ByteProcessor)seg.convertToByte(false);
+		ConnectedComponents cc = new ConnectedComponents(
+			new BinaryProcessor(bp));
+		cc.setStatistics(true, null);
+		int n = connectivity == 8 ? cc.labelRuns8() : cc.labelRuns4();
+
+		RegionMeasurements m = new RegionMeasurements(n);
+		m.measureMoments(cc.getStatistics());
+		m.measurePerimeters(cc.getLabels(), seg.getWidth(), seg.getHeight());
+		m.measureFerets(cc.getRuns());
+		return m;
+	}
+
+	/**
+	 * Measure the regions of a label image as they are, without
+	 * relabelling. Pixels with the same label are one region even if they
+	 * aren't connected, and regions which touch are measured separately.
+	 * @param labelim The label image, a ShortProcessor or a FloatProcessor
+	 *        holding integer labels, 0 (or less) is background
+	 * @return The measurements of each label which is present, in
+	 *         increasing order of label
+	 */
+	public static RegionMeasurements measureLabels(ImageProcessor labelim) {
+		int w = labelim.getWidth();
+		int h = labelim.getHeight();
+
+		// getf() returns the value rather than the raw bits for
+		// FloatProcessors
+		int[] labels = new int[w * h];
+		int maxLabel = 0;
+		for (int i = 0; i < labels.length; ++i) {
+			labels[i] = Math.max((int)labelim.getf(i), 0);
+			maxLabel = Math.max(maxLabel, labels[i]);
+		}
+
+		// Number the labels which are present 1..n, labels may be sparse
+		int[] index = new int[maxLabel + 1];
+		for (int l : labels) {
+			index[l] = 1;
+		}
+		// Background stays 0
+		index[0] = 0;
+		int n = 0;
+		int[] present = new int[maxLabel];
+		for (int l = 1; l <= maxLabel; ++l) {
+			if (index[l] != 0) {
+				present[n] = l;
+				index[l] = ++n;
+			}
+		}
+		for (int i = 0; i < labels.length; ++i) {
+			labels[i] = index[labels[i]];
+		}
+
+		RunList runs = RunList.fromLabels(labels, w, h);
+		RegionMeasurements m = new RegionMeasurements(n);
+		System.arraycopy(present, 0, m.regionLabels, 0, n);
+		m.measureMoments(ComponentStatistics.fromRuns(runs, n, null));
+		m.measurePerimeters(labels, w, h);
+		m.measureFerets(runs);
+		return m;
+	}
+
+	/**
+	 * Get the number of regions
+	 * @return the number of regions
+	 */
+	public int getNumRegions() {
+		return nregions;
+	}
+
+	/**
+	 * Calculate the area, centroid, bounding box and fitted ellipse
+	 * @param stats The component statistics
+	 */
+	private void measureMoments(ComponentStatistics stats) {
+		for (int i = 0; i < nregions; ++i) {
+			int label = i + 1;
+			area[i] = stats.getArea(label);
+			x[i] = stats.getCentroidX(label);
+			y[i] = stats.getCentroidY(label);
+			Rectangle r = stats.getBounds(label);
+			bx[i] = r.x;
+			by[i] = r.y;
+			width[i] = r.width;
+			height[i] = r.height;
+
+			// Each pixel is a unit square rather than a point, which adds
+			// 1/12 to the variances
+			double mxx = stats.getMxx(label) + 1.0 / 12;
+			double myy = stats.getMyy(label) + 1.0 / 12;
+			// Negate so angles are anti-clockwise with the y-axis upwards
+			double mxy = -stats.getMxy(label);
+
+			double mean = 0.5 * (mxx + myy);
+			double d = Math.sqrt(0.25 * (mxx - myy) * (mxx - myy) + mxy * mxy);
+			double l1 = mean + d;
+			double l2 = Math.max(mean - d, 0);
+
+			// The axes of a uniform ellipse are 4 times the standard
+			// deviations, then equalise the areas
+			double a = 4 * Math.sqrt(l1);
+			double b = 4 * Math.sqrt(l2);
+			double scale = Math.sqrt(area[i] / (Math.PI * a * b / 4));
+			major[i] = a * scale;
+			minor[i] = b * scale;
+
+			double theta = Math.toDegrees(0.5 * Math.atan2(2 * mxy, mxx - myy));
+			angle[i] = theta < 0 ? theta + 180 : theta;
+		}
+	}
+
+	/**
+	 * Calculate the perimeters from the label buffer, by counting the pixel
+	 * edges between a region and anything else, and the corners of the
+	 * boundary. Each corner is cut off as in ImageJ's traced perimeter.
+	 * @param labels The label of each pixel, row by row
+	 * @param w The width
+	 * @param h The height
+	 */
+	private void measurePerimeters(int[] labels, int w, int h) {
+		long[] edges = new long[nregions + 1];
+		long[] corners = new long[nregions + 1];
+
+		for (int j = 0; j < h; ++j) {
+			for (int i = 0, p = j * w; i < w; ++i, ++p) {
+				int l = labels[p];
+				if (l == 0) {
+					continue;
+				}
+				if (i == 0 || labels[p - 1] != l) {
+					++edges[l];
+				}
+				if (i == w - 1 || labels[p + 1] != l) {
+					++edges[l];
+				}
+				if (j == 0 || labels[p - w] != l) {
+					++edges[l];
+				}
+				if (j == h - 1 || labels[p + w] != l) {
+					++edges[l];
+				}
+			}
+		}
+
+		// Each vertex of the pixel grid is shared by a 2x2 window, a region
+		// has a corner there if it covers 1 or 3 pixels, or 2 diagonally
+		for (int j = -1; j < h; ++j) {
+			for (int i = -1; i < w; ++i) {
+				int a = label(labels, w, h, i, j);
+				int b = label(labels, w, h, i + 1, j);
+				int c = label(labels, w, h, i, j + 1);
+				int d = label(labels, w, h, i + 1, j + 1);
+				if (a == b && b == c && c == d) {
+					continue;
+				}
+				countCorners(corners, a, a, b, c, d);
+				if (b != a) {
+					countCorners(corners, b, a, b, c, d);
+				}
+				if (c != a && c != b) {
+					countCorners(corners, c, a, b, c, d);
+				}
+				if (d != a && d != b && d != c) {
+					countCorners(corners, d, a, b, c, d);
+				}
+			}
+		}
+
+		double cut = 2 - Math.sqrt(2);
+		for (int i = 0; i < nregions; ++i) {
+			perimeter[i] = edges[i + 1] - corners[i + 1] * cut;
+		}
+	}
+
+	/**
+	 * Get a label
+	 * @param labels The label buffer
+	 * @param w The width
+	 * @param h The height
+	 * @param i The x coordinate
+	 * @param j The y coordinate
+	 * @return The label, 0 outside the image
+	 */
+	private static int label(int[] labels, int w, int h, int i, int j) {
+		if (i < 0 || j < 0 || i >= w || j >= h) {
+			return 0;
+		}
+		return labels[j * w + i];
+	}
+
+	/**
+	 * Count the corners of one region at a vertex
+	 * @param corners The corner count of each label
+	 * @param l The label, ignored if 0
+	 * @param a The top-left label of the 2x2 window
+	 * @param b The top-right label
+	 * @param c The bottom-left label
+	 * @param d The bottom-right label
+	 */
+	private static void countCorners(long[] corners, int l,
+									 int a, int b, int c, int d) {
+		if (l == 0) {
+			return;
+		}
+		int k = (a == l ? 1 : 0) + (b == l ? 1 : 0) +
+			(c == l ? 1 : 0) + (d == l ? 1 : 0);
+		if (k == 1 || k == 3) {
+			++corners[l];
+		}
+		else if (k == 2 && ((a == l && d == l) || (b == l && c == l))) {
+			corners[l] += 2;
+		}
+	}
+
+	/**
+	 * Calculate the maximum and minimum Feret diameters from the convex hull
+	 * of the corners of each region's runs
+	 * @param runs The labelled runs
+	 */
+	private void measureFerets(RunList runs) {
+		// Sort the runs by label
+		int[] first = new int[nregions + 2];
+		for (int r = 0; r < runs.size(); ++r) {
+			++first[runs.getLabel(r) + 1];
+		}
+		for (int l = 1; l < first.length; ++l) {
+			first[l] += first[l - 1];
+		}
+		int[] next = Arrays.copyOf(first, first.length);
+		int[] order = new int[runs.size()];
+		for (int r = 0; r < runs.size(); ++r) {
+			order[next[runs.getLabel(r)]++] = r;
+		}
+
+		// Points are packed as y * stride + x
+		long stride = runs.getWidth() + 1;
+		for (int l = 1; l <= nregions; ++l) {
+			int nruns = first[l + 1] - first[l];
+			long[] points = new long[4 * nruns];
+			for (int k = 0; k < nruns; ++k) {
+				int r = order[first[l] + k];
+				long row = runs.getRow(r);
+				points[4 * k] = row * stride + runs.getStart(r);
+				points[4 * k + 1] = row * stride + runs.getEnd(r);
+				points[4 * k + 2] = (row + 1) * stride + runs.getStart(r);
+				points[4 * k + 3] = (row + 1) * stride + runs.getEnd(r);
+			}
+			Arrays.sort(points);
+			measureFeret(l - 1, convexHull(points, stride));
+		}
+	}
+
+	/**
+	 * Find the convex hull of a set of points using the monotone chain
+	 * algorithm
+	 * @param points The points packed as y * stride + x, sorted
+	 * @param stride The stride
+	 * @return The hull as {x0, y0, x1, y1, ...}, anti-clockwise
+	 */
+	private static long[] convexHull(long[] points, long stride) {
+		int n = points.length;
+		long[] hx = new long[2 * n];
+		long[] hy = new long[2 * n];
+		int k = 0;
+
+		// Lower hull then upper hull
+		for (int pass = 0; pass < 2; ++pass) {
+			int start = k;
+			for (int idx = 0; idx < n; ++idx) {
+				long p = points[pass == 0 ? idx : n - 1 - idx];
+				long px = p % stride;
+				long py = p / stride;
+				while (k >= start + 2 &&
+					   cross(hx[k - 2], hy[k - 2], hx[k - 1], hy[k - 1],
+							 px, py) <= 0) {
+					--k;
+				}
+				hx[k] = px;
+				hy[k] = py;
+				++k;
+			}
+			// The last point is the first point of the next chain
+			--k;
+		}
+
+		long[] hull = new long[2 * k];
+		for (int i = 0; i < k; ++i) {
+			hull[2 * i] = hx[i];
+			hull[2 * i + 1] = hy[i];
+		}
+		return hull;
+	}
+
+	/**
+	 * Calculate the z-component of the cross product of (b - a) and (c - a)
+	 * @return twice the signed area of the triangle abc
+	 */
+	private static long cross(long ax, long ay, long bx, long by,
+							  long cx, long cy) {
+		return (bx - ax) * (cy - ay) - (by - ay) * (cx - ax);
+	}
+
+	/**
+	 * Calculate the Feret diameters of one region from its convex hull
+	 * @param i The index of the region
+	 * @param hull The hull as {x0, y0, x1, y1, ...}
+	 */
+	private void measureFeret(int i, long[] hull) {
+		int n = hull.length / 2;
+
+		// The hulls are small, so compare all pairs of points
+		long maxd2 = -1;
+		long fx = 0, fy = 0;
+		for (int p = 0; p < n; ++p) {
+			for (int q = p + 1; q < n; ++q) {
+				long dx = hull[2 * q] - hull[2 * p];
+				long dy = hull[2 * q + 1] - hull[2 * p + 1];
+				long d2 = dx * dx + dy * dy;
+				if (d2 > maxd2) {
+					maxd2 = d2;
+					fx = dx;
+					fy = dy;
+				}
+			}
+		}
+		feret[i] = Math.sqrt(maxd2);
+		double theta = Math.toDegrees(Math.atan2(-fy, fx));
+		if (theta < 0) {
+			theta += 180;
+		}
+		feretAngle[i] = theta >= 180 ? theta - 180 : theta;
+
+		// The minimum width is perpendicular to one of the hull edges
+		double minw = Double.MAX_VALUE;
+		for (int p = 0; p < n; ++p) {
+			int q = (p + 1) % n;
+			long ex = hull[2 * q] - hull[2 * p];
+			long ey = hull[2 * q + 1] - hull[2 * p + 1];
+			double len = Math.sqrt(ex * ex + ey * ey);
+			double maxw = 0;
+			for (int s = 0; s < n; ++s) {
+				long c = Math.abs(cross(hull[2 * p], hull[2 * p + 1],
+										hull[2 * q], hull[2 * q + 1],
+										hull[2 * s], hull[2 * s + 1]));
+				maxw = Math.max(maxw, c / len);
+			}
+			minw = Math.min(minw, maxw);
+		}
+		minFeret[i] = minw;
+	}
+
+	/**
+	 * Append a row for each region to a results table
+	 * @param rt The results table
+	 * @param slice The slice number to record
+	 * @param cal The calibration, lengths are scaled by the pixel width
+	 *        which is assumed to equal the pixel height
+	 */
+	public void addToTable(ResultsTable rt, int slice, Calibration cal) {
+		double pw = cal == null ? 1 : cal.pixelWidth;
+		double ph = cal == null ? 1 : cal.pixelHeight;
+		for (int i = 0; i < nregions; ++i) {
+			rt.incrementCounter();
+			rt.addValue("Slice", slice);
+			rt.addValue("Label", regionLabels[i]);
+			rt.addValue("Area", area[i] * pw * ph);
+			rt.addValue("X", x[i] * pw);
+			rt.addValue("Y", y[i] * ph);
+			rt.addValue("BX", bx[i] * pw);
+			rt.addValue("BY", by[i] * ph);
+			rt.addValue("Width", width[i] * pw);
+			rt.addValue("Height", height[i] * ph);
+			rt.addValue("Perim.", perimeter[i] * pw);
+			rt.addValue("Major", major[i] * pw);
+			rt.addValue("Minor", minor[i] * pw);
+			rt.addValue("Angle", angle[i]);
+			rt.addValue("Circ.", perimeter[i] == 0 ? 0 : Math.min(
+							4 * Math.PI * area[i] /
+							(perimeter[i] * perimeter[i]), 1));
+			rt.addValue("Feret", feret[i] * pw);
+			rt.addValue("FeretAngle", feretAngle[i]);
+			rt.addValue("MinFeret", minFeret[i] * pw);
+		}
+	}
+}